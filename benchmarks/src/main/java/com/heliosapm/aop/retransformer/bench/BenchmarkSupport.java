@@ -0,0 +1,48 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.bench;
+
+import com.heliosapm.aop.retransformer.ClassPoolCache;
+import com.heliosapm.aop.retransformer.MethodBodyCache;
+
+/**
+ * <p>Title: BenchmarkSupport</p>
+ * <p>Description: Static helpers shared by the benchmarks</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.bench.BenchmarkSupport</code></p>
+ */
+
+public class BenchmarkSupport {
+	/** The pool param value for benchmarks run with cleared class pools */
+	public static final String COLD = "cold";
+
+	/**
+	 * Clears the shared class pools and the method body cache if the passed pool param is {@link #COLD}
+	 * @param pool The pool param value
+	 */
+	public static void prepare(final String pool) {
+		if(COLD.equals(pool)) {
+			ClassPoolCache.getInstance().clear();
+			MethodBodyCache.getInstance().clear();
+		}
+	}
+
+	private BenchmarkSupport() {}
+}
@@ -0,0 +1,210 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+
+/**
+ * <p>Title: GeneratedTargets</p>
+ * <p>Description: Generates a set of distinct {@link Greeting} implementing classes in their own class loader,
+ * so benchmarks can transform 1, 10 or 100 target classes with a fresh class loader (and class pool) per trial.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.bench.GeneratedTargets</code></p>
+ */
+
+public class GeneratedTargets {
+	/** The generated class name prefix */
+	public static final String NAME_PREFIX = "com.heliosapm.aop.retransformer.bench.gen.Target";
+	/** The source of the original greeting method */
+	public static final String HELLO_SOURCE = "public String getHello() { return \"Hello\"; }";
+
+	/** The generation serial number, keeping class names unique across trials */
+	private static final AtomicInteger serial = new AtomicInteger(0);
+
+	/** The generated classes */
+	private final Class<?>[] classes;
+	/** An instance of each generated class */
+	private final Greeting[] instances;
+
+	/**
+	 * Generates and loads the passed number of target classes
+	 * @param count The number of target classes to generate
+	 */
+	public GeneratedTargets(final int count) {
+		if(count < 1) throw new IllegalArgumentException("Invalid count [" + count + "]");
+		final int gen = serial.incrementAndGet();
+		final Map<String, byte[]> bytecode = new LinkedHashMap<String, byte[]>(count);
+		final ClassPool cp = new ClassPool(true);
+		cp.appendClassPath(new LoaderClassPath(Greeting.class.getClassLoader()));
+		try {
+			final CtClass greeting = cp.get(Greeting.class.getName());
+			for(int i = 0; i < count; i++) {
+				final CtClass ct = cp.makeClass(NAME_PREFIX + gen + "_" + i);
+				ct.addInterface(greeting);
+				ct.addConstructor(CtNewConstructor.defaultConstructor(ct));
+				ct.addMethod(CtNewMethod.make(HELLO_SOURCE, ct));
+				bytecode.put(ct.getName(), ct.toBytecode());
+				ct.detach();
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to generate target classes", ex);
+		}
+		final GeneratedClassLoader loader = new GeneratedClassLoader(bytecode);
+		classes = new Class<?>[count];
+		instances = new Greeting[count];
+		int i = 0;
+		try {
+			for(String name: bytecode.keySet()) {
+				classes[i] = Class.forName(name, true, loader);
+				instances[i] = (Greeting)classes[i].newInstance();
+				i++;
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to load target classes", ex);
+		}
+	}
+
+	/**
+	 * Returns the generated classes
+	 * @return the generated classes
+	 */
+	public Class<?>[] classes() {
+		return classes.clone();
+	}
+
+	/**
+	 * Returns an instance of the generated class at the passed index
+	 * @param index The index of the generated class
+	 * @return the instance
+	 */
+	public Greeting instance(final int index) {
+		return instances[index];
+	}
+
+	/**
+	 * Returns a mock transform map grafting the passed mock class into every generated class
+	 * @param mockedClass The mock class
+	 * @return the mock transform map
+	 */
+	public Map<Class<?>, Class<?>> mocks(final Class<?> mockedClass) {
+		final Map<Class<?>, Class<?>> map = new HashMap<Class<?>, Class<?>>(classes.length);
+		for(Class<?> clazz: classes) {
+			map.put(clazz, mockedClass);
+		}
+		return map;
+	}
+
+	/**
+	 * Returns a source transform map replacing the named method in every generated class
+	 * @param methodName The name of the method to replace
+	 * @param source The replacement source
+	 * @return the source transform map
+	 */
+	public Map<Class<?>, Map<String, String>> sources(final String methodName, final String source) {
+		final Map<Class<?>, Map<String, String>> map = new HashMap<Class<?>, Map<String, String>>(classes.length);
+		for(Class<?> clazz: classes) {
+			map.put(clazz, Collections.singletonMap(methodName, source));
+		}
+		return map;
+	}
+
+	/**
+	 * <p>Title: GeneratedClassLoader</p>
+	 * <p>Description: Defines the generated classes and serves their bytecode as in-memory resources so class pools can find them</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.bench.GeneratedTargets.GeneratedClassLoader</code></p>
+	 */
+	private static class GeneratedClassLoader extends ClassLoader {
+		/** The generated bytecode keyed by binary class name */
+		private final Map<String, byte[]> bytecode;
+		/** The generated bytecode keyed by resource name */
+		private final Map<String, byte[]> resources;
+
+		/**
+		 * Creates a new GeneratedClassLoader
+		 * @param bytecode The generated bytecode keyed by binary class name
+		 */
+		GeneratedClassLoader(final Map<String, byte[]> bytecode) {
+			super(Greeting.class.getClassLoader());
+			this.bytecode = bytecode;
+			resources = new HashMap<String, byte[]>(bytecode.size());
+			for(Map.Entry<String, byte[]> entry: bytecode.entrySet()) {
+				resources.put(entry.getKey().replace('.', '/') + ".class", entry.getValue());
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.ClassLoader#findClass(java.lang.String)
+		 */
+		@Override
+		protected Class<?> findClass(final String name) throws ClassNotFoundException {
+			final byte[] b = bytecode.get(name);
+			if(b==null) throw new ClassNotFoundException(name);
+			return defineClass(name, b, 0, b.length);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.ClassLoader#findResource(java.lang.String)
+		 */
+		@Override
+		protected URL findResource(final String name) {
+			final byte[] b = resources.get(name);
+			if(b==null) return null;
+			try {
+				return new URL("generated", null, -1, "/" + name, new URLStreamHandler() {
+					@Override
+					protected URLConnection openConnection(final URL u) {
+						return new URLConnection(u) {
+							@Override
+							public void connect() {
+								connected = true;
+							}
+							@Override
+							public InputStream getInputStream() {
+								return new ByteArrayInputStream(b);
+							}
+						};
+					}
+				});
+			} catch (MalformedURLException mex) {
+				throw new RuntimeException("Failed to create resource URL for [" + name + "]", mex);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.aop.retransformer.Retransformer;
+
+/**
+ * <p>Title: InvocationBenchmark</p>
+ * <p>Description: Measures the steady state invocation throughput of an original method against the same method
+ * after a mock transform and after a source transform.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.bench.InvocationBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class InvocationBenchmark {
+	/** The form of the invoked method */
+	@Param({"original", "mocked", "source"})
+	public String form;
+
+	/** The generated target class */
+	private GeneratedTargets generated;
+	/** The invoked instance */
+	private Greeting greeting;
+
+	/**
+	 * Generates the target class and applies the transform for the benchmarked form
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		generated = new GeneratedTargets(1);
+		greeting = generated.instance(0);
+		final Class<?> target = generated.classes()[0];
+		if("mocked".equals(form)) {
+			Retransformer.getInstance().transform(target, SpanishGreeting.class);
+		} else if("source".equals(form)) {
+			Retransformer.getInstance().transform(target, "getHello", "{ return \"Bonjour\"; }");
+		}
+	}
+
+	/**
+	 * Restores the target class
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() {
+		Retransformer.getInstance().restore(generated.classes());
+	}
+
+	/**
+	 * Invokes the target method
+	 * @return the greeting, consumed by JMH
+	 */
+	@Benchmark
+	public String invoke() {
+		return greeting.getHello();
+	}
+}
@@ -0,0 +1,114 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.aop.retransformer.Retransformer;
+
+/**
+ * <p>Title: TransformBenchmark</p>
+ * <p>Description: Measures the latency of mock and source map transforms of 1, 10 and 100 target classes,
+ * with warm or cold (cleared before every invocation) class pools and method body cache.
+ * Each transform is restored outside the measured invocation.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.bench.TransformBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransformBenchmark {
+	/** The number of target classes transformed per invocation */
+	@Param({"1", "10", "100"})
+	public int targets;
+	/** The class pool state at the start of each invocation */
+	@Param({"warm", "cold"})
+	public String pool;
+
+	/** The retransformer */
+	private Retransformer retransformer;
+	/** The generated target classes */
+	private GeneratedTargets generated;
+	/** The mock transform map */
+	private Map<Class<?>, Class<?>> mocks;
+	/** The source transform map */
+	private Map<Class<?>, Map<String, String>> sources;
+
+	/**
+	 * Generates the target classes
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		retransformer = Retransformer.getInstance();
+		generated = new GeneratedTargets(targets);
+		mocks = generated.mocks(SpanishGreeting.class);
+		sources = generated.sources("getHello", "{ return \"Bonjour\"; }");
+	}
+
+	/**
+	 * Clears the shared class pools and method body cache when running cold
+	 */
+	@Setup(Level.Invocation)
+	public void prepare() {
+		BenchmarkSupport.prepare(pool);
+	}
+
+	/**
+	 * Restores the target classes after each invocation
+	 */
+	@TearDown(Level.Invocation)
+	public void restore() {
+		retransformer.restore(generated.classes());
+	}
+
+	/**
+	 * Grafts the mock class into every target class
+	 */
+	@Benchmark
+	public void mockTransform() {
+		retransformer.transformAll(mocks);
+	}
+
+	/**
+	 * Replaces the target method in every target class from source
+	 */
+	@Benchmark
+	public void sourceTransform() {
+		retransformer.transformAll(sources, true);
+	}
+}
@@ -250,6 +250,14 @@ public class AnnotationBuilder {
 		this.elementTypes = Collections.unmodifiableSet(ets);
 	}
 	
+	/**
+	 * Returns the annotation type this builder builds
+	 * @return the annotation type
+	 */
+	public Class<? extends Annotation> getAnnotationClass() {
+		return annotationClass;
+	}
+	
 	/**
 	 * Applies the built annotation to the passed CtClass instances
 	 * @param clazzes The CtClasses to apply the annotation to
@@ -260,12 +268,15 @@ public class AnnotationBuilder {
 			final ClassFile classFile = clazz.getClassFile();
 			final ConstPool constPool = classFile.getConstPool();
 			final javassist.bytecode.annotation.Annotation annot = new javassist.bytecode.annotation.Annotation(this.annotationClass.getName(), constPool);
-			final AnnotationsAttribute attr = new AnnotationsAttribute(constPool, visible ? AnnotationsAttribute.visibleTag : AnnotationsAttribute.invisibleTag);
+			final String tag = visible ? AnnotationsAttribute.visibleTag : AnnotationsAttribute.invisibleTag;
+			// add to the class's existing annotations rather than replacing them
+			final AnnotationsAttribute existing = (AnnotationsAttribute)classFile.getAttribute(tag);
+			final AnnotationsAttribute attr = existing!=null ? existing : new AnnotationsAttribute(constPool, tag);
 			for(Map.Entry<String, MemberValueFactory> entry: members.entrySet()) {
 				annot.addMemberValue(entry.getKey(), entry.getValue().forValue(constPool));
 			}
 			attr.addAnnotation(annot);
-			classFile.addAttribute(attr);
+			if(existing==null) classFile.addAttribute(attr);
 		}		
 	}
 	
@@ -537,7 +548,7 @@ public class AnnotationBuilder {
       members.put(name, new MemberValueFactory() {
           @Override
           public MemberValue forValue(final ConstPool pool) {
-              return new IntegerMemberValue(value, pool);
+              return new IntegerMemberValue(pool, value);
           }
       });
       return this;
@@ -558,7 +569,7 @@ public class AnnotationBuilder {
                 final ArrayMemberValue amv = new ArrayMemberValue(pool);
                 final MemberValue[] mvs = new MemberValue[value.length];                
                 for(int i = 0; i < value.length; i++) {
-                    mvs[i] = new IntegerMemberValue(value[i], pool);
+                    mvs[i] = new IntegerMemberValue(pool, value[i]);
                 }
                 amv.setValue(mvs);                        
                 return amv;
@@ -936,7 +947,7 @@ public class AnnotationBuilder {
 		 */
 		public boolean match(final String name, final Class<?> valueType) {
 			if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The member name was null or empty");
-			if(value==null) throw new IllegalArgumentException("The member type was null");
+			if(valueType==null) throw new IllegalArgumentException("The member type was null");
 			if(!this.name.equals(name)) return false;			
 			return (valueType.equals(this.type) || valueType.equals(this.otype));
 		}
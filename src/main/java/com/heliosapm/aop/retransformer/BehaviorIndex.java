@@ -0,0 +1,267 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+
+/**
+ * <p>Title: BehaviorIndex</p>
+ * <p>Description: An immutable index of the behaviors visible from a {@link CtClass}, mapping method names and
+ * <b><code>name + descriptor</code></b> keys to the declared or inherited method, which carries its declaring class.
+ * Built once per CtClass by walking the superclass chain and the implemented interfaces, and cached by the {@link ClassPoolCache}
+ * until a class in the indexed hierarchy is detached from its pool.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.BehaviorIndex</code></p>
+ */
+
+public class BehaviorIndex {
+	/** The name of the indexed class */
+	private final String className;
+	/** The names of all the classes and interfaces in the indexed hierarchy */
+	private final Set<String> hierarchy;
+	/** The first method declared by the indexed class keyed by name */
+	private final Map<String, CtMethod> declared = new HashMap<String, CtMethod>();
+	/** The method declared by the nearest superclass keyed by name */
+	private final Map<String, CtMethod> inherited = new HashMap<String, CtMethod>();
+	/** The names of inherited methods that are overloaded in the declaring superclass's visible methods */
+	private final Set<String> ambiguous = new HashSet<String>();
+	/** The nearest non-private method keyed by name, searching superclasses before interfaces */
+	private final Map<String, CtMethod> visible = new HashMap<String, CtMethod>();
+	/** The nearest method keyed by name and descriptor, searching superclasses before interfaces */
+	private final Map<String, CtMethod> byDescriptor = new HashMap<String, CtMethod>();
+	/** The declared constructors keyed by descriptor */
+	private final Map<String, CtConstructor> ctors = new HashMap<String, CtConstructor>();
+	/** The declared constructors in declaration order */
+	private final CtConstructor[] declaredCtors;
+	/** The public declared constructors in declaration order */
+	private final CtConstructor[] publicCtors;
+
+	/**
+	 * Creates a new BehaviorIndex
+	 * @param ct The CtClass to index
+	 */
+	public BehaviorIndex(final CtClass ct) {
+		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
+		className = ct.getName();
+		try {
+			final List<CtClass> chain = new ArrayList<CtClass>();
+			for(CtClass crnt = ct; crnt!=null; crnt = crnt.getSuperclass()) {
+				chain.add(crnt);
+			}
+			final Set<CtClass> interfaces = new LinkedHashSet<CtClass>();
+			for(CtClass crnt: chain) {
+				collectInterfaces(crnt, interfaces);
+			}
+			final Set<String> names = new HashSet<String>();
+			for(CtClass crnt: chain) names.add(crnt.getName());
+			for(CtClass iface: interfaces) names.add(iface.getName());
+			hierarchy = Collections.unmodifiableSet(names);
+			// name and descriptor lookups search the class chain nearest first, then the interfaces
+			for(CtClass crnt: chain) {
+				for(CtMethod m: crnt.getDeclaredMethods()) {
+					putIfAbsent(byDescriptor, m.getName() + m.getSignature(), m);
+					if(!Modifier.isPrivate(m.getModifiers())) putIfAbsent(visible, m.getName(), m);
+				}
+			}
+			final Map<String, Set<String>> visibleDescriptors = new HashMap<String, Set<String>>();
+			for(CtClass iface: interfaces) {
+				for(CtMethod m: iface.getDeclaredMethods()) {
+					putIfAbsent(byDescriptor, m.getName() + m.getSignature(), m);
+					putIfAbsent(visible, m.getName(), m);
+					addDescriptor(visibleDescriptors, m);
+				}
+			}
+			for(CtMethod m: ct.getDeclaredMethods()) {
+				putIfAbsent(declared, m.getName(), m);
+			}
+			// walk the superclasses down from the top, so the nearest declaring superclass wins,
+			// noting the names that are overloaded among the methods visible from it
+			for(int i = chain.size()-1; i > 0; i--) {
+				final CtMethod[] methods = chain.get(i).getDeclaredMethods();
+				for(CtMethod m: methods) {
+					if(!Modifier.isPrivate(m.getModifiers())) addDescriptor(visibleDescriptors, m);
+				}
+				final Set<String> levelNames = new HashSet<String>();
+				for(CtMethod m: methods) {
+					if(!levelNames.add(m.getName())) continue;
+					inherited.put(m.getName(), m);
+					final Set<String> descs = visibleDescriptors.get(m.getName());
+					if(descs!=null && descs.size() > 1) ambiguous.add(m.getName());
+					else ambiguous.remove(m.getName());
+				}
+			}
+			declaredCtors = ct.getDeclaredConstructors();
+			final List<CtConstructor> pub = new ArrayList<CtConstructor>(declaredCtors.length);
+			for(CtConstructor ctor: declaredCtors) {
+				ctors.put(ctor.getSignature(), ctor);
+				if(Modifier.isPublic(ctor.getModifiers())) pub.add(ctor);
+			}
+			publicCtors = pub.toArray(new CtConstructor[pub.size()]);
+		} catch (NotFoundException nfe) {
+			throw new RuntimeException("Failed to index the hierarchy of [" + className + "]", nfe);
+		}
+	}
+
+	/**
+	 * Adds the passed interface's super interfaces, depth first, to the passed set
+	 * @param ct The class or interface whose interfaces should be collected
+	 * @param interfaces The set to add to
+	 * @throws NotFoundException thrown if an interface cannot be found
+	 */
+	private static void collectInterfaces(final CtClass ct, final Set<CtClass> interfaces) throws NotFoundException {
+		for(CtClass iface: ct.getInterfaces()) {
+			if(interfaces.add(iface)) collectInterfaces(iface, interfaces);
+		}
+	}
+
+	/**
+	 * Puts the value into the map if the key is not already mapped
+	 * @param map The map to put into
+	 * @param key The key
+	 * @param value The value
+	 */
+	private static <V> void putIfAbsent(final Map<String, V> map, final String key, final V value) {
+		if(!map.containsKey(key)) map.put(key, value);
+	}
+
+	/**
+	 * Records the descriptor of the passed method against its name
+	 * @param descriptors The descriptors keyed by method name
+	 * @param m The method
+	 */
+	private static void addDescriptor(final Map<String, Set<String>> descriptors, final CtMethod m) {
+		Set<String> descs = descriptors.get(m.getName());
+		if(descs==null) {
+			descs = new HashSet<String>();
+			descriptors.put(m.getName(), descs);
+		}
+		descs.add(m.getSignature());
+	}
+
+	/**
+	 * Returns the first method with the passed name declared by the indexed class
+	 * @param name The method name
+	 * @return the method, or null if none is declared
+	 */
+	public CtMethod getDeclaredMethod(final String name) {
+		return declared.get(name);
+	}
+
+	/**
+	 * Returns the method with the passed name declared by the nearest superclass
+	 * @param name The method name
+	 * @return the inherited method, or null if no superclass declares one
+	 */
+	public CtMethod getInheritedMethod(final String name) {
+		return inherited.get(name);
+	}
+
+	/**
+	 * Indicates if the method returned by {@link #getInheritedMethod(String)} is overloaded among the methods visible from its declaring class
+	 * @param name The method name
+	 * @return true if a descriptor is required to resolve the inherited method, false otherwise
+	 */
+	public boolean isAmbiguous(final String name) {
+		return ambiguous.contains(name);
+	}
+
+	/**
+	 * Returns the nearest non-private method with the passed name, declared or inherited
+	 * @param name The method name
+	 * @return the method, or null if none is visible
+	 */
+	public CtMethod getVisibleMethod(final String name) {
+		return visible.get(name);
+	}
+
+	/**
+	 * Returns the nearest method with the passed name and descriptor, declared or inherited
+	 * @param name The method name
+	 * @param descriptor The method descriptor
+	 * @return the method, or null if none is found
+	 */
+	public CtMethod getMethod(final String name, final String descriptor) {
+		return byDescriptor.get(name + descriptor);
+	}
+
+	/**
+	 * Returns the declared constructor with the passed descriptor
+	 * @param descriptor The constructor descriptor
+	 * @return the constructor, or null if none is found
+	 */
+	public CtConstructor getConstructor(final String descriptor) {
+		return ctors.get(descriptor);
+	}
+
+	/**
+	 * Returns the declared constructors
+	 * @return the declared constructors
+	 */
+	public CtConstructor[] getDeclaredConstructors() {
+		return declaredCtors.clone();
+	}
+
+	/**
+	 * Returns the public declared constructors
+	 * @return the public constructors
+	 */
+	public CtConstructor[] getConstructors() {
+		return publicCtors.clone();
+	}
+
+	/**
+	 * Indicates if the passed class or interface is part of the indexed hierarchy
+	 * @param name The binary name of the class or interface
+	 * @return true if the named class or interface was indexed, false otherwise
+	 */
+	public boolean covers(final String name) {
+		return hierarchy.contains(name);
+	}
+
+	/**
+	 * Returns the name of the indexed class
+	 * @return the indexed class name
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("BehaviorIndex [class:%s, hierarchy:%s, methods:%s, ctors:%s]", className, hierarchy.size(), byDescriptor.size(), declaredCtors.length);
+	}
+}
@@ -0,0 +1,234 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Title: ClassLockStripes</p>
+ * <p>Description: A fixed set of locks striped by class identity (and therefore by class name and class loader),
+ * so transforms of unrelated classes can proceed concurrently while operations on the same class are ordered.
+ * Multiple classes are always locked in ascending stripe order so that batch operations cannot deadlock.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.ClassLockStripes</code></p>
+ */
+
+public class ClassLockStripes {
+	/** The system property name defining the number of lock stripes. Rounded up to a power of 2. */
+	public static final String STRIPES_PROP = "retransformer.lock.stripes";
+	/** The default number of lock stripes */
+	public static final int DEFAULT_STRIPES = 64;
+
+	/** The lock stripes */
+	private final ReentrantLock[] stripes;
+	/** The mask to map a hash to a stripe */
+	private final int mask;
+	/** The number of stripe acquisitions */
+	private final AtomicLong acquisitions = new AtomicLong(0L);
+	/** The number of stripe acquisitions that had to wait */
+	private final AtomicLong contended = new AtomicLong(0L);
+	/** The total time spent waiting for stripes in ns. */
+	private final AtomicLong waitTime = new AtomicLong(0L);
+	/** The maximum time spent waiting for a stripe in ns. */
+	private final AtomicLong maxWaitTime = new AtomicLong(0L);
+
+	/**
+	 * Creates a new ClassLockStripes with the number of stripes defined by the system property {@link #STRIPES_PROP}
+	 */
+	public ClassLockStripes() {
+		this(Integer.getInteger(STRIPES_PROP, DEFAULT_STRIPES));
+	}
+
+	/**
+	 * Creates a new ClassLockStripes
+	 * @param stripeCount The number of stripes. Rounded up to a power of 2.
+	 */
+	public ClassLockStripes(final int stripeCount) {
+		int size = 1;
+		while(size < stripeCount) size <<= 1;
+		stripes = new ReentrantLock[size];
+		for(int i = 0; i < size; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Locks the stripes for the passed classes
+	 * @param classes The classes to lock
+	 * @return the held stripes, which must be released in a finally block
+	 */
+	public Held lock(final Class<?>... classes) {
+		if(classes==null) throw new IllegalArgumentException("The passed class array was null");
+		return lock(Arrays.asList(classes));
+	}
+
+	/**
+	 * Locks the stripes for the passed classes
+	 * @param classes The classes to lock
+	 * @return the held stripes, which must be released in a finally block
+	 */
+	public Held lock(final Collection<Class<?>> classes) {
+		if(classes==null) throw new IllegalArgumentException("The passed class collection was null");
+		final TreeSet<Integer> indexes = new TreeSet<Integer>();
+		for(Class<?> clazz: classes) {
+			if(clazz!=null) indexes.add(stripeFor(clazz));
+		}
+		final int[] held = new int[indexes.size()];
+		int acquired = 0;
+		try {
+			for(Integer index: indexes) {
+				acquire(stripes[index]);
+				held[acquired++] = index;
+			}
+		} catch (RuntimeException rex) {
+			release(held, acquired);
+			throw rex;
+		}
+		return new Held(held);
+	}
+
+	/**
+	 * Returns the stripe index for the passed class
+	 * @param clazz The class to get the stripe for
+	 * @return the stripe index
+	 */
+	int stripeFor(final Class<?> clazz) {
+		int h = System.identityHashCode(clazz);
+		// spread the bits since identity hashes are not well distributed in the low bits
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & mask;
+	}
+
+	/**
+	 * Acquires the passed lock, recording any time spent waiting for it
+	 * @param lock The lock to acquire
+	 */
+	private void acquire(final ReentrantLock lock) {
+		acquisitions.incrementAndGet();
+		if(lock.tryLock()) return;
+		contended.incrementAndGet();
+		final long start = System.nanoTime();
+		lock.lock();
+		final long elapsed = System.nanoTime() - start;
+		waitTime.addAndGet(elapsed);
+		while(true) {
+			final long max = maxWaitTime.get();
+			if(elapsed <= max || maxWaitTime.compareAndSet(max, elapsed)) break;
+		}
+	}
+
+	/**
+	 * Releases the first <code>count</code> stripes in the passed index array in reverse order
+	 * @param held The indexes of the held stripes
+	 * @param count The number of held stripes
+	 */
+	private void release(final int[] held, final int count) {
+		for(int i = count - 1; i >= 0; i--) {
+			stripes[held[i]].unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of lock stripes
+	 * @return the number of lock stripes
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Returns the number of stripe acquisitions
+	 * @return the number of stripe acquisitions
+	 */
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+
+	/**
+	 * Returns the number of stripe acquisitions that had to wait
+	 * @return the number of contended acquisitions
+	 */
+	public long getContended() {
+		return contended.get();
+	}
+
+	/**
+	 * Returns the total time spent waiting for stripes in ns.
+	 * @return the total wait time in ns.
+	 */
+	public long getWaitTime() {
+		return waitTime.get();
+	}
+
+	/**
+	 * Returns the maximum time spent waiting for a stripe in ns.
+	 * @return the maximum wait time in ns.
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("ClassLockStripes [stripes:%s, acquisitions:%s, contended:%s, waitTimeNs:%s, maxWaitTimeNs:%s]", stripes.length, getAcquisitions(), getContended(), getWaitTime(), getMaxWaitTime());
+	}
+
+	/**
+	 * <p>Title: Held</p>
+	 * <p>Description: A set of held lock stripes</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassLockStripes.Held</code></p>
+	 */
+	public final class Held {
+		/** The indexes of the held stripes in acquisition order */
+		private final int[] held;
+		/** Indicates if the stripes have been released */
+		private boolean released = false;
+
+		/**
+		 * Creates a new Held
+		 * @param held The indexes of the held stripes in acquisition order
+		 */
+		private Held(final int[] held) {
+			this.held = held;
+		}
+
+		/**
+		 * Releases the held stripes. Subsequent calls are ignored.
+		 */
+		public void release() {
+			if(released) return;
+			released = true;
+			ClassLockStripes.this.release(held, held.length);
+		}
+	}
+
+}
@@ -0,0 +1,444 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+/**
+ * <p>Title: ClassPoolCache</p>
+ * <p>Description: Shares one {@link ClassPool} per {@link ClassLoader} so that class files are not re-read and re-parsed
+ * on every transform. Pools are held weakly by class loader so that class loaders can still be unloaded, and each pool
+ * caps the number of cached {@link CtClass}es it holds, detaching the least recently used when the cap is exceeded.
+ * A {@link BehaviorIndex} is cached on the pool entry of each CtClass it is requested for, so it is evicted with the CtClass,
+ * and is dropped when any class in its hierarchy is detached.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.ClassPoolCache</code></p>
+ */
+
+public class ClassPoolCache {
+	/** The singleton instance */
+	private static volatile ClassPoolCache instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The system property name defining the maximum number of CtClasses cached in each pool */
+	public static final String MAX_SIZE_PROP = "retransformer.classpool.maxsize";
+	/** The default maximum number of CtClasses cached in each pool */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	/** The maximum number of CtClasses cached in each pool */
+	private final int maxSize;
+	/** The pool for the system class path, also the parent of all class loader pools */
+	private final CachingClassPool systemPool;
+	/** The class loader pools, keyed weakly by class loader */
+	private final Map<ClassLoader, CachingClassPool> pools = new WeakHashMap<ClassLoader, CachingClassPool>();
+	/** The number of CtClass lookups served from a pool's cache */
+	private final AtomicLong hits = new AtomicLong(0L);
+	/** The number of CtClass lookups that missed the cache and had to be read from a class file */
+	private final AtomicLong misses = new AtomicLong(0L);
+	/** The number of CtClasses evicted from a pool's cache */
+	private final AtomicLong evictions = new AtomicLong(0L);
+
+	/**
+	 * Returns the ClassPoolCache singleton instance
+	 * @return the ClassPoolCache singleton instance
+	 */
+	public static ClassPoolCache getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new ClassPoolCache();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new ClassPoolCache
+	 */
+	private ClassPoolCache() {
+		int size = DEFAULT_MAX_SIZE;
+		try {
+			size = Integer.parseInt(System.getProperty(MAX_SIZE_PROP, "" + DEFAULT_MAX_SIZE).trim());
+		} catch (Exception ex) {
+			size = DEFAULT_MAX_SIZE;
+		}
+		maxSize = size < 1 ? DEFAULT_MAX_SIZE : size;
+		systemPool = new CachingClassPool(null);
+		systemPool.appendSystemPath();
+	}
+
+	/**
+	 * Returns the shared ClassPool for the passed class loader
+	 * @param classLoader The class loader to get the pool for. The system pool is returned if null.
+	 * @return the shared ClassPool
+	 */
+	public ClassPool getClassPool(final ClassLoader classLoader) {
+		if(classLoader==null) return systemPool;
+		synchronized(pools) {
+			CachingClassPool pool = pools.get(classLoader);
+			if(pool==null) {
+				pool = new CachingClassPool(systemPool);
+				// LoaderClassPath only holds a weak reference to the class loader
+				pool.appendClassPath(new LoaderClassPath(classLoader));
+				pools.put(classLoader, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Returns the shared ClassPool for the class loader of the passed class
+	 * @param clazz The class to get the pool for
+	 * @return the shared ClassPool
+	 */
+	public ClassPool getClassPool(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		return getClassPool(clazz.getClassLoader());
+	}
+
+	/**
+	 * Returns the behavior index for the passed CtClass, building it on first request and caching it while the CtClass is cached in its pool.
+	 * An index for a CtClass that is not cached in a shared pool is built on every request.
+	 * @param ct The CtClass to get the index for
+	 * @return the behavior index
+	 */
+	public BehaviorIndex getBehaviorIndex(final CtClass ct) {
+		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
+		final ClassPool pool = ct.getClassPool();
+		if(pool instanceof CachingClassPool) {
+			return ((CachingClassPool)pool).getBehaviorIndex(ct);
+		}
+		return new BehaviorIndex(ct);
+	}
+
+	/**
+	 * Removes the named CtClass from the pool for the passed class loader and its parent, so the next lookup reads it from the class file again.
+	 * Any behavior indexes covering the class are dropped. Should be called once a CtClass has been modified, or the class redefined,
+	 * so that the modified version is never handed out again.
+	 * @param classLoader The class loader whose pool should be cleared of the class
+	 * @param className The binary name of the class to detach
+	 */
+	public void detach(final ClassLoader classLoader, final String className) {
+		if(className==null) throw new IllegalArgumentException("The passed class name was null");
+		final ClassPool pool = getClassPool(classLoader);
+		((CachingClassPool)pool).uncache(className);
+		if(pool!=systemPool) systemPool.uncache(className);
+		for(CachingClassPool cached: allPools()) {
+			cached.dropIndexes(className);
+		}
+	}
+
+	/**
+	 * Returns the system pool and all the class loader pools
+	 * @return a list of all the pools
+	 */
+	private List<CachingClassPool> allPools() {
+		final List<CachingClassPool> all = new ArrayList<CachingClassPool>();
+		all.add(systemPool);
+		synchronized(pools) {
+			all.addAll(pools.values());
+		}
+		return all;
+	}
+
+	/**
+	 * Clears all cached CtClasses from all pools
+	 */
+	public void clear() {
+		final List<CachingClassPool> all = new ArrayList<CachingClassPool>();
+		synchronized(pools) {
+			all.addAll(pools.values());
+			pools.clear();
+		}
+		for(CachingClassPool pool: all) {
+			pool.clearCache();
+		}
+		systemPool.clearCache();
+	}
+
+	/**
+	 * Returns the number of CtClass lookups served from a pool's cache
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of CtClass lookups that missed the cache and had to be read from a class file.
+	 * CtClasses made from supplied class bytes are not lookups, so they are not counted.
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of CtClasses evicted from a pool's cache
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of class loader pools currently held
+	 * @return the number of class loader pools
+	 */
+	public int getPoolCount() {
+		synchronized(pools) {
+			return pools.size();
+		}
+	}
+
+	/**
+	 * Returns the total number of CtClasses cached across all pools
+	 * @return the total number of cached CtClasses
+	 */
+	public int getCachedClassCount() {
+		int total = systemPool.cachedCount();
+		synchronized(pools) {
+			for(CachingClassPool pool: pools.values()) {
+				total += pool.cachedCount();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the number of cached behavior indexes
+	 * @return the number of behavior indexes
+	 */
+	public int getIndexCount() {
+		int total = 0;
+		for(CachingClassPool pool: allPools()) {
+			total += pool.indexCount();
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the maximum number of CtClasses cached in each pool
+	 * @return the maximum number of CtClasses cached in each pool
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("ClassPoolCache [pools:%s, classes:%s, hits:%s, misses:%s, evictions:%s]", getPoolCount(), getCachedClassCount(), getHits(), getMisses(), getEvictions());
+	}
+
+	/**
+	 * <p>Title: CachingClassPool</p>
+	 * <p>Description: A ClassPool that tracks its cached CtClasses and their behavior indexes in access order and detaches the eldest when the cap is exceeded</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassPoolCache.CachingClassPool</code></p>
+	 */
+	private class CachingClassPool extends ClassPool {
+		/** The cached class entries keyed by class name in access order */
+		private final LinkedHashMap<String, PooledClass> lru = new LinkedHashMap<String, PooledClass>(64, 0.75f, true);
+
+		/**
+		 * Creates a new CachingClassPool
+		 * @param parent The parent pool, or null for none
+		 */
+		CachingClassPool(final ClassPool parent) {
+			super(parent);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see javassist.ClassPool#getCached(java.lang.String)
+		 */
+		@Override
+		protected CtClass getCached(final String classname) {
+			final CtClass ct = super.getCached(classname);
+			if(ct!=null) {
+				synchronized(lru) {
+					if(lru.get(classname)!=null) hits.incrementAndGet();
+				}
+			}
+			return ct;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * <p>Only called by a <b><code>get</code></b> that missed the cache, so classes made from supplied bytes are not counted as misses.</p>
+		 * @see javassist.ClassPool#createCtClass(java.lang.String, boolean)
+		 */
+		@Override
+		protected CtClass createCtClass(final String classname, final boolean useCache) {
+			final CtClass ct = super.createCtClass(classname, useCache);
+			if(ct!=null) misses.incrementAndGet();
+			return ct;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see javassist.ClassPool#cacheCtClass(java.lang.String, javassist.CtClass, boolean)
+		 */
+		@Override
+		protected void cacheCtClass(final String classname, final CtClass c, final boolean dynamic) {
+			super.cacheCtClass(classname, c, dynamic);
+			synchronized(lru) {
+				lru.put(classname, new PooledClass(c));
+				final Iterator<String> iter = lru.keySet().iterator();
+				while(lru.size() > maxSize && iter.hasNext()) {
+					final String eldest = iter.next();
+					iter.remove();
+					super.removeCached(eldest);
+					evictions.incrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see javassist.ClassPool#removeCached(java.lang.String)
+		 */
+		@Override
+		protected CtClass removeCached(final String classname) {
+			synchronized(lru) {
+				lru.remove(classname);
+			}
+			return super.removeCached(classname);
+		}
+
+		/**
+		 * Returns the behavior index cached on the entry of the passed CtClass, building it on first request.
+		 * If the CtClass is no longer the one cached under its name, the index is built but not cached.
+		 * @param ct The CtClass to get the index for
+		 * @return the behavior index
+		 */
+		BehaviorIndex getBehaviorIndex(final CtClass ct) {
+			PooledClass pooled;
+			synchronized(lru) {
+				pooled = lru.get(ct.getName());
+				if(pooled!=null && pooled.ct!=ct) pooled = null;
+				if(pooled!=null && pooled.index!=null) return pooled.index;
+			}
+			// built outside the lock, since indexing the hierarchy takes the pool lock, which is held around getCached
+			final BehaviorIndex built = new BehaviorIndex(ct);
+			if(pooled==null) return built;
+			synchronized(lru) {
+				if(pooled.index==null) pooled.index = built;
+				return pooled.index;
+			}
+		}
+
+		/**
+		 * Drops the cached behavior indexes that cover the named class
+		 * @param classname The name of the class whose covering indexes should be dropped
+		 */
+		void dropIndexes(final String classname) {
+			synchronized(lru) {
+				for(PooledClass pooled: lru.values()) {
+					if(pooled.index!=null && pooled.index.covers(classname)) pooled.index = null;
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of behavior indexes cached in this pool
+		 * @return the number of cached behavior indexes
+		 */
+		int indexCount() {
+			int count = 0;
+			synchronized(lru) {
+				for(PooledClass pooled: lru.values()) {
+					if(pooled.index!=null) count++;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Removes the named class from this pool's cache
+		 * @param classname The name of the class to remove
+		 */
+		void uncache(final String classname) {
+			removeCached(classname);
+		}
+
+		/**
+		 * Removes all the tracked classes from this pool's cache
+		 */
+		void clearCache() {
+			synchronized(lru) {
+				for(String classname: lru.keySet()) {
+					super.removeCached(classname);
+				}
+				lru.clear();
+			}
+		}
+
+		/**
+		 * Returns the number of tracked classes in this pool's cache
+		 * @return the number of cached classes
+		 */
+		int cachedCount() {
+			synchronized(lru) {
+				return lru.size();
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: PooledClass</p>
+	 * <p>Description: A pool cache entry holding a CtClass and, once requested, its behavior index</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassPoolCache.PooledClass</code></p>
+	 */
+	private static final class PooledClass {
+		/** The cached CtClass */
+		final CtClass ct;
+		/** The behavior index for the CtClass, or null if it has not been requested */
+		BehaviorIndex index = null;
+
+		/**
+		 * Creates a new PooledClass
+		 * @param ct The cached CtClass
+		 */
+		PooledClass(final CtClass ct) {
+			this.ct = ct;
+		}
+	}
+
+}
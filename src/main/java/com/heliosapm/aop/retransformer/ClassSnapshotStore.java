@@ -0,0 +1,441 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Title: ClassSnapshotStore</p>
+ * <p>Description: Holds the pristine class file bytes of each class the first time it passes through one of the
+ * retransformer's transformers, so that a restore can redefine the class directly from the saved bytes instead of
+ * running another retransform. Snapshots are keyed weakly by class and can be held on heap, compressed, or off heap.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.ClassSnapshotStore</code></p>
+ */
+
+public class ClassSnapshotStore {
+	/** The system property name defining the snapshot backing. One of the {@link Backing} names. */
+	public static final String BACKING_PROP = "retransformer.snapshot.backing";
+	/** The default snapshot backing */
+	public static final Backing DEFAULT_BACKING = Backing.HEAP;
+
+	/** The snapshot backing */
+	private final Backing backing;
+	/** The snapshots keyed by the class they were captured for */
+	private final Map<Class<?>, Snapshot> snapshots = new WeakHashMap<Class<?>, Snapshot>();
+	/** The total number of original class bytes captured */
+	private final AtomicLong originalBytes = new AtomicLong(0L);
+	/** The total number of bytes held by the snapshots */
+	private final AtomicLong storedBytes = new AtomicLong(0L);
+	/** The number of classes restored from snapshots */
+	private final AtomicLong restoreCount = new AtomicLong(0L);
+	/** The total elapsed time of snapshot restores in ns. */
+	private final AtomicLong restoreTime = new AtomicLong(0L);
+	/** The elapsed time of the last snapshot restore in ns. */
+	private final AtomicLong lastRestoreTime = new AtomicLong(-1L);
+	/** The maximum elapsed time of a snapshot restore in ns. */
+	private final AtomicLong maxRestoreTime = new AtomicLong(-1L);
+
+	/**
+	 * <p>Title: Backing</p>
+	 * <p>Description: Enumerates the storage options for class snapshots</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassSnapshotStore.Backing</code></p>
+	 */
+	public static enum Backing {
+		/** Snapshots are held as plain byte arrays */
+		HEAP,
+		/** Snapshots are deflated and held as byte arrays */
+		COMPRESSED,
+		/** Snapshots are held in direct byte buffers */
+		OFFHEAP;
+
+		/**
+		 * Decodes the passed name to a Backing, returning the default if the name is null or invalid
+		 * @param name The name to decode
+		 * @return the decoded Backing
+		 */
+		public static Backing decode(final String name) {
+			if(name==null || name.trim().isEmpty()) return DEFAULT_BACKING;
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (Exception ex) {
+				return DEFAULT_BACKING;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new ClassSnapshotStore with the backing defined by the system property {@link #BACKING_PROP}
+	 */
+	public ClassSnapshotStore() {
+		this(Backing.decode(System.getProperty(BACKING_PROP)));
+	}
+
+	/**
+	 * Creates a new ClassSnapshotStore
+	 * @param backing The snapshot backing
+	 */
+	public ClassSnapshotStore(final Backing backing) {
+		this.backing = backing==null ? DEFAULT_BACKING : backing;
+	}
+
+	/**
+	 * Captures the passed class bytes as the pristine snapshot of the passed class if one has not already been captured
+	 * @param clazz The class the bytes are for
+	 * @param classfileBuffer The pristine class bytes
+	 * @return true if the snapshot was captured, false if the class already had one
+	 */
+	public boolean capture(final Class<?> clazz, final byte[] classfileBuffer) {
+		if(clazz==null || classfileBuffer==null) return false;
+		synchronized(snapshots) {
+			if(snapshots.containsKey(clazz)) return false;
+			final Snapshot snapshot = newSnapshot(classfileBuffer);
+			snapshots.put(clazz, snapshot);
+			originalBytes.addAndGet(classfileBuffer.length);
+			storedBytes.addAndGet(snapshot.storedSize());
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the pristine class bytes captured for the passed class
+	 * @param clazz The class to get the bytes for
+	 * @return the pristine class bytes or null if none were captured
+	 */
+	public byte[] get(final Class<?> clazz) {
+		if(clazz==null) return null;
+		final Snapshot snapshot;
+		synchronized(snapshots) {
+			snapshot = snapshots.get(clazz);
+		}
+		return snapshot==null ? null : snapshot.getBytes();
+	}
+
+	/**
+	 * Indicates if a snapshot has been captured for the passed class
+	 * @param clazz The class to test for
+	 * @return true if a snapshot has been captured, false otherwise
+	 */
+	public boolean contains(final Class<?> clazz) {
+		if(clazz==null) return false;
+		synchronized(snapshots) {
+			return snapshots.containsKey(clazz);
+		}
+	}
+
+	/**
+	 * Discards the snapshot for the passed class
+	 * @param clazz The class to discard the snapshot for
+	 * @return true if a snapshot was discarded, false otherwise
+	 */
+	public boolean remove(final Class<?> clazz) {
+		if(clazz==null) return false;
+		final Snapshot snapshot;
+		synchronized(snapshots) {
+			snapshot = snapshots.remove(clazz);
+		}
+		if(snapshot==null) return false;
+		originalBytes.addAndGet(-snapshot.originalSize());
+		storedBytes.addAndGet(-snapshot.storedSize());
+		return true;
+	}
+
+	/**
+	 * Records a restore from snapshots
+	 * @param classCount The number of classes restored
+	 * @param elapsedNs The elapsed time of the restore in ns.
+	 */
+	void restored(final int classCount, final long elapsedNs) {
+		restoreCount.addAndGet(classCount);
+		restoreTime.addAndGet(elapsedNs);
+		lastRestoreTime.set(elapsedNs);
+		while(true) {
+			final long max = maxRestoreTime.get();
+			if(elapsedNs <= max || maxRestoreTime.compareAndSet(max, elapsedNs)) break;
+		}
+	}
+
+	/**
+	 * Returns the snapshot backing
+	 * @return the snapshot backing
+	 */
+	public Backing getBacking() {
+		return backing;
+	}
+
+	/**
+	 * Returns the number of snapshots held
+	 * @return the number of snapshots held
+	 */
+	public int size() {
+		synchronized(snapshots) {
+			return snapshots.size();
+		}
+	}
+
+	/**
+	 * Returns the total number of original class bytes captured
+	 * @return the total number of original class bytes captured
+	 */
+	public long getOriginalBytes() {
+		return originalBytes.get();
+	}
+
+	/**
+	 * Returns the total number of bytes held by the snapshots
+	 * @return the total number of bytes held by the snapshots
+	 */
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	/**
+	 * Returns the number of classes restored from snapshots
+	 * @return the number of classes restored from snapshots
+	 */
+	public long getRestoreCount() {
+		return restoreCount.get();
+	}
+
+	/**
+	 * Returns the total elapsed time of snapshot restores in ns.
+	 * @return the total elapsed time of snapshot restores in ns.
+	 */
+	public long getRestoreTime() {
+		return restoreTime.get();
+	}
+
+	/**
+	 * Returns the elapsed time of the last snapshot restore in ns.
+	 * @return the elapsed time of the last snapshot restore in ns. or -1 if no restores have occurred
+	 */
+	public long getLastRestoreTime() {
+		return lastRestoreTime.get();
+	}
+
+	/**
+	 * Returns the maximum elapsed time of a snapshot restore in ns.
+	 * @return the maximum elapsed time of a snapshot restore in ns. or -1 if no restores have occurred
+	 */
+	public long getMaxRestoreTime() {
+		return maxRestoreTime.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("ClassSnapshotStore [backing:%s, snapshots:%s, originalBytes:%s, storedBytes:%s, restores:%s]", backing, size(), getOriginalBytes(), getStoredBytes(), getRestoreCount());
+	}
+
+	/**
+	 * Creates a new snapshot for the passed bytes using this store's backing
+	 * @param bytes The bytes to snapshot
+	 * @return the new snapshot
+	 */
+	private Snapshot newSnapshot(final byte[] bytes) {
+		switch(backing) {
+			case COMPRESSED:
+				return new CompressedSnapshot(bytes);
+			case OFFHEAP:
+				return new OffHeapSnapshot(bytes);
+			default:
+				return new HeapSnapshot(bytes);
+		}
+	}
+
+	/**
+	 * <p>Title: Snapshot</p>
+	 * <p>Description: Defines a stored class snapshot</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassSnapshotStore.Snapshot</code></p>
+	 */
+	private static interface Snapshot {
+		/**
+		 * Returns a copy of the snapshot bytes
+		 * @return the snapshot bytes
+		 */
+		public byte[] getBytes();
+
+		/**
+		 * Returns the size of the original class bytes
+		 * @return the size of the original class bytes
+		 */
+		public int originalSize();
+
+		/**
+		 * Returns the number of bytes held by this snapshot
+		 * @return the number of bytes held by this snapshot
+		 */
+		public int storedSize();
+	}
+
+	/**
+	 * <p>Title: HeapSnapshot</p>
+	 * <p>Description: A snapshot held as a plain byte array</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassSnapshotStore.HeapSnapshot</code></p>
+	 */
+	private static class HeapSnapshot implements Snapshot {
+		/** The snapshot bytes */
+		private final byte[] bytes;
+
+		/**
+		 * Creates a new HeapSnapshot
+		 * @param bytes The bytes to snapshot
+		 */
+		HeapSnapshot(final byte[] bytes) {
+			this.bytes = bytes.clone();
+		}
+
+		@Override
+		public byte[] getBytes() {
+			return bytes.clone();
+		}
+
+		@Override
+		public int originalSize() {
+			return bytes.length;
+		}
+
+		@Override
+		public int storedSize() {
+			return bytes.length;
+		}
+	}
+
+	/**
+	 * <p>Title: CompressedSnapshot</p>
+	 * <p>Description: A snapshot held as a deflated byte array</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassSnapshotStore.CompressedSnapshot</code></p>
+	 */
+	private static class CompressedSnapshot implements Snapshot {
+		/** The deflated snapshot bytes */
+		private final byte[] compressed;
+		/** The size of the original bytes */
+		private final int size;
+
+		/**
+		 * Creates a new CompressedSnapshot
+		 * @param bytes The bytes to snapshot
+		 */
+		CompressedSnapshot(final byte[] bytes) {
+			size = bytes.length;
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(bytes);
+				deflater.finish();
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, bytes.length/2));
+				final byte[] buff = new byte[4096];
+				while(!deflater.finished()) {
+					final int len = deflater.deflate(buff);
+					baos.write(buff, 0, len);
+				}
+				compressed = baos.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		public byte[] getBytes() {
+			final Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed);
+				final byte[] bytes = new byte[size];
+				int offset = 0;
+				while(offset < size && !inflater.finished()) {
+					offset += inflater.inflate(bytes, offset, size - offset);
+				}
+				return bytes;
+			} catch (DataFormatException dex) {
+				throw new RuntimeException("Failed to inflate class snapshot", dex);
+			} finally {
+				inflater.end();
+			}
+		}
+
+		@Override
+		public int originalSize() {
+			return size;
+		}
+
+		@Override
+		public int storedSize() {
+			return compressed.length;
+		}
+	}
+
+	/**
+	 * <p>Title: OffHeapSnapshot</p>
+	 * <p>Description: A snapshot held in a direct byte buffer</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.ClassSnapshotStore.OffHeapSnapshot</code></p>
+	 */
+	private static class OffHeapSnapshot implements Snapshot {
+		/** The direct buffer holding the snapshot bytes */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Creates a new OffHeapSnapshot
+		 * @param bytes The bytes to snapshot
+		 */
+		OffHeapSnapshot(final byte[] bytes) {
+			buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes);
+			buffer.flip();
+		}
+
+		@Override
+		public byte[] getBytes() {
+			final ByteBuffer view = buffer.duplicate();
+			final byte[] bytes = new byte[view.remaining()];
+			view.get(bytes);
+			return bytes;
+		}
+
+		@Override
+		public int originalSize() {
+			return buffer.capacity();
+		}
+
+		@Override
+		public int storedSize() {
+			return buffer.capacity();
+		}
+	}
+
+}
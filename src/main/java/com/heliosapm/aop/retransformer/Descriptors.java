@@ -0,0 +1,128 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * <p>Title: Descriptors</p>
+ * <p>Description: Computes JVM type and method descriptors directly from {@link Class} objects.
+ * Type descriptors are memoized in a concurrent cache keyed weakly by class, so hot lookups are a cache read
+ * and a string concatenation and never touch Javassist.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.Descriptors</code></p>
+ */
+
+public class Descriptors {
+	/** The descriptors of the primitive types */
+	private static final Map<Class<?>, String> PRIMITIVES;
+	/** Type descriptors keyed weakly by class */
+	private static final LoadingCache<Class<?>, String> TYPE_DESCRIPTORS = CacheBuilder.newBuilder()
+		.weakKeys()
+		.build(new CacheLoader<Class<?>, String>() {
+			@Override
+			public String load(final Class<?> type) {
+				return computeTypeDescriptor(type);
+			}
+		});
+
+	static {
+		final Map<Class<?>, String> p = new HashMap<Class<?>, String>();
+		p.put(byte.class, "B");
+		p.put(boolean.class, "Z");
+		p.put(char.class, "C");
+		p.put(short.class, "S");
+		p.put(int.class, "I");
+		p.put(float.class, "F");
+		p.put(long.class, "J");
+		p.put(double.class, "D");
+		p.put(void.class, "V");
+		PRIMITIVES = Collections.unmodifiableMap(p);
+	}
+
+	/**
+	 * Returns the JVM descriptor for the passed type
+	 * @param type The type to get the descriptor for
+	 * @return the type descriptor
+	 */
+	public static String getTypeDescriptor(final Class<?> type) {
+		if(type==null) throw new IllegalArgumentException("The passed type was null");
+		final String p = PRIMITIVES.get(type);
+		if(p!=null) return p;
+		return TYPE_DESCRIPTORS.getUnchecked(type);
+	}
+
+	/**
+	 * Returns the JVM descriptor for a method with the passed return and parameter types
+	 * @param returnType The return type of the method. Assumed to be void if null.
+	 * @param paramTypes The parameter types of the method
+	 * @return the method descriptor
+	 */
+	public static String getMethodDescriptor(final Class<?> returnType, final Class<?>...paramTypes) {
+		final StringBuilder b = new StringBuilder(16 + paramTypes.length * 24).append('(');
+		for(int i = 0; i < paramTypes.length; i++) {
+			b.append(getTypeDescriptor(paramTypes[i]));
+		}
+		return b.append(')').append(returnType==null ? "V" : getTypeDescriptor(returnType)).toString();
+	}
+
+	/**
+	 * Returns the JVM descriptor for the passed method
+	 * @param method The method to get the descriptor for
+	 * @return the method descriptor
+	 */
+	public static String getMethodDescriptor(final Method method) {
+		if(method==null) throw new IllegalArgumentException("The passed method was null");
+		return getMethodDescriptor(method.getReturnType(), method.getParameterTypes());
+	}
+
+	/**
+	 * Returns the JVM descriptor for the passed constructor
+	 * @param ctor The constructor to get the descriptor for
+	 * @return the constructor descriptor
+	 */
+	public static String getConstructorDescriptor(final Constructor<?> ctor) {
+		if(ctor==null) throw new IllegalArgumentException("The passed constructor was null");
+		return getMethodDescriptor(void.class, ctor.getParameterTypes());
+	}
+
+	/**
+	 * Computes the descriptor for a non-primitive type
+	 * @param type The type to compute the descriptor for
+	 * @return the type descriptor
+	 */
+	private static String computeTypeDescriptor(final Class<?> type) {
+		if(type.isArray()) {
+			// array class names are already in descriptor form, bar the separators
+			return type.getName().replace('.', '/');
+		}
+		return "L" + type.getName().replace('.', '/') + ";";
+	}
+
+	private Descriptors() {}
+}
@@ -0,0 +1,205 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: DispatchingTransformer</p>
+ * <p>Description: A long lived {@link ClassFileTransformer}, registered once with the {@link java.lang.instrument.Instrumentation},
+ * that delegates to per-class transform directives keyed by the internal form name of the class being transformed.
+ * Directives are registered for the duration of a retransform and swapped atomically. Unrelated classes are dismissed
+ * with a single lock free map lookup. Same named classes from different class loaders can be transformed at the same time,
+ * so each name maps to an array of directives that is searched by class identity. A directive's failure is held on the directive, since the JVM silently discards
+ * exceptions thrown by transformers. The class bytes the JVM passes in for a dispatched class are captured as its
+ * restore snapshot here, before any directive runs, so snapshots only ever hold bytes the JVM actually supplied.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.DispatchingTransformer</code></p>
+ */
+
+class DispatchingTransformer implements ClassFileTransformer {
+	/** The active directives keyed by the internal form name of the class they transform, replaced as a whole on every change */
+	private final ConcurrentHashMap<String, Directive[]> directives = new ConcurrentHashMap<String, Directive[]>(64, 0.75f, 4);
+	/** The number of class file buffers dispatched to a directive */
+	private final AtomicLong dispatched = new AtomicLong(0L);
+	/** The store the pristine bytes of dispatched classes are captured into */
+	private final ClassSnapshotStore snapshots;
+
+	/**
+	 * Creates a new DispatchingTransformer
+	 * @param snapshots The store the pristine bytes of dispatched classes are captured into
+	 */
+	DispatchingTransformer(final ClassSnapshotStore snapshots) {
+		if(snapshots==null) throw new IllegalArgumentException("The passed snapshot store was null");
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.instrument.ClassFileTransformer#transform(java.lang.ClassLoader, java.lang.String, java.lang.Class, java.security.ProtectionDomain, byte[])
+	 */
+	@Override
+	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+		if(className==null || classBeingRedefined==null) return null;
+		final Directive directive = find(directives.get(className), classBeingRedefined);
+		// a same named class from another class loader has its own directive, or none
+		if(directive==null) return null;
+		dispatched.incrementAndGet();
+		snapshots.capture(classBeingRedefined, classfileBuffer);
+		try {
+			return directive.transformer.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+		} catch (Throwable t) {
+			// the JVM discards transformer exceptions, so keep it for the retransforming thread and leave the class unchanged
+			directive.failure = t;
+			return null;
+		}
+	}
+
+	/**
+	 * Registers a transform directive for the passed class, replacing any existing directive for the same class.
+	 * Directives for same named classes from other class loaders are kept.
+	 * @param target The class to transform
+	 * @param transformer The transformer to apply to the class
+	 * @return the registered directive, which should be passed to {@link #unregister(Directive)} when the transform completes
+	 */
+	Directive register(final Class<?> target, final ClassFileTransformer transformer) {
+		if(target==null) throw new IllegalArgumentException("The passed target class was null");
+		if(transformer==null) throw new IllegalArgumentException("The passed transformer was null");
+		final Directive directive = new Directive(Retransformer.internalForm(target.getName()), target, transformer);
+		while(true) {
+			final Directive[] current = directives.get(directive.internalName);
+			if(current==null) {
+				if(directives.putIfAbsent(directive.internalName, new Directive[]{directive})==null) return directive;
+				continue;
+			}
+			final Directive existing = find(current, target);
+			final Directive[] updated;
+			if(existing==null) {
+				updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = directive;
+			} else {
+				updated = current.clone();
+				updated[Arrays.asList(current).indexOf(existing)] = directive;
+			}
+			if(directives.replace(directive.internalName, current, updated)) return directive;
+		}
+	}
+
+	/**
+	 * Unregisters the passed directive if it is still the active directive for its class
+	 * @param directive The directive to unregister
+	 * @return true if the directive was unregistered, false if it had already been replaced or removed
+	 */
+	boolean unregister(final Directive directive) {
+		if(directive==null) return false;
+		while(true) {
+			final Directive[] current = directives.get(directive.internalName);
+			if(current==null) return false;
+			final int index = Arrays.asList(current).indexOf(directive);
+			if(index==-1) return false;
+			if(current.length==1) {
+				if(directives.remove(directive.internalName, current)) return true;
+				continue;
+			}
+			final Directive[] updated = new Directive[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, updated.length - index);
+			if(directives.replace(directive.internalName, current, updated)) return true;
+		}
+	}
+
+	/**
+	 * Finds the directive for the passed class
+	 * @param candidates The directives for the class's name, or null if there are none
+	 * @param target The class to find the directive for
+	 * @return the directive, or null if there is none for the class
+	 */
+	private static Directive find(final Directive[] candidates, final Class<?> target) {
+		if(candidates==null) return null;
+		for(Directive directive: candidates) {
+			if(directive.target==target) return directive;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of active directives
+	 * @return the number of active directives
+	 */
+	int size() {
+		int size = 0;
+		for(Directive[] named: directives.values()) {
+			size += named.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of class file buffers dispatched to a directive
+	 * @return the dispatch count
+	 */
+	long getDispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * <p>Title: Directive</p>
+	 * <p>Description: A transform directive binding a target class to the transformer to apply to it</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.DispatchingTransformer.Directive</code></p>
+	 */
+	static final class Directive {
+		/** The internal form name of the target class */
+		final String internalName;
+		/** The target class */
+		final Class<?> target;
+		/** The transformer to apply */
+		final ClassFileTransformer transformer;
+		/** The exception thrown by the transformer, or null if it has not failed */
+		volatile Throwable failure = null;
+
+		/**
+		 * Creates a new Directive
+		 * @param internalName The internal form name of the target class
+		 * @param target The target class
+		 * @param transformer The transformer to apply
+		 */
+		private Directive(final String internalName, final Class<?> target, final ClassFileTransformer transformer) {
+			this.internalName = internalName;
+			this.target = target;
+			this.transformer = transformer;
+		}
+
+		/**
+		 * Returns the exception thrown by the transformer
+		 * @return the failure, or null if the transformer has not failed
+		 */
+		Throwable getFailure() {
+			return failure;
+		}
+	}
+
+}
@@ -0,0 +1,298 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * <p>Title: InstrumentedRegistry</p>
+ * <p>Description: A concurrent registry of the classes currently instrumented by the {@link Retransformer}, keyed weakly by class.
+ * Transformers stage a record when they produce transformed bytes, and the record is committed once the JVM has accepted the
+ * retransform, so the instrumented state can be answered without reflecting on an {@link Instrumented} annotation.
+ * Each record carries a digest of the installed bytes so that retransforms which would install identical bytes can be skipped.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.InstrumentedRegistry</code></p>
+ */
+
+public class InstrumentedRegistry {
+	/** The singleton instance */
+	private static volatile InstrumentedRegistry instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The records of the instrumented classes */
+	private final ConcurrentMap<Class<?>, Record> records = CacheBuilder.newBuilder().weakKeys().<Class<?>, Record>build().asMap();
+	/** The records staged by transformers, awaiting the retransform */
+	private final ConcurrentMap<Class<?>, Record> pending = CacheBuilder.newBuilder().weakKeys().<Class<?>, Record>build().asMap();
+	/** The transform version counters per class, retained across restores */
+	private final ConcurrentMap<Class<?>, AtomicInteger> versions = CacheBuilder.newBuilder().weakKeys().<Class<?>, AtomicInteger>build().asMap();
+	/** The number of instrumented classes per class name */
+	private final ConcurrentHashMap<String, AtomicInteger> names = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Returns the InstrumentedRegistry singleton instance
+	 * @return the InstrumentedRegistry singleton instance
+	 */
+	public static InstrumentedRegistry getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new InstrumentedRegistry();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private InstrumentedRegistry() {}
+
+	/**
+	 * Stages a record for a class a transformer has produced transformed bytes for
+	 * @param clazz The transformed class
+	 * @param provider The name of the provider of the transform (the mock class name or <b><code>Source</code></b>)
+	 * @param originalSize The size of the original class bytes
+	 * @param transformed The transformed class bytes
+	 */
+	public void stage(final Class<?> clazz, final String provider, final int originalSize, final byte[] transformed) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		if(transformed==null) throw new IllegalArgumentException("The passed transformed bytes were null");
+		pending.put(clazz, new Record(clazz.getName(), provider, System.currentTimeMillis(), originalSize, transformed.length, MethodBodyCache.digest(transformed), 0));
+	}
+
+	/**
+	 * Indicates if the bytes staged for the passed class are identical to the bytes currently installed
+	 * @param clazz The class to test
+	 * @return true if the class is instrumented and the staged bytes have the same digest as the installed bytes, false otherwise
+	 */
+	public boolean isUnchanged(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		final Record staged = pending.get(clazz);
+		if(staged==null) return false;
+		final Record installed = records.get(clazz);
+		return installed!=null && installed.digest.equals(staged.digest);
+	}
+
+	/**
+	 * Commits the staged record for the passed class once its retransform has been accepted
+	 * @param clazz The retransformed class
+	 * @return the committed record, or null if no record was staged
+	 */
+	public Record commit(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		final Record staged = pending.remove(clazz);
+		if(staged==null) return null;
+		AtomicInteger version = versions.get(clazz);
+		if(version==null) {
+			final AtomicInteger v = new AtomicInteger(0);
+			version = versions.putIfAbsent(clazz, v);
+			if(version==null) version = v;
+		}
+		final Record record = new Record(staged.className, staged.provider, staged.timestamp, staged.originalSize, staged.transformedSize, staged.digest, version.incrementAndGet());
+		if(records.put(clazz, record)==null) {
+			AtomicInteger count = names.get(record.className);
+			if(count==null) {
+				final AtomicInteger c = new AtomicInteger(0);
+				count = names.putIfAbsent(record.className, c);
+				if(count==null) count = c;
+			}
+			count.incrementAndGet();
+		}
+		return record;
+	}
+
+	/**
+	 * Discards the staged record for the passed class after its retransform failed
+	 * @param clazz The class that failed to retransform
+	 */
+	public void discard(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		pending.remove(clazz);
+	}
+
+	/**
+	 * Removes the record for the passed class when it is restored
+	 * @param clazz The restored class
+	 * @return the removed record, or null if the class was not instrumented
+	 */
+	public Record remove(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		final Record record = records.remove(clazz);
+		if(record!=null) {
+			final AtomicInteger count = names.get(record.className);
+			if(count!=null && count.decrementAndGet()<=0) {
+				names.remove(record.className, count);
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * Indicates if the passed class is instrumented
+	 * @param clazz The class to test
+	 * @return true if the class is instrumented, false otherwise
+	 */
+	public boolean isInstrumented(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		return records.containsKey(clazz);
+	}
+
+	/**
+	 * Indicates if any class with the passed name is instrumented, in any class loader
+	 * @param className The binary name of the class to test
+	 * @return true if a class with the passed name is instrumented, false otherwise
+	 */
+	public boolean isInstrumented(final String className) {
+		if(className==null) throw new IllegalArgumentException("The passed class name was null");
+		final AtomicInteger count = names.get(className);
+		return count!=null && count.get() > 0;
+	}
+
+	/**
+	 * Returns the record for the passed class
+	 * @param clazz The class to get the record for
+	 * @return the record, or null if the class is not instrumented
+	 */
+	public Record get(final Class<?> clazz) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		return records.get(clazz);
+	}
+
+	/**
+	 * Returns the number of instrumented classes
+	 * @return the number of instrumented classes
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * <p>Title: Record</p>
+	 * <p>Description: The immutable record of an instrumented class</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.InstrumentedRegistry.Record</code></p>
+	 */
+	public static final class Record {
+		/** The binary name of the instrumented class */
+		private final String className;
+		/** The name of the provider of the transform */
+		private final String provider;
+		/** The timestamp of the transform */
+		private final long timestamp;
+		/** The size of the original class bytes */
+		private final int originalSize;
+		/** The size of the transformed class bytes */
+		private final int transformedSize;
+		/** The digest of the transformed class bytes */
+		private final String digest;
+		/** The transform version of the class, incremented on every transform */
+		private final int version;
+
+		/**
+		 * Creates a new Record
+		 * @param className The binary name of the instrumented class
+		 * @param provider The name of the provider of the transform
+		 * @param timestamp The timestamp of the transform
+		 * @param originalSize The size of the original class bytes
+		 * @param transformedSize The size of the transformed class bytes
+		 * @param digest The digest of the transformed class bytes
+		 * @param version The transform version of the class
+		 */
+		private Record(final String className, final String provider, final long timestamp, final int originalSize, final int transformedSize, final String digest, final int version) {
+			this.className = className;
+			this.provider = provider;
+			this.timestamp = timestamp;
+			this.originalSize = originalSize;
+			this.transformedSize = transformedSize;
+			this.digest = digest;
+			this.version = version;
+		}
+
+		/**
+		 * Returns the binary name of the instrumented class
+		 * @return the class name
+		 */
+		public String getClassName() {
+			return className;
+		}
+
+		/**
+		 * Returns the name of the provider of the transform
+		 * @return the mock class name or <b><code>Source</code></b>
+		 */
+		public String getProvider() {
+			return provider;
+		}
+
+		/**
+		 * Returns the timestamp of the transform
+		 * @return the transform timestamp
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Returns the size of the original class bytes
+		 * @return the original size
+		 */
+		public int getOriginalSize() {
+			return originalSize;
+		}
+
+		/**
+		 * Returns the size of the transformed class bytes
+		 * @return the transformed size
+		 */
+		public int getTransformedSize() {
+			return transformedSize;
+		}
+
+		/**
+		 * Returns the hex encoded digest of the transformed class bytes
+		 * @return the transformed bytes digest
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * Returns the transform version of the class, incremented on every transform
+		 * @return the transform version
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return String.format("Instrumented [class:%s, provider:%s, time:%s, version:%s, bytes:%s->%s]", className, provider, new Date(timestamp), version, originalSize, transformedSize);
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * <p>Title: MethodBodyCache</p>
+ * <p>Description: Caches compiled method bodies so that applying the same source to the same behavior
+ * again splices the previously compiled {@link CodeAttribute} (with its exception table and stack maps) into the
+ * target behavior instead of running the Javassist compiler. Entries are keyed by the {@link #shapeDigest(CtClass, boolean) shape}
+ * of the declaring class, the behavior name and descriptor, and the digest of the source, and are held in a bounded LRU.
+ * The shape leaves out the class's own name, so a body compiled for one class is reused, renamed, for every other class of the same shape.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.MethodBodyCache</code></p>
+ */
+
+public class MethodBodyCache {
+	/** The singleton instance */
+	private static volatile MethodBodyCache instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The system property name defining the maximum number of cached method bodies */
+	public static final String MAX_SIZE_PROP = "retransformer.bodycache.maxsize";
+	/** The default maximum number of cached method bodies */
+	public static final int DEFAULT_MAX_SIZE = 512;
+	/** The digest algorithm used for class bytes and source */
+	public static final String DIGEST_ALGORITHM = "SHA-1";
+
+	/** The UTF-8 charset for digesting source */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Hex digits for encoding digests */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	/** The placeholder standing in for the declaring class's own name in shape and code digests */
+	private static final String SELF = "*";
+	/** The method type constant tag, which this Javassist version does not define */
+	private static final int CONST_MethodType = 16;
+	/** The invoke dynamic constant tag, which this Javassist version does not define */
+	private static final int CONST_InvokeDynamic = 18;
+
+	/** The maximum number of cached method bodies */
+	private final int maxSize;
+	/** The cached method bodies in access order */
+	private final LinkedHashMap<Key, CompiledBody> bodies = new LinkedHashMap<Key, CompiledBody>(64, 0.75f, true);
+	/** The number of bodies spliced from the cache */
+	private final AtomicLong hits = new AtomicLong(0L);
+	/** The number of lookups that required compilation */
+	private final AtomicLong misses = new AtomicLong(0L);
+	/** The approximate number of bytes held by the cached bodies */
+	private final AtomicLong bytesHeld = new AtomicLong(0L);
+
+	/**
+	 * Returns the MethodBodyCache singleton instance
+	 * @return the MethodBodyCache singleton instance
+	 */
+	public static MethodBodyCache getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new MethodBodyCache();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new MethodBodyCache
+	 */
+	private MethodBodyCache() {
+		int size = DEFAULT_MAX_SIZE;
+		try {
+			size = Integer.parseInt(System.getProperty(MAX_SIZE_PROP, "" + DEFAULT_MAX_SIZE).trim());
+		} catch (Exception ex) {
+			size = DEFAULT_MAX_SIZE;
+		}
+		maxSize = size < 1 ? DEFAULT_MAX_SIZE : size;
+	}
+
+	/**
+	 * Computes the hex encoded digest of the passed bytes
+	 * @param bytes The bytes to digest
+	 * @return the hex encoded digest
+	 */
+	public static String digest(final byte[] bytes) {
+		if(bytes==null) throw new IllegalArgumentException("The passed byte array was null");
+		try {
+			final byte[] d = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(bytes);
+			final char[] chars = new char[d.length * 2];
+			for(int i = 0; i < d.length; i++) {
+				chars[i*2] = HEX[(d[i] >> 4) & 0x0F];
+				chars[i*2 + 1] = HEX[d[i] & 0x0F];
+			}
+			return new String(chars);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to compute digest", ex);
+		}
+	}
+
+	/**
+	 * Computes the hex encoded digest of the passed source
+	 * @param source The source to digest
+	 * @return the hex encoded digest
+	 */
+	public static String digest(final String source) {
+		if(source==null) throw new IllegalArgumentException("The passed source was null");
+		return digest(source.getBytes(UTF8));
+	}
+
+	/**
+	 * Computes the digest of the shape of the passed class: its version, access flags, superclass, interfaces
+	 * and the access flags, names and descriptors of its declared fields and methods. Source compiled into a behavior
+	 * can only resolve against these, so classes of the same shape compile the same source to the same code.
+	 * @param ct The class to digest
+	 * @param named true to include the class's own name, false to replace it with a placeholder so the digest is shared by same-shape classes
+	 * @return the hex encoded shape digest
+	 */
+	public static String shapeDigest(final CtClass ct, final boolean named) {
+		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
+		final ClassFile cf = ct.getClassFile2();
+		final String self = named ? null : cf.getName();
+		final StringBuilder b = new StringBuilder();
+		b.append(named ? cf.getName() : SELF).append('|').append(cf.getMajorVersion()).append('|').append(cf.getAccessFlags());
+		b.append("|extends ").append(self(self, cf.getSuperclass()));
+		for(String iface: cf.getInterfaces()) {
+			b.append("|implements ").append(self(self, iface));
+		}
+		for(Object o: cf.getFields()) {
+			final FieldInfo f = (FieldInfo)o;
+			b.append("|field ").append(f.getAccessFlags()).append(' ').append(f.getName()).append(' ').append(descriptor(self, f.getDescriptor()));
+		}
+		for(Object o: cf.getMethods()) {
+			final MethodInfo m = (MethodInfo)o;
+			b.append("|method ").append(m.getAccessFlags()).append(' ').append(m.getName()).append(' ').append(descriptor(self, m.getDescriptor()));
+		}
+		return digest(b.toString());
+	}
+
+	/**
+	 * Computes the digest of the current code of the passed behavior with its constant pool references resolved,
+	 * so the digest reflects what the code does rather than where its constants sit in the class's constant pool.
+	 * The declaring class's own name is replaced with a placeholder, matching {@link #shapeDigest(CtClass, boolean)}.
+	 * @param behavior The behavior to digest
+	 * @return the hex encoded code digest, or an empty string if the behavior has no code
+	 */
+	public static String codeDigest(final CtBehavior behavior) {
+		if(behavior==null) throw new IllegalArgumentException("The passed behavior was null");
+		final MethodInfo methodInfo = behavior.getMethodInfo2();
+		final CodeAttribute code = methodInfo.getCodeAttribute();
+		if(code==null) return "";
+		final ConstPool cp = methodInfo.getConstPool();
+		final String self = cp.getClassName();
+		final StringBuilder b = new StringBuilder();
+		b.append(code.getMaxStack()).append('/').append(code.getMaxLocals());
+		try {
+			final CodeIterator iter = code.iterator();
+			while(iter.hasNext()) {
+				final int pos = iter.next();
+				final int end = iter.lookAhead();
+				final int op = iter.byteAt(pos);
+				b.append('|').append(op);
+				int operands = pos + 1;
+				switch(op) {
+					case Opcode.LDC:
+						b.append(' ').append(constant(cp, self, iter.byteAt(pos + 1)));
+						operands = pos + 2;
+						break;
+					case Opcode.LDC_W: case Opcode.LDC2_W:
+					case Opcode.GETSTATIC: case Opcode.PUTSTATIC: case Opcode.GETFIELD: case Opcode.PUTFIELD:
+					case Opcode.INVOKEVIRTUAL: case Opcode.INVOKESPECIAL: case Opcode.INVOKESTATIC:
+					case Opcode.INVOKEINTERFACE: case Opcode.INVOKEDYNAMIC:
+					case Opcode.NEW: case Opcode.ANEWARRAY: case Opcode.CHECKCAST: case Opcode.INSTANCEOF: case Opcode.MULTIANEWARRAY:
+						b.append(' ').append(constant(cp, self, iter.u16bitAt(pos + 1)));
+						operands = pos + 3;
+						break;
+					default:
+						break;
+				}
+				for(int i = operands; i < end; i++) {
+					b.append(' ').append(iter.byteAt(i));
+				}
+			}
+		} catch (BadBytecode bb) {
+			throw new RuntimeException("Failed to read the code of [" + behavior.getLongName() + "]", bb);
+		}
+		final ExceptionTable et = code.getExceptionTable();
+		for(int i = 0; i < et.size(); i++) {
+			final int catchType = et.catchType(i);
+			b.append("|catch ").append(et.startPc(i)).append(' ').append(et.endPc(i)).append(' ').append(et.handlerPc(i))
+				.append(' ').append(catchType==0 ? "any" : descriptor(self, cp.getClassInfoByDescriptor(catchType)));
+		}
+		return digest(b.toString());
+	}
+
+	/**
+	 * Renders the constant at the passed constant pool index
+	 * @param cp The constant pool
+	 * @param self The declaring class name to replace with the placeholder
+	 * @param index The constant pool index
+	 * @return the rendered constant
+	 */
+	private static String constant(final ConstPool cp, final String self, final int index) {
+		final int tag = cp.getTag(index);
+		switch(tag) {
+			case ConstPool.CONST_Class:
+				return "class " + descriptor(self, cp.getClassInfoByDescriptor(index));
+			case ConstPool.CONST_Fieldref:
+				return "field " + self(self, cp.getFieldrefClassName(index)) + "." + cp.getFieldrefName(index) + " " + descriptor(self, cp.getFieldrefType(index));
+			case ConstPool.CONST_Methodref:
+				return "method " + self(self, cp.getMethodrefClassName(index)) + "." + cp.getMethodrefName(index) + descriptor(self, cp.getMethodrefType(index));
+			case ConstPool.CONST_InterfaceMethodref:
+				return "imethod " + self(self, cp.getInterfaceMethodrefClassName(index)) + "." + cp.getInterfaceMethodrefName(index) + descriptor(self, cp.getInterfaceMethodrefType(index));
+			case ConstPool.CONST_String:
+				return "string \"" + cp.getStringInfo(index) + "\"";
+			case ConstPool.CONST_Integer: case ConstPool.CONST_Float: case ConstPool.CONST_Long: case ConstPool.CONST_Double:
+				return tag + " " + cp.getLdcValue(index);
+			case ConstPool.CONST_MethodHandle:
+				return "handle " + cp.getMethodHandleKind(index) + " " + constant(cp, self, cp.getMethodHandleIndex(index));
+			case CONST_MethodType:
+				return "type " + descriptor(self, cp.getUtf8Info(cp.getMethodTypeInfo(index)));
+			case CONST_InvokeDynamic:
+				final int nt = cp.getInvokeDynamicNameAndType(index);
+				return "indy " + cp.getInvokeDynamicBootstrap(index) + " " + cp.getUtf8Info(cp.getNameAndTypeName(nt)) + descriptor(self, cp.getInvokeDynamicType(index));
+			default:
+				return "tag " + tag + " #" + index;
+		}
+	}
+
+	/**
+	 * Replaces the passed class name with the placeholder if it is the declaring class
+	 * @param self The declaring class name, or null to leave every name in place
+	 * @param className The class name to render
+	 * @return the rendered class name
+	 */
+	private static String self(final String self, final String className) {
+		return self!=null && self.equals(className) ? SELF : className;
+	}
+
+	/**
+	 * Replaces every reference to the declaring class in the passed descriptor with the placeholder
+	 * @param self The declaring class name, or null to leave every name in place
+	 * @param descriptor The field, method or class descriptor
+	 * @return the rendered descriptor
+	 */
+	private static String descriptor(final String self, final String descriptor) {
+		if(self==null || descriptor==null) return descriptor;
+		final String internal = self.replace('.', '/');
+		final StringBuilder b = new StringBuilder(descriptor.length());
+		int i = 0;
+		while(i < descriptor.length()) {
+			final char c = descriptor.charAt(i);
+			final int end = c=='L' ? descriptor.indexOf(';', i) : -1;
+			if(end==-1) {
+				b.append(c);
+				i++;
+			} else {
+				final String name = descriptor.substring(i + 1, end);
+				b.append('L').append(name.equals(internal) ? SELF : name).append(';');
+				i = end + 1;
+			}
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Creates a cache key
+	 * @param classDigest The {@link #shapeDigest(CtClass, boolean) shape digest} of the declaring class
+	 * @param behavior The behavior the source is compiled into
+	 * @param sourceDigest The digest of the source
+	 * @return the cache key
+	 */
+	public Key key(final String classDigest, final CtBehavior behavior, final String sourceDigest) {
+		if(behavior==null) throw new IllegalArgumentException("The passed behavior was null");
+		return new Key(classDigest, behavior.getName() + behavior.getSignature(), sourceDigest);
+	}
+
+	/**
+	 * Splices the cached body for the passed key into the passed behavior, renaming references
+	 * to the class the body was compiled for to the behavior's declaring class
+	 * @param key The cache key
+	 * @param behavior The behavior to splice the cached body into
+	 * @return true if a cached body was spliced, false if the body needs to be compiled
+	 */
+	public boolean apply(final Key key, final CtBehavior behavior) {
+		final CompiledBody body;
+		synchronized(bodies) {
+			body = bodies.get(key);
+		}
+		if(body==null) {
+			misses.incrementAndGet();
+			return false;
+		}
+		final MethodInfo methodInfo = behavior.getMethodInfo();
+		methodInfo.setCodeAttribute(body.copyTo(methodInfo.getConstPool(), behavior.getDeclaringClass().getName()));
+		methodInfo.setAccessFlags(methodInfo.getAccessFlags() & ~AccessFlag.ABSTRACT);
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Caches the compiled body of the passed behavior
+	 * @param key The cache key
+	 * @param behavior The behavior whose body was just compiled
+	 */
+	public void store(final Key key, final CtBehavior behavior) {
+		final CodeAttribute code = behavior.getMethodInfo2().getCodeAttribute();
+		if(code==null) return;
+		final CompiledBody body = new CompiledBody(behavior.getDeclaringClass().getName(), code);
+		synchronized(bodies) {
+			final CompiledBody prior = bodies.put(key, body);
+			if(prior!=null) bytesHeld.addAndGet(-prior.size);
+			bytesHeld.addAndGet(body.size);
+			final Iterator<CompiledBody> iter = bodies.values().iterator();
+			while(bodies.size() > maxSize && iter.hasNext()) {
+				bytesHeld.addAndGet(-iter.next().size);
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Clears all cached bodies
+	 */
+	public void clear() {
+		synchronized(bodies) {
+			bodies.clear();
+			bytesHeld.set(0L);
+		}
+	}
+
+	/**
+	 * Returns the number of bodies spliced from the cache
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that required compilation
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the cache hit rate as a percentage
+	 * @return the cache hit rate
+	 */
+	public int getHitRate() {
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return total==0L ? 0 : (int)(h * 100 / total);
+	}
+
+	/**
+	 * Returns the approximate number of bytes held by the cached bodies
+	 * @return the number of bytes held
+	 */
+	public long getBytesHeld() {
+		return bytesHeld.get();
+	}
+
+	/**
+	 * Returns the number of cached bodies
+	 * @return the number of cached bodies
+	 */
+	public int size() {
+		synchronized(bodies) {
+			return bodies.size();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("MethodBodyCache [bodies:%s, hits:%s, misses:%s, bytes:%s]", size(), getHits(), getMisses(), getBytesHeld());
+	}
+
+	/**
+	 * <p>Title: CompiledBody</p>
+	 * <p>Description: A compiled code attribute held against its own private constant pool</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.MethodBodyCache.CompiledBody</code></p>
+	 */
+	private static class CompiledBody {
+		/** The code attribute, referencing the private constant pool */
+		private final CodeAttribute code;
+		/** The internal name of the class the code was compiled for */
+		private final String className;
+		/** The approximate size of the code attribute and its constant pool in bytes */
+		private final int size;
+
+		/**
+		 * Creates a new CompiledBody
+		 * @param className The name of the class the code was compiled for
+		 * @param source The compiled code attribute to copy
+		 */
+		CompiledBody(final String className, final CodeAttribute source) {
+			final ConstPool cp = new ConstPool(className);
+			this.className = className.replace('.', '/');
+			code = (CodeAttribute)source.copy(cp, null);
+			int cpSize = 0;
+			try {
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream(cp.getSize() * 8);
+				cp.write(new DataOutputStream(baos));
+				cpSize = baos.size();
+			} catch (Exception ex) {
+				cpSize = cp.getSize() * 8;
+			}
+			size = code.length() + cpSize;
+		}
+
+		/**
+		 * Copies the code attribute into the passed constant pool
+		 * @param cp The constant pool of the target behavior
+		 * @param targetClassName The name of the target behavior's declaring class
+		 * @return the copied code attribute
+		 */
+		synchronized CodeAttribute copyTo(final ConstPool cp, final String targetClassName) {
+			final String target = targetClassName.replace('.', '/');
+			final Map<String, String> classnames = target.equals(className) ? null : Collections.singletonMap(className, target);
+			return (CodeAttribute)code.copy(cp, classnames);
+		}
+	}
+
+	/**
+	 * <p>Title: Key</p>
+	 * <p>Description: The method body cache key</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.MethodBodyCache.Key</code></p>
+	 */
+	public static final class Key {
+		/** The shape digest of the declaring class */
+		private final String classDigest;
+		/** The behavior name and descriptor */
+		private final String behavior;
+		/** The digest of the source */
+		private final String sourceDigest;
+		/** The precomputed hash code */
+		private final int hashCode;
+
+		/**
+		 * Creates a new Key
+		 * @param classDigest The shape digest of the declaring class
+		 * @param behavior The behavior name and descriptor
+		 * @param sourceDigest The digest of the source
+		 */
+		Key(final String classDigest, final String behavior, final String sourceDigest) {
+			if(classDigest==null) throw new IllegalArgumentException("The passed class digest was null");
+			if(sourceDigest==null) throw new IllegalArgumentException("The passed source digest was null");
+			this.classDigest = classDigest;
+			this.behavior = behavior;
+			this.sourceDigest = sourceDigest;
+			int h = classDigest.hashCode();
+			h = 31 * h + behavior.hashCode();
+			h = 31 * h + sourceDigest.hashCode();
+			hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if(this==obj) return true;
+			if(!(obj instanceof Key)) return false;
+			final Key other = (Key)obj;
+			return hashCode==other.hashCode && classDigest.equals(other.classDigest) && behavior.equals(other.behavior) && sourceDigest.equals(other.sourceDigest);
+		}
+
+		@Override
+		public String toString() {
+			return behavior + "@" + classDigest + "/" + sourceDigest;
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
+
+/**
+ * <p>Title: MethodGrafter</p>
+ * <p>Description: Grafts the method bodies of a mock class onto a target class at the {@link ClassFile} level.
+ * Each template method's {@link CodeAttribute} is copied into the matching target method, adding only the constant pool
+ * entries the copied code references to the target's constant pool, with references to the mock class renamed to the target.
+ * The target's other members are carried through as parsed and are never materialized as <code>CtClass</code> trees.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.MethodGrafter</code></p>
+ */
+
+public class MethodGrafter {
+	/** The descriptor of the {@link MethodIgnore} annotation */
+	private static final String METHOD_IGNORE = MethodIgnore.class.getName();
+
+	private MethodGrafter() {}
+
+	/**
+	 * Parses the passed class bytes
+	 * @param byteCode The class bytes
+	 * @return the parsed class file
+	 */
+	public static ClassFile read(final byte[] byteCode) {
+		if(byteCode==null) throw new IllegalArgumentException("The passed byte code was null");
+		try {
+			return new ClassFile(new DataInputStream(new ByteArrayInputStream(byteCode)));
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to parse class bytes", iex);
+		}
+	}
+
+	/**
+	 * Writes the passed class file to bytes
+	 * @param classFile The class file to write
+	 * @return the class bytes
+	 */
+	public static byte[] write(final ClassFile classFile) {
+		if(classFile==null) throw new IllegalArgumentException("The passed class file was null");
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+			final DataOutputStream dos = new DataOutputStream(baos);
+			classFile.write(dos);
+			dos.flush();
+			return baos.toByteArray();
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to write class [" + classFile.getName() + "]", iex);
+		}
+	}
+
+	/**
+	 * Grafts the bodies of the template class's declared methods onto the target methods with the same name and parameter types.
+	 * Constructors, static initializers, methods without code and methods annotated with {@link MethodIgnore} are skipped,
+	 * as are template methods with no matching target method.
+	 * @param template The class file of the mock class providing the method bodies. Not modified.
+	 * @param target The class file of the class to graft the method bodies onto
+	 * @return the number of grafted methods
+	 */
+	public static int graft(final ClassFile template, final ClassFile target) {
+		return graft(template, target, null);
+	}
+
+	/**
+	 * Grafts the bodies of the template class's declared methods onto the target methods with the same name and parameter types,
+	 * recording each grafted method as a changed behavior in the passed transform context
+	 * @param template The class file of the mock class providing the method bodies. Not modified.
+	 * @param target The class file of the class to graft the method bodies onto
+	 * @param tc The optional transform context to record the grafted methods in
+	 * @return the number of grafted methods
+	 * @see #graft(ClassFile, ClassFile)
+	 */
+	public static int graft(final ClassFile template, final ClassFile target, final TransformContext tc) {
+		if(template==null) throw new IllegalArgumentException("The passed template class file was null");
+		if(target==null) throw new IllegalArgumentException("The passed target class file was null");
+		final Map<String, MethodInfo> targets = index(target);
+		final ConstPool targetPool = target.getConstPool();
+		final Map<String, String> classNames = new HashMap<String, String>(2);
+		classNames.put(Descriptor.toJvmName(template.getName()), Descriptor.toJvmName(target.getName()));
+		int grafted = 0;
+		for(MethodInfo templateMethod: methods(template)) {
+			if(!templateMethod.isMethod()) continue;
+			final CodeAttribute code = templateMethod.getCodeAttribute();
+			if(code==null || isIgnored(templateMethod)) continue;
+			final MethodInfo targetMethod = targets.get(key(templateMethod));
+			if(targetMethod==null) continue;
+			targetMethod.setCodeAttribute((CodeAttribute)code.copy(targetPool, classNames));
+			targetMethod.setAccessFlags(targetMethod.getAccessFlags() & ~AccessFlag.ABSTRACT);
+			if(tc!=null) tc.changed(targetMethod.getName(), targetMethod.getDescriptor());
+			grafted++;
+		}
+		return grafted;
+	}
+
+	/**
+	 * Indexes the methods of the passed class file by name and parameter descriptor, keeping the first of any duplicates
+	 * @param classFile The class file to index
+	 * @return the methods keyed by name and parameter descriptor
+	 */
+	private static Map<String, MethodInfo> index(final ClassFile classFile) {
+		final List<MethodInfo> methods = methods(classFile);
+		final Map<String, MethodInfo> map = new HashMap<String, MethodInfo>(methods.size() * 2);
+		for(MethodInfo method: methods) {
+			if(!method.isMethod()) continue;
+			final String key = key(method);
+			if(!map.containsKey(key)) map.put(key, method);
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the methods of the passed class file
+	 * @param classFile The class file
+	 * @return the methods
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<MethodInfo> methods(final ClassFile classFile) {
+		return classFile.getMethods();
+	}
+
+	/**
+	 * Returns the lookup key for the passed method, being the name followed by the parameter descriptor
+	 * @param method The method
+	 * @return the method key
+	 */
+	private static String key(final MethodInfo method) {
+		return method.getName() + Descriptor.getParamDescriptor(method.getDescriptor());
+	}
+
+	/**
+	 * Indicates if the passed method is annotated with {@link MethodIgnore}
+	 * @param method The method to test
+	 * @return true if the method is ignored, false otherwise
+	 */
+	private static boolean isIgnored(final MethodInfo method) {
+		final AnnotationsAttribute attr = (AnnotationsAttribute)method.getAttribute(AnnotationsAttribute.visibleTag);
+		return attr!=null && attr.getAnnotation(METHOD_IGNORE)!=null;
+	}
+}
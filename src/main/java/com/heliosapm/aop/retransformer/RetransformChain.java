@@ -18,18 +18,37 @@ under the License.
  */
 package com.heliosapm.aop.retransformer;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.reflections.Reflections;
 
+import javassist.CtBehavior;
 import javassist.CtClass;
 
+import com.heliosapm.aop.retransformer.probes.CountingTransformer;
+import com.heliosapm.aop.retransformer.transformers.AnnotationTransformer;
+import com.heliosapm.aop.retransformer.transformers.ITransformer;
+import com.heliosapm.aop.retransformer.transformers.MockGraftTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapAroundTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapBodyReplaceTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapInsertBeforeTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapTransformer;
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
+
 /**
  * <p>Title: RetransformChain</p>
- * <p>Description: Supports the chaining of multiple retransformers to execute a series of sequential retransforms
- * on target classes</p> 
+ * <p>Description: Supports the chaining of multiple transformers into a single pipeline. Every stage of the chain
+ * (mock method grafts, then source map replacements, then advice, then annotations, then invocation counters) is applied to the same class bytes in one
+ * class file transformer callback, and all the target classes are retransformed in a single call.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.aop.retransformer.RetransformChain</code></p>
@@ -43,6 +62,22 @@ public class RetransformChain {
 	protected final Retransformer retran;
 	/** The ct classes for the target transforms keyed by the classes we're going to transform */
 	protected final Map<Class<?>, CtClass> targetClasses = new HashMap<Class<?>, CtClass>();
+	/** The source of the mocked methods to inject into the targets */
+	protected Class<?> mockedClass = null;
+	/** The source code replacements keyed by the method descriptor of the methods to replace */
+	protected final Map<String, String> sourceMap = new LinkedHashMap<String, String>();
+	/** The source code replacements of the overloads with a given number of parameters, keyed by method name and then parameter count */
+	protected final Map<String, Map<Integer, String>> argCountSources = new LinkedHashMap<String, Map<Integer, String>>();
+	/** Indicates if any not found source map method should throw */
+	protected boolean failOnNotFound = true;
+	/** The advice source maps keyed by the transformer weaving them, applied in insertion order after the source code replacements */
+	protected final Map<SourceMapTransformer, Map<String, String>> advice = new LinkedHashMap<SourceMapTransformer, Map<String, String>>();
+	/** The annotations to apply to the targets */
+	protected final List<AnnotationBuilder> annotations = new ArrayList<AnnotationBuilder>();
+	/** Indicates if invocation counters are inserted into the behaviors changed by the chain */
+	protected boolean counting = false;
+	/** Indicates if the inserted invocation counters are guarded by probe switches */
+	protected boolean guardedCounting = false;
 	
 	
 	/**
@@ -75,11 +110,200 @@ public class RetransformChain {
 	 * @param targetClass The class to transform
 	 */
 	public void retransform(final Class<?> targetClass) {
-		//
+		if(targetClass==null) throw new IllegalArgumentException("Passed target class was null");
+		retransform(Collections.<Class<?>>singleton(targetClass));
 	}
 	
-	public void retransform(final Reflections reflections, final Object...params) {
-		
+	/**
+	 * Retransforms every class resolved from the passed {@link Reflections} queries with the built retransform chain.
+	 * The target classes are compiled in parallel and then retransformed in one batch.
+	 * @param reflections The reflections instance to query
+	 * @param params The {@link ReflectionCommand}s resolving the target classes. Members resolve to their declaring class.
+	 * @return the resolved target classes
+	 */
+	public Set<Class<?>> retransform(final Reflections reflections, final Object...params) {
+		if(reflections==null) throw new IllegalArgumentException("Passed reflections was null");
+		if(params==null || params.length==0) throw new IllegalArgumentException("No reflection commands were passed");
+		final Set<Class<?>> targets = new LinkedHashSet<Class<?>>();
+		for(int i = 0; i < params.length; i++) {
+			final ReflectionCommand<?> command = ReflectionCommands.val(i, ReflectionCommand.class, params);
+			targets.addAll(retran.resolveTargets(reflections, command));
+		}
+		retransform(targets);
+		return targets;
+	}
+	
+	/**
+	 * Retransforms the passed classes with the built retransform chain in one batch
+	 * @param targets The classes to transform
+	 */
+	protected void retransform(final Set<Class<?>> targets) {
+		if(targets.isEmpty()) return;
+		inChain.set(true);
+		try {
+			final Map<Class<?>, List<Stage<?>>> pipelines = pipelines(targets);
+			if(!pipelines.isEmpty()) retran.transformPipelines(pipelines, pipelines.size() > 1);
+		} finally {
+			inChain.remove();
+		}
+	}
+	
+	/**
+	 * Builds the stages to apply to each class transformed by this chain. Source map methods matched in a superclass
+	 * of a target are replaced in that superclass, which becomes a transformed class of its own.
+	 * @param targets The classes to transform
+	 * @return the stages to apply keyed by the class to transform
+	 */
+	protected Map<Class<?>, List<Stage<?>>> pipelines(final Set<Class<?>> targets) {
+		// the source code replacements, then each advice source map, in the order they are applied
+		final List<SourceMapTransformer> sourceTransformers = new ArrayList<SourceMapTransformer>(advice.size() + 1);
+		final List<Map<Class<?>, Map<String, String>>> sourceSets = new ArrayList<Map<Class<?>, Map<String, String>>>(advice.size() + 1);
+		final Set<Class<?>> transformed = new LinkedHashSet<Class<?>>(targets.size());
+		if(mockedClass!=null || !annotations.isEmpty()) transformed.addAll(targets);
+		final boolean replacing = !sourceMap.isEmpty() || !argCountSources.isEmpty();
+		if(replacing) {
+			sourceTransformers.add(SourceMapBodyReplaceTransformer.STRICT_INSTANCE);
+			if(argCountSources.isEmpty()) {
+				sourceSets.add(matchSources(targets, SourceMap.of(sourceMap), failOnNotFound));
+			} else {
+				// the overloads selected by parameter count differ by target, so each target gets its own source map
+				final Map<Class<?>, Map<String, String>> matched = new LinkedHashMap<Class<?>, Map<String, String>>();
+				for(Class<?> clazz: targets) {
+					final Map<String, String> targetSources = new LinkedHashMap<String, String>(sourceMap);
+					targetSources.putAll(resolveArgCountSources(clazz));
+					merge(matched, matchSources(clazz, SourceMap.of(targetSources), failOnNotFound));
+				}
+				sourceSets.add(matched);
+			}
+		}
+		for(Map.Entry<SourceMapTransformer, Map<String, String>> entry: advice.entrySet()) {
+			sourceTransformers.add(entry.getKey());
+			sourceSets.add(matchSources(targets, SourceMap.of(entry.getValue()), entry.getKey().isStrict()));
+		}
+		for(Map<Class<?>, Map<String, String>> sourceSet: sourceSets) {
+			transformed.addAll(sourceSet.keySet());
+		}
+		final Map<Class<?>, List<Stage<?>>> pipelines = new LinkedHashMap<Class<?>, List<Stage<?>>>(transformed.size());
+		for(Class<?> clazz: transformed) {
+			final boolean target = targets.contains(clazz);
+			final List<Stage<?>> stages = new ArrayList<Stage<?>>(2 + sourceSets.size() + annotations.size());
+			if(target && mockedClass!=null) {
+				stages.add(new Stage<Class<?>>("mock", MockGraftTransformer.STRICT_INSTANCE, mockedClass));
+			}
+			for(int i = 0; i < sourceSets.size(); i++) {
+				final Map<String, String> entries = sourceSets.get(i).get(clazz);
+				if(entries==null) continue;
+				final SourceMapTransformer transformer = sourceTransformers.get(i);
+				final String name = (i==0 && replacing) ? "source" : transformer.getKind();
+				stages.add(new Stage<Map<String, String>>(name, transformer, SourceMap.of(entries)));
+			}
+			if(target) {
+				for(AnnotationBuilder annotationBuilder: annotations) {
+					stages.add(new Stage<AnnotationBuilder>("annotation", AnnotationTransformer.INSTANCE, annotationBuilder));
+				}
+			}
+			if(counting) {
+				stages.add(new Stage<Object>("count", guardedCounting ? CountingTransformer.GUARDED_INSTANCE : CountingTransformer.INSTANCE, null));
+			}
+			pipelines.put(clazz, stages);
+		}
+		return pipelines;
+	}
+	
+	/**
+	 * Matches a source map against each of the passed targets, merging the entries matched in a superclass shared by several targets
+	 * @param targets The target classes
+	 * @param parsed The parsed source map
+	 * @param failOnNotFound true to fail if a key is not found in a target, false otherwise
+	 * @return the matched source map entries keyed by the declaring class
+	 */
+	protected Map<Class<?>, Map<String, String>> matchSources(final Set<Class<?>> targets, final SourceMap parsed, final boolean failOnNotFound) {
+		final Map<Class<?>, Map<String, String>> sources = new LinkedHashMap<Class<?>, Map<String, String>>();
+		for(Class<?> clazz: targets) {
+			merge(sources, matchSources(clazz, parsed, failOnNotFound));
+		}
+		return sources;
+	}
+	
+	/**
+	 * Merges matched source map entries into the entries matched so far, combining the entries of a declaring class matched through several targets
+	 * @param sources The entries matched so far keyed by the declaring class
+	 * @param matched The entries to merge keyed by the declaring class
+	 */
+	protected static void merge(final Map<Class<?>, Map<String, String>> sources, final Map<Class<?>, Map<String, String>> matched) {
+		for(Map.Entry<Class<?>, Map<String, String>> entry: matched.entrySet()) {
+			Map<String, String> entries = sources.get(entry.getKey());
+			if(entries==null) {
+				entries = new LinkedHashMap<String, String>();
+				sources.put(entry.getKey(), entries);
+			}
+			entries.putAll(entry.getValue());
+		}
+	}
+	
+	/**
+	 * Resolves the parameter count keyed replacements to descriptor keyed source map entries for the passed target.
+	 * Every overload with the requested number of parameters that is declared by the target, or inherited and not private, is matched.
+	 * @param targetClass The target class
+	 * @return the source map entries keyed by <b><code>&lt;name&gt;:&lt;descriptor&gt;</code></b>
+	 */
+	protected Map<String, String> resolveArgCountSources(final Class<?> targetClass) {
+		final Map<String, String> resolved = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, Map<Integer, String>> entry: argCountSources.entrySet()) {
+			final String methodName = entry.getKey();
+			for(Map.Entry<Integer, String> count: entry.getValue().entrySet()) {
+				final Set<String> descriptors = new LinkedHashSet<String>();
+				for(Class<?> clazz = targetClass; clazz!=null; clazz = clazz.getSuperclass()) {
+					for(Method method: clazz.getDeclaredMethods()) {
+						if(!method.getName().equals(methodName) || method.getParameterTypes().length!=count.getKey().intValue()) continue;
+						if(method.isBridge() || method.isSynthetic()) continue;
+						if(clazz!=targetClass && Modifier.isPrivate(method.getModifiers())) continue;
+						descriptors.add(Descriptors.getMethodDescriptor(method));
+					}
+				}
+				if(descriptors.isEmpty() && failOnNotFound) {
+					throw new RuntimeException("Failed to match any [" + methodName + "] method with [" + count.getKey() + "] parameters in [" + targetClass.getName() + "]");
+				}
+				for(String descriptor: descriptors) {
+					resolved.put(methodName + ":" + descriptor, count.getValue());
+				}
+			}
+		}
+		return resolved;
+	}
+	
+	/**
+	 * Splits a source map into the entries matched in each class declaring a matched behavior of the passed target
+	 * @param targetClass The target class
+	 * @param parsed The parsed source map
+	 * @param failOnNotFound true to fail if a key is not found in the target, false otherwise
+	 * @return the matched source map entries keyed by the declaring class, empty if no behaviors were matched and not failing on not found
+	 */
+	protected Map<Class<?>, Map<String, String>> matchSources(final Class<?> targetClass, final SourceMap parsed, final boolean failOnNotFound) {
+		final Map<CtClass, Set<CtBehavior>> matched = retran.getMatchedBehaviors(targetClass, failOnNotFound, parsed);
+		final Map<Class<?>, Map<String, String>> sources = new LinkedHashMap<Class<?>, Map<String, String>>(matched.size());
+		for(Map.Entry<CtClass, Set<CtBehavior>> entry: matched.entrySet()) {
+			final Map<String, String> entries = new LinkedHashMap<String, String>();
+			for(CtBehavior behavior: entry.getValue()) {
+				final SourceMap.Body body = parsed.lookup(behavior.getName(), behavior.getSignature());
+				if(body!=null) entries.put(body.getKey(), body.getSource());
+			}
+			if(entries.isEmpty()) continue;
+			final String className = entry.getKey().getName();
+			final Class<?> declaring;
+			if(targetClass.getName().equals(className)) {
+				declaring = targetClass;
+			} else {
+				try {
+					declaring = Class.forName(className, true, targetClass.getSuperclass().getClassLoader());
+				} catch (Exception ex) {
+					throw new RuntimeException("Failed to load class [" + className + "]", ex);
+				}
+			}
+			sources.put(declaring, entries);
+		}
+		if(sources.isEmpty() && failOnNotFound) throw new RuntimeException("Failed to match any methods in [" + targetClass.getName() + "]");
+		return sources;
 	}
 	
 	/**
@@ -88,13 +312,14 @@ public class RetransformChain {
 	 * @return this chain
 	 */
 	public RetransformChain transform(final Class<?> mockedClass) {
-
+		if(mockedClass==null) throw new IllegalArgumentException("Passed mocked class was null");
+		this.mockedClass = mockedClass;
 		return this;
 	}
 	
 	/**
-	 * TODO: DOCUMENT ME
-	 * Convenience method to execute a single provided source method replacement transformation
+	 * Replaces the body of the named method of each target with the passed source. Without a descriptor,
+	 * the nearest visible method with the name is matched. Fails on retransform if a target has no such method.
 	 * @param methodName The method name to transform
 	 * @param source  The source of the transformed method
 	 * @return this chain
@@ -106,29 +331,38 @@ public class RetransformChain {
 	}
 	
 	/**
-	 * TODO: DOCUMENT ME
-	 * Convenience method to execute a single provided source method replacement transformation
+	 * Replaces the body of every overload of the named method with the passed number of parameters in each target with the passed source.
+	 * The overloads are resolved against each target on retransform, so a target with several overloads of that arity has all of them replaced.
+	 * Fails on retransform if a target has no such overload.
 	 * @param methodName The method name to transform
-	 * @param argCount The number of arguments in the target method
+	 * @param argCount The number of parameters of the overloads to transform
 	 * @param source  The source of the transformed method
 	 * @return this chain
 	 */
 	public RetransformChain transform(final String methodName, final int argCount, final String source) {		
-		transform(true, Collections.singletonMap(methodName, source));
-		
+		if(methodName==null || methodName.trim().isEmpty()) throw new IllegalArgumentException("Passed method name was null or empty");
+		if(argCount < 0) throw new IllegalArgumentException("Invalid argument count [" + argCount + "]");
+		if(source==null) throw new IllegalArgumentException("Passed source was null");
+		failOnNotFound = true;
+		Map<Integer, String> counts = argCountSources.get(methodName.trim());
+		if(counts==null) {
+			counts = new LinkedHashMap<Integer, String>();
+			argCountSources.put(methodName.trim(), counts);
+		}
+		counts.put(argCount, source);
 		return this;
 	}
 	
 	/**
-	 * TODO: DOCUMENT ME
-	 * Convenience method to execute a single provided source method replacement transformation
+	 * Replaces the body of the named method with the passed descriptor in each target with the passed source.
+	 * A null descriptor matches as {@link #transform(String, String)} does. Fails on retransform if a target has no such method.
 	 * @param methodName The method name to transform
-	 * @param descriptor The target method signature
+	 * @param descriptor The target method descriptor, such as <b><code>(I)Ljava/lang/String;</code></b>, or null
 	 * @param source  The source of the transformed method
 	 * @return this chain
 	 */
 	public RetransformChain transform(final String methodName, final String descriptor, final String source) {		
-		transform(true, Collections.singletonMap(methodName, source));
+		transform(true, Collections.singletonMap(descriptor==null ? methodName : methodName + ":" + descriptor, source));
 		
 		return this;
 	}
@@ -140,7 +374,28 @@ public class RetransformChain {
 	 * @return this chain
 	 */
 	public RetransformChain transform(final boolean failOnNotFound, final Map<String, String> sourceMap) {
-		
+		if(sourceMap==null) throw new IllegalArgumentException("Passed source map was null");
+		this.failOnNotFound = failOnNotFound;
+		this.sourceMap.putAll(sourceMap);
+		return this;
+	}
+	
+	/**
+	 * Adds advice to this transform chain, woven into the matched behaviors after any source code replacements.
+	 * Advice added for the same transformer is merged. A strict transformer fails on any key not found in a target.
+	 * @param transformer The transformer weaving the advice, such as {@link SourceMapInsertBeforeTransformer} or {@link SourceMapAroundTransformer}
+	 * @param adviceMap A map of advice source keyed by the method descriptor of the methods to advise
+	 * @return this chain
+	 */
+	public RetransformChain advise(final SourceMapTransformer transformer, final Map<String, String> adviceMap) {
+		if(transformer==null) throw new IllegalArgumentException("Passed transformer was null");
+		if(adviceMap==null) throw new IllegalArgumentException("Passed advice map was null");
+		Map<String, String> entries = advice.get(transformer);
+		if(entries==null) {
+			entries = new LinkedHashMap<String, String>();
+			advice.put(transformer, entries);
+		}
+		entries.putAll(adviceMap);
 		return this;
 	}
 	
@@ -150,11 +405,105 @@ public class RetransformChain {
 	 * @return this chain
 	 */
 	public RetransformChain transform(final AnnotationBuilder annotationBuilder) {
-		
+		if(annotationBuilder==null) throw new IllegalArgumentException("Passed annotation builder was null");
+		annotations.add(annotationBuilder);
 		return this;
 	}
 	
+	/**
+	 * Inserts an invocation counter into every behavior changed by this transform chain. 
+	 * The counts are read from {@link com.heliosapm.aop.retransformer.probes.InvocationProbes}.
+	 * @return this chain
+	 */
+	public RetransformChain count() {
+		return count(false);
+	}
 	
+	/**
+	 * Inserts an invocation counter into every behavior changed by this transform chain. 
+	 * The counts are read from {@link com.heliosapm.aop.retransformer.probes.InvocationProbes}.
+	 * @param guarded true to guard each counter with its own {@link com.heliosapm.aop.retransformer.probes.ProbeSwitches} flag, false otherwise
+	 * @return this chain
+	 */
+	public RetransformChain count(final boolean guarded) {
+		counting = true;
+		guardedCounting = guarded;
+		return this;
+	}
 	
+	/**
+	 * <p>Title: Stage</p>
+	 * <p>Description: One stage of a chained transform pipeline, being a transformer and the directives it applies</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.RetransformChain.Stage</code></p>
+	 * @param <T> The type of the transformer directives
+	 */
+	public static final class Stage<T> {
+		/** The stage name, used to key the stage timings */
+		private final String name;
+		/** The transformer applied by this stage */
+		private final ITransformer<T> transformer;
+		/** The directives passed to the transformer */
+		private final T directives;
+		
+		/**
+		 * Creates a new Stage
+		 * @param name The stage name, used to key the stage timings
+		 * @param transformer The transformer applied by this stage
+		 * @param directives The directives passed to the transformer
+		 */
+		public Stage(final String name, final ITransformer<T> transformer, final T directives) {
+			if(name==null) throw new IllegalArgumentException("The passed name was null");
+			if(transformer==null) throw new IllegalArgumentException("The passed transformer was null");
+			this.name = name;
+			this.transformer = transformer;
+			this.directives = directives;
+		}
+		
+		/**
+		 * Applies this stage to the passed CtClass
+		 * @param ct The CtClass to transform
+		 * @param tc The transform context shared by the stages of the pipeline
+		 * @return the transformed CtClass
+		 */
+		public CtClass apply(final CtClass ct, final TransformContext tc) {
+			return transformer.transform(ct, tc, directives);
+		}
+		
+		/**
+		 * Returns the stage name
+		 * @return the stage name
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Returns the transformer applied by this stage
+		 * @return the transformer
+		 */
+		public ITransformer<T> getTransformer() {
+			return transformer;
+		}
+		
+		/**
+		 * Returns the directives passed to the transformer
+		 * @return the directives
+		 */
+		public T getDirectives() {
+			return directives;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Stage [" + name + ":" + transformer.getClass().getSimpleName() + "]";
+		}
+	}
+
 
 }
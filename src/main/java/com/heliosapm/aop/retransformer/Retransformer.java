@@ -1,25 +1,36 @@
 package com.heliosapm.aop.retransformer;
 
+import java.io.ByteArrayInputStream;
+import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
-import com.heliosapm.shorthand.attach.vm.agent.LocalAgentInstaller;
+import javax.management.ObjectName;
+
+import org.reflections.Reflections;
 
-import javassist.ByteArrayClassPath;
-import javassist.ClassClassPath;
 import javassist.ClassPath;
 import javassist.ClassPool;
 import javassist.CtBehavior;
@@ -29,10 +40,17 @@ import javassist.CtMethod;
 import javassist.LoaderClassPath;
 import javassist.NotFoundException;
 import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
 import javassist.bytecode.ConstPool;
 import javassist.bytecode.annotation.LongMemberValue;
 import javassist.bytecode.annotation.StringMemberValue;
 
+import com.heliosapm.aop.retransformer.transformers.SourceMapAroundTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapInsertAfterTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapInsertBeforeTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapTransformer;
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
+
 /**
  * <p>Title: Retransformer</p>
  * <p>Description: The retransformation singleton</p> 
@@ -40,7 +58,7 @@ import javassist.bytecode.annotation.StringMemberValue;
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.aop.retransformer.Retransformer</code></p>
  */
-public class Retransformer {
+public class Retransformer implements RetransformerMXBean {
 	/** The singleton instance */
 	private static volatile Retransformer instance = null;
 	/** The singleton instance ctor lock */
@@ -51,6 +69,10 @@ public class Retransformer {
 	 */
 	public static final String INSTR_PROVIDER_PROP = "instrumentation.provider"; 
 	
+	/** The system property name indicating if transformed classes should also be marked with an {@link Instrumented} annotation.
+	 * Defaults to false, the instrumented state being tracked by the {@link InstrumentedRegistry}. */
+	public static final String ANNOTATE_PROP = "retransformer.annotate";
+	
 	/** The local agent installer class name */
 	public static final String AGENT_INSTALLER_CLASS = "com.heliosapm.shorthand.attach.vm.agent.LocalAgentInstaller";
 	/** The local agent installer method name */
@@ -58,6 +80,26 @@ public class Retransformer {
 
 	/** The retransformer's instrumentation instance */
 	private final Instrumentation instrumentation;
+	/** A description of where the instrumentation instance was acquired from */
+	private final String instrumentationSource;
+	/** The time it took to acquire the instrumentation instance in ns. */
+	private final long instrumentationAcquisitionTime;
+	/** The pristine class bytes of transformed classes, used to restore them */
+	private final ClassSnapshotStore snapshots = new ClassSnapshotStore();
+	/** The per-class lock stripes ordering transforms and restores of the same class */
+	private final ClassLockStripes classLocks = new ClassLockStripes();
+	/** The executor running asynchronous transforms and restores */
+	private final TransformExecutor transformExecutor = new TransformExecutor();
+	/** The executor compiling target classes in parallel ahead of a batched retransform */
+	private final TransformExecutor compileExecutor = TransformExecutor.newCompileExecutor();
+	/** The persistent transformer dispatching retransformed class bytes to the registered transform directives */
+	private final DispatchingTransformer dispatcher = new DispatchingTransformer(snapshots);
+	/** The per-phase transform timings */
+	private final TransformMetrics metrics = new TransformMetrics();
+	/** The registry of the currently instrumented classes */
+	private final InstrumentedRegistry registry = InstrumentedRegistry.getInstance();
+	/** Indicates if transformed classes are marked with an {@link Instrumented} annotation */
+	private final boolean annotate = Boolean.getBoolean(ANNOTATE_PROP);
 	
 	/**
 	 * Returns the Retransformer singleton instance
@@ -69,6 +111,11 @@ public class Retransformer {
 				if(instance==null) {
 					instance = new Retransformer();
 					log("Created Retransformer");
+					try {
+						ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+					} catch (Exception ex) {
+						loge("Failed to register Retransformer MXBean: %s", ex.toString());
+					}
 				}
 			}
 		}
@@ -76,11 +123,18 @@ public class Retransformer {
 	}
 	
 	private Retransformer() {
+		final long start = System.nanoTime();
 		// A temporary instrumentation holder
 		Instrumentation instr = null;
+		String source = null;
 		// We need to get an Instrumentation instance.
-		// First try the Instrumentation Provider
-		String classField = System.getProperty(INSTR_PROVIDER_PROP);
+		// First check if we were loaded as a java agent, which costs nothing
+		instr = RetransformerAgent.getInstrumentation();
+		if(instr!=null) {
+			source = "RetransformerAgent#" + RetransformerAgent.getEntryPoint();
+		}
+		// Next try the Instrumentation Provider
+		String classField = instr==null ? System.getProperty(INSTR_PROVIDER_PROP) : null;
 		if(classField!=null) {
 			String[] frags = classField.replace(" ", "").split("/");
 			if(frags.length==2) {
@@ -90,7 +144,7 @@ public class Retransformer {
 					f.setAccessible(true);
 					instr = (Instrumentation)f.get(null);
 					if(instr!=null) {
-						log("Acquired Instrumentation from provider [%s]", classField);
+						source = "Provider[" + classField + "]";
 					}
 				} catch (Exception ex) {
 					loge("Failed to get Instrumentation from provider [%s]: %s", classField, ex.toString());
@@ -105,18 +159,23 @@ public class Retransformer {
 				Class<?> clazz = Class.forName(AGENT_INSTALLER_CLASS);
 				Method m = clazz.getDeclaredMethod(AGENT_INSTALLER_METHOD);
 				instr = (Instrumentation)m.invoke(null);
+				if(instr!=null) {
+					source = "LocalAgentInstaller";
+				}
 			} catch (Throwable t) {
 				loge("Failed to get Instrumentation from LocalAgentInstaller: %s", t.toString());
 			}
 		}
-		// Lastly, use tools wrapper
-		instr = LocalAgentInstaller.getInstrumentation();
 		if(instr==null) {
 			// no dice. We can't continue without an Instrumentation instance, so we have to throw.
 			throw new RuntimeException("Failed to get an Instrumentation instance");
 		}
 		// success.... continue;
 		instrumentation = instr;
+		instrumentationSource = source;
+		instrumentationAcquisitionTime = System.nanoTime() - start;
+		log("Acquired Instrumentation from [%s] in [%s] ms", source, TimeUnit.NANOSECONDS.toMillis(instrumentationAcquisitionTime));
+		instrumentation.addTransformer(dispatcher, true);
 	}
 	
 	/**
@@ -126,7 +185,7 @@ public class Retransformer {
 	 */
 	public boolean isClassInstrumented(Class<?> clazz) {
 		if(clazz==null) throw new IllegalArgumentException("Passed class was null");
-		return clazz.getAnnotation(Instrumented.class)!=null;
+		return registry.isInstrumented(clazz);
 	}
 
 	/**
@@ -134,26 +193,11 @@ public class Retransformer {
 	 * @param targetClass The target class to transform
 	 * @param mockedClass The source of the mocked methods to inject into the target
 	 */
-	public synchronized void transform(final Class<?> targetClass, Class<?> mockedClass) {
+	public void transform(final Class<?> targetClass, Class<?> mockedClass) {
 		if(targetClass==null) throw new IllegalArgumentException("Passed target class was null");
 		if(mockedClass==null) throw new IllegalArgumentException("Passed mocked class was null");
-		String internalFormName = internalForm(targetClass.getName());
-		if(isClassInstrumented(targetClass)) {
-			//throw new RuntimeException("Class ["+ targetClass.getName() + "] already in instrumented state. Restore first and then and retransform");
-			restore(targetClass);
-		}
-		ClassFileTransformer transformer = null;
-		try {
-			transformer = newClassFileTransformer(internalFormName, mockedClass);
-			instrumentation.addTransformer(transformer, true);
-			instrumentation.retransformClasses(targetClass);			
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to transform [" + targetClass.getName() + "]", ex);
-		} finally {
-			if(transformer!=null) {
-				instrumentation.removeTransformer(transformer);
-			}
-		}
+		final String internalFormName = internalForm(targetClass.getName());
+		retransformAll(Collections.<Class<?>, ClassFileTransformer>singletonMap(targetClass, newClassFileTransformer(internalFormName, mockedClass)), Collections.<Class<?>>singleton(targetClass), false, true);
 	}
 	
 	/**
@@ -162,12 +206,35 @@ public class Retransformer {
 	 * @param methodName The method name to transform
 	 * @param source  The source of the transformed method
 	 */
-	public synchronized void transform(final Class<?> targetClass, final String methodName, final String source) {		
+	public void transform(final Class<?> targetClass, final String methodName, final String source) {		
 		transform(targetClass, true, Collections.singletonMap(methodName, source));
 	}
 	
-	public synchronized void transformInsert(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
-		
+	/**
+	 * Executes a provided source insertion transformation, inserting each source at the beginning of the methods it is keyed by
+	 * and leaving their original bodies in place
+	 * @param targetClass The target class to transform
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
+	 * @param sourceMap A map of source code insertions keyed by the method descriptor of the methods to insert into
+	 */
+	public void transformInsert(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
+		transformAdvice(targetClass, failOnNotFound ? SourceMapInsertBeforeTransformer.STRICT_INSTANCE : SourceMapInsertBeforeTransformer.INSTANCE, sourceMap);
+	}
+	
+	/**
+	 * Executes a provided source advice transformation, weaving each source into the methods it is keyed by with the passed transformer
+	 * @param targetClass The target class to transform
+	 * @param transformer The transformer weaving the advice, such as {@link SourceMapInsertAfterTransformer} or {@link SourceMapAroundTransformer}.
+	 * A strict transformer throws on any not found method.
+	 * @param sourceMap A map of advice source keyed by the method descriptor of the methods to advise
+	 */
+	public void transformAdvice(final Class<?> targetClass, final SourceMapTransformer transformer, final Map<String, String> sourceMap) {
+		if(targetClass==null) throw new IllegalArgumentException("Passed target class was null");
+		if(sourceMap==null || sourceMap.isEmpty()) {
+			log("WARN: \n\tTransform requested on class [%s] with empty map. \n\tThis is a No Op. \n\tClass will not be instrumented.", targetClass.getName());
+			return;
+		}
+		RetransformChain.chain().advise(transformer, sourceMap).retransform(targetClass);
 	}
 	
 	
@@ -177,33 +244,454 @@ public class Retransformer {
 	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
 	 * @param sourceMap A map of source code replacements keyed by the method descriptor of the methods to replace
 	 */
-	public synchronized void transform(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
+	public void transform(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
 		if(targetClass==null) throw new IllegalArgumentException("Passed target class was null");
 		if(sourceMap==null) throw new IllegalArgumentException("Passed mocked class was null");
 		if(sourceMap.isEmpty()) {
-			log("WARN: \n\tTransform requested on class [%s] with empty map. \n\tThis is a No Op. \n\tClass will not be instrumented.");
+			log("WARN: \n\tTransform requested on class [%s] with empty map. \n\tThis is a No Op. \n\tClass will not be instrumented.", targetClass.getName());
 			return;
 		}
-		if(isClassInstrumented(targetClass)) {
-			//throw new RuntimeException("Class ["+ targetClass.getName() + "] already in instrumented state. Restore first and then and retransform");
-			restore(targetClass);
+		transformAll(Collections.<Class<?>, Map<String, String>>singletonMap(targetClass, sourceMap), failOnNotFound);
+	}
+
+	/**
+	 * Executes a batch of mock class method replacement transformations using a single transformer registration and a single retransform
+	 * @param mocks A map of the source of the mocked methods to inject keyed by the target class to transform
+	 */
+	public void transformAll(final Map<Class<?>, Class<?>> mocks) {
+		transformMocks(mocks, false);
+	}
+
+	/**
+	 * Executes a batch of mock class method replacement transformations using a single transformer registration and a single retransform
+	 * @param mocks A map of the source of the mocked methods to inject keyed by the target class to transform
+	 * @param parallel true to compile the target classes in parallel before the retransform, false to compile them on the calling thread
+	 */
+	void transformMocks(final Map<Class<?>, Class<?>> mocks, final boolean parallel) {
+		if(mocks==null) throw new IllegalArgumentException("Passed mock map was null");
+		if(mocks.isEmpty()) return;
+		final Map<Class<?>, ClassFileTransformer> transformers = new HashMap<Class<?>, ClassFileTransformer>(mocks.size());
+		final Set<Class<?>> transformTargets = new LinkedHashSet<Class<?>>(mocks.size());
+		for(Map.Entry<Class<?>, Class<?>> entry: mocks.entrySet()) {
+			final Class<?> targetClass = entry.getKey();
+			final Class<?> mockedClass = entry.getValue();
+			if(targetClass==null) throw new IllegalArgumentException("Passed mock map contained a null target class");
+			if(mockedClass==null) throw new IllegalArgumentException("Passed mock map contained a null mocked class for target [" + targetClass.getName() + "]");
+			final String internalFormName = internalForm(targetClass.getName());
+			transformers.put(targetClass, newClassFileTransformer(internalFormName, mockedClass));
+			transformTargets.add(targetClass);
+		}
+		retransformAll(transformers, transformTargets, parallel, true);
+	}
+
+	/**
+	 * Executes a batch of provided source method replacement transformations using a single transformer registration and a single retransform.
+	 * The target classes are compiled in parallel before the retransform, so the JVM's transformer callback only hands back the built bytes.
+	 * @param sourceMaps A map of source code replacement maps keyed by the target class to transform
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
+	 */
+	public void transformAll(final Map<Class<?>, Map<String, String>> sourceMaps, final boolean failOnNotFound) {
+		transformAll(sourceMaps, failOnNotFound, false, true);
+	}
+
+	/**
+	 * Applies one precompiled source map to each of the passed classes using a single transformer registration and a single retransform
+	 * @param sourceMap The precompiled source map to apply
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
+	 * @param targetClasses The classes to transform
+	 */
+	public void transformAll(final SourceMap sourceMap, final boolean failOnNotFound, final Class<?>... targetClasses) {
+		if(sourceMap==null) throw new IllegalArgumentException("Passed source map was null");
+		if(targetClasses==null) throw new IllegalArgumentException("Passed target class array was null");
+		final Map<Class<?>, Map<String, String>> sourceMaps = new LinkedHashMap<Class<?>, Map<String, String>>(targetClasses.length);
+		for(Class<?> clazz: targetClasses) {
+			sourceMaps.put(clazz, sourceMap);
+		}
+		transformAll(sourceMaps, failOnNotFound, false, true);
+	}
+
+	/**
+	 * Executes a batch of provided source method replacement transformations using a single transformer registration and a single retransform
+	 * @param sourceMaps A map of source code replacement maps keyed by the target class to transform
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
+	 * @param skipUnmatched true to skip target classes in which no methods were matched, false to throw
+	 * @param parallel true to compile the target classes in parallel before the retransform, false to compile them on the calling thread
+	 * @return the classes that were transformed
+	 */
+	Set<Class<?>> transformAll(final Map<Class<?>, Map<String, String>> sourceMaps, final boolean failOnNotFound, final boolean skipUnmatched, final boolean parallel) {
+		if(sourceMaps==null) throw new IllegalArgumentException("Passed source map was null");
+		if(sourceMaps.isEmpty()) return Collections.emptySet();
+		final Map<Class<?>, ClassFileTransformer> transformers = new HashMap<Class<?>, ClassFileTransformer>(sourceMaps.size());
+		final Map<Class<?>, SourceMap> appliedSources = new HashMap<Class<?>, SourceMap>(sourceMaps.size());
+		final Set<Class<?>> transformTargets = new LinkedHashSet<Class<?>>(sourceMaps.size());
+		for(Map.Entry<Class<?>, Map<String, String>> entry: sourceMaps.entrySet()) {
+			final Class<?> targetClass = entry.getKey();
+			if(targetClass==null) throw new IllegalArgumentException("Passed source map contained a null target class");
+			if(entry.getValue()==null || entry.getValue().isEmpty()) {
+				log("WARN: \n\tTransform requested on class [%s] with empty map. \n\tThis is a No Op. \n\tClass will not be instrumented.", targetClass.getName());
+				continue;
+			}
+			final SourceMap sourceMap = SourceMap.of(entry.getValue());
+			final Set<Class<?>> classTargets = new HashSet<Class<?>>();
+			final long matchStart = System.nanoTime();
+			final ClassFileTransformer transformer;
+			try {
+				if(skipUnmatched && getMatchedMethods(targetClass, false, sourceMap).isEmpty()) continue;
+				transformer = newClassFileTransformer(targetClass, failOnNotFound, sourceMap, classTargets);
+			} catch (RuntimeException rex) {
+				metrics.failed();
+				throw rex;
+			}
+			metrics.record(TransformMetrics.Phase.MATCH, targetClass.getName(), System.nanoTime() - matchStart);
+			for(Class<?> clazz: classTargets) {
+				final SourceMap applied = appliedSources.get(clazz);
+				if(applied!=null) {
+					// subclasses sharing a matched parent method with the same source need it transformed once
+					if(applied==sourceMap || applied.equals(sourceMap)) continue;
+					throw new IllegalArgumentException("Class [" + clazz.getName() + "] is targeted by more than one transform in the batch");
+				}
+				appliedSources.put(clazz, sourceMap);
+				transformers.put(clazz, transformer);
+				transformTargets.add(clazz);
+			}
+		}
+		if(transformTargets.isEmpty()) return transformTargets;
+		retransformAll(transformers, transformTargets, parallel, failOnNotFound);
+		return transformTargets;
+	}
+
+	/**
+	 * Executes a batch of chained transforms using a single transformer registration and a single retransform.
+	 * Every stage of a class's pipeline is applied to the same CtClass in one transformer callback.
+	 * @param pipelines The stages to apply keyed by the class to transform
+	 * @param parallel true to compile the target classes in parallel before the retransform, false to compile them on the calling thread
+	 */
+	void transformPipelines(final Map<Class<?>, List<RetransformChain.Stage<?>>> pipelines, final boolean parallel) {
+		if(pipelines==null) throw new IllegalArgumentException("Passed pipeline map was null");
+		if(pipelines.isEmpty()) return;
+		final Map<Class<?>, ClassFileTransformer> transformers = new HashMap<Class<?>, ClassFileTransformer>(pipelines.size());
+		final Set<Class<?>> transformTargets = new LinkedHashSet<Class<?>>(pipelines.size());
+		for(Map.Entry<Class<?>, List<RetransformChain.Stage<?>>> entry: pipelines.entrySet()) {
+			final Class<?> targetClass = entry.getKey();
+			if(targetClass==null) throw new IllegalArgumentException("Passed pipeline map contained a null target class");
+			if(entry.getValue()==null || entry.getValue().isEmpty()) throw new IllegalArgumentException("Passed pipeline map contained no stages for target [" + targetClass.getName() + "]");
+			final String internalFormName = internalForm(targetClass.getName());
+			transformers.put(targetClass, newPipelineTransformer(internalFormName, entry.getValue()));
+			transformTargets.add(targetClass);
+		}
+		retransformAll(transformers, transformTargets, parallel, true);
+	}
+
+	/**
+	 * Resolves the classes to transform from the result of a {@link Reflections} query.
+	 * Classes are returned as is and members (methods, constructors and fields) resolve to their declaring class.
+	 * Interfaces, annotations and classes the JVM cannot modify are dropped.
+	 * @param reflections The reflections instance to query
+	 * @param command The query to execute
+	 * @return the resolved classes
+	 */
+	public Set<Class<?>> resolveTargets(final Reflections reflections, final ReflectionCommand<?> command) {
+		if(reflections==null) throw new IllegalArgumentException("Passed reflections was null");
+		if(command==null) throw new IllegalArgumentException("Passed reflection command was null");
+		final Set<?> results = command.invoke(reflections);
+		final Set<Class<?>> targets = new LinkedHashSet<Class<?>>();
+		if(results==null) return targets;
+		for(Object result: results) {
+			final Class<?> clazz;
+			if(result instanceof Class) {
+				clazz = (Class<?>)result;
+			} else if(result instanceof Member) {
+				clazz = ((Member)result).getDeclaringClass();
+			} else {
+				continue;
+			}
+			if(clazz.isInterface() || clazz.isArray() || clazz.isPrimitive() || !instrumentation.isModifiableClass(clazz)) continue;
+			targets.add(clazz);
+		}
+		return targets;
+	}
+
+	/**
+	 * Grafts the methods of the passed mock class into every class resolved from a {@link Reflections} query.
+	 * The target classes are compiled in parallel and then retransformed in one batch.
+	 * @param reflections The reflections instance to query
+	 * @param command The query resolving the target classes
+	 * @param mockedClass The source of the mocked methods to inject into the targets
+	 * @return the classes that were transformed
+	 */
+	public <T> Set<Class<?>> transformAll(final Reflections reflections, final ReflectionCommand<T> command, final Class<?> mockedClass) {
+		if(mockedClass==null) throw new IllegalArgumentException("Passed mocked class was null");
+		final Set<Class<?>> targets = resolveTargets(reflections, command);
+		final Map<Class<?>, Class<?>> mocks = new HashMap<Class<?>, Class<?>>(targets.size());
+		for(Class<?> clazz: targets) {
+			mocks.put(clazz, mockedClass);
 		}
-		ClassFileTransformer transformer = null;
+		transformMocks(mocks, true);
+		return targets;
+	}
+
+	/**
+	 * Applies the passed source map to every class resolved from a {@link Reflections} query.
+	 * The target classes are compiled in parallel and then retransformed in one batch.
+	 * @param reflections The reflections instance to query
+	 * @param command The query resolving the target classes
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, resolved classes in which no methods are found are skipped.
+	 * @param sourceMap A map of source code replacements keyed by the method descriptor of the methods to replace
+	 * @return the classes that were transformed, which includes the declaring classes of matched inherited methods
+	 */
+	public <T> Set<Class<?>> transformAll(final Reflections reflections, final ReflectionCommand<T> command, final boolean failOnNotFound, final Map<String, String> sourceMap) {
+		if(sourceMap==null) throw new IllegalArgumentException("Passed source map was null");
+		final Set<Class<?>> targets = resolveTargets(reflections, command);
+		// parse the source map once for all the targets
+		final SourceMap parsed = SourceMap.of(sourceMap);
+		final Map<Class<?>, Map<String, String>> sourceMaps = new LinkedHashMap<Class<?>, Map<String, String>>(targets.size());
+		for(Class<?> clazz: targets) {
+			sourceMaps.put(clazz, parsed);
+		}
+		return transformAll(sourceMaps, failOnNotFound, !failOnNotFound, true);
+	}
+
+	/**
+	 * Asynchronously executes a mock class method replacement transformation
+	 * @param targetClass The target class to transform
+	 * @param mockedClass The source of the mocked methods to inject into the target
+	 * @return a future that completes when the class has been transformed
+	 */
+	public Future<Void> transformAsync(final Class<?> targetClass, final Class<?> mockedClass) {
+		if(targetClass==null) throw new IllegalArgumentException("Passed target class was null");
+		if(mockedClass==null) throw new IllegalArgumentException("Passed mocked class was null");
+		return transformExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				transform(targetClass, mockedClass);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously executes a provided source method replacement transformation
+	 * @param targetClass The target class to transform
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
+	 * @param sourceMap A map of source code replacements keyed by the method descriptor of the methods to replace
+	 * @return a future that completes when the class has been transformed
+	 */
+	public Future<Void> transformAsync(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
+		if(targetClass==null) throw new IllegalArgumentException("Passed target class was null");
+		if(sourceMap==null) throw new IllegalArgumentException("Passed source map was null");
+		return transformExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				transform(targetClass, failOnNotFound, sourceMap);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously executes a batch of mock class method replacement transformations
+	 * @param mocks A map of the source of the mocked methods to inject keyed by the target class to transform
+	 * @return a future that completes when all the classes have been transformed
+	 */
+	public Future<Void> transformAllAsync(final Map<Class<?>, Class<?>> mocks) {
+		if(mocks==null) throw new IllegalArgumentException("Passed mock map was null");
+		return transformExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				transformAll(mocks);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously executes a batch of provided source method replacement transformations
+	 * @param sourceMaps A map of source code replacement maps keyed by the target class to transform
+	 * @param failOnNotFound If true, any not found method will throw. Otherwise, if some (but not all) methods are not found, they are ignored.
+	 * @return a future that completes when all the classes have been transformed
+	 */
+	public Future<Void> transformAllAsync(final Map<Class<?>, Map<String, String>> sourceMaps, final boolean failOnNotFound) {
+		if(sourceMaps==null) throw new IllegalArgumentException("Passed source map was null");
+		return transformExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				transformAll(sourceMaps, failOnNotFound);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously restores transformed classes back to their original form
+	 * @param targetClasses The classes to restore
+	 * @return a future that completes when the classes have been restored
+	 */
+	public Future<Void> restoreAsync(final Class<?>... targetClasses) {
+		if(targetClasses==null) throw new IllegalArgumentException("Passed target class was null");
+		final Class<?>[] classes = targetClasses.clone();
+		return transformExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				restore(classes);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Locks the passed classes and builds their transformed bytes ahead of the retransform where a snapshot allows it. Classes whose transformed bytes
+	 * are identical to the bytes currently installed are skipped. The remaining classes that are instrumented are restored,
+	 * then a directive is registered for each class with the persistent dispatching transformer and they are all retransformed in one call.
+	 * @param transformers The transformers to dispatch to, keyed by the class they transform
+	 * @param transformTargets The classes to retransform
+	 * @param parallel true to compile the target classes in parallel on the compile executor, false to compile them on the calling thread
+	 * @param strict true to fail the whole batch if any class fails to compile, false to skip the failing classes and transform the rest
+	 */
+	private void retransformAll(final Map<Class<?>, ClassFileTransformer> transformers, final Set<Class<?>> transformTargets, final boolean parallel, final boolean strict) {
+		final ClassLockStripes.Held held = classLocks.lock(transformTargets);
 		try {
-			final Set<Class<?>> transformTargets = new HashSet<Class<?>>();
-			transformer = newClassFileTransformer(targetClass, failOnNotFound, sourceMap, transformTargets);
-			instrumentation.addTransformer(transformer, true);			
-			instrumentation.retransformClasses(transformTargets.toArray(new Class[transformTargets.size()]));
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to transform [" + targetClass.getName() + "]", ex);
+			final Set<Class<?>> applied = new LinkedHashSet<Class<?>>(transformTargets);
+			final List<DispatchingTransformer.Directive> directives = new ArrayList<DispatchingTransformer.Directive>(transformTargets.size());
+			try {
+				final Map<Class<?>, ClassFileTransformer> dispatch = precompile(transformers, applied, parallel, strict);
+				for(Class<?> clazz: transformTargets) {
+					if(applied.contains(clazz) && registry.isUnchanged(clazz)) {
+						// re-installing identical bytes would only pause the JVM and deoptimize dependent code
+						registry.discard(clazz);
+						applied.remove(clazz);
+						metrics.skipped();
+					}
+				}
+				if(applied.isEmpty()) return;
+				final Set<Class<?>> instrumented = new LinkedHashSet<Class<?>>();
+				for(Class<?> clazz: applied) {
+					if(isClassInstrumented(clazz)) instrumented.add(clazz);
+				}
+				if(!instrumented.isEmpty()) {
+					restoreLocked(instrumented.toArray(new Class[instrumented.size()]));
+				}
+				for(Class<?> clazz: applied) {
+					final ClassFileTransformer transformer = dispatch.get(clazz);
+					if(transformer!=null) directives.add(dispatcher.register(clazz, transformer));
+				}
+				final long start = System.nanoTime();
+				instrumentation.retransformClasses(applied.toArray(new Class[applied.size()]));
+				final long elapsed = System.nanoTime() - start;
+				final Map<Class<?>, Throwable> failures = new LinkedHashMap<Class<?>, Throwable>();
+				for(DispatchingTransformer.Directive directive: directives) {
+					// done with the directives, so a rollback below is not transformed again
+					dispatcher.unregister(directive);
+					if(directive.getFailure()!=null) failures.put(directive.target, directive.getFailure());
+				}
+				// the batch paused once, but every class in it sat through that pause
+				metrics.record(TransformMetrics.Phase.RETRANSFORM, null, elapsed);
+				for(Class<?> clazz: applied) {
+					if(failures.containsKey(clazz)) {
+						registry.discard(clazz);
+						continue;
+					}
+					metrics.recordClass(TransformMetrics.Phase.RETRANSFORM, clazz.getName(), elapsed);
+					// only classes the JVM actually took the bytes for count as transformed, not the ones skipped or failed
+					final InstrumentedRegistry.Record record = registry.commit(clazz);
+					if(record!=null) metrics.transformed(record.getTransformedSize());
+				}
+				applied.removeAll(failures.keySet());
+				if(!failures.isEmpty()) {
+					final Map.Entry<Class<?>, Throwable> first = failures.entrySet().iterator().next();
+					if(strict) {
+						// the failed classes were left unchanged, so put the rest of the batch back the way it was
+						if(!applied.isEmpty()) restoreLocked(applied.toArray(new Class[applied.size()]));
+						throw new RuntimeException("Failed to compile " + failures.keySet(), first.getValue());
+					}
+					for(Map.Entry<Class<?>, Throwable> failure: failures.entrySet()) {
+						loge("Skipped [%s] which failed to compile: %s", failure.getKey().getName(), failure.getValue());
+					}
+				}
+				metrics.applied(applied.size());
+			} catch (Exception ex) {
+				for(Class<?> clazz: transformTargets) {
+					registry.discard(clazz);
+				}
+				metrics.failed();
+				throw new RuntimeException("Failed to transform " + transformTargets, ex);
+			} finally {
+				for(DispatchingTransformer.Directive directive: directives) {
+					dispatcher.unregister(directive);
+				}
+			}
 		} finally {
-			if(transformer!=null) {
-				instrumentation.removeTransformer(transformer);
+			held.release();
+		}
+	}
+
+	/**
+	 * Runs the passed transformers ahead of the retransform over the snapshot of each target class that a previous retransform
+	 * callback captured, either in parallel on the compile executor or on the calling thread. The returned transformers hand
+	 * the already built bytes to the JVM only when the class bytes it supplies are identical to the snapshot, and otherwise
+	 * compile from the supplied bytes in the callback, so changes made by other transformers are never discarded.
+	 * Classes with no snapshot keep their original transformer and are compiled in the callback.
+	 * @param transformers The transformers keyed by the class they transform
+	 * @param transformTargets The classes to compile. When not strict, classes that fail to compile are removed.
+	 * @param parallel true to compile on the compile executor, false to compile on the calling thread
+	 * @param strict true to throw if any class fails to compile, false to log and remove the failing classes
+	 * @return the transformers to dispatch to
+	 */
+	private Map<Class<?>, ClassFileTransformer> precompile(final Map<Class<?>, ClassFileTransformer> transformers, final Set<Class<?>> transformTargets, final boolean parallel, final boolean strict) {
+		final Map<Class<?>, Future<byte[]>> futures = new LinkedHashMap<Class<?>, Future<byte[]>>(transformTargets.size());
+		final Map<Class<?>, byte[]> sources = new HashMap<Class<?>, byte[]>(transformTargets.size());
+		final Map<Class<?>, ClassFileTransformer> dispatch = new HashMap<Class<?>, ClassFileTransformer>(transformers);
+		for(final Class<?> clazz: transformTargets) {
+			final String internalFormName = internalForm(clazz.getName());
+			final ClassFileTransformer transformer = transformers.get(clazz);
+			if(transformer==null) continue;
+			// only bytes the JVM has handed to a callback are trusted; anything else is compiled in the callback
+			final byte[] snapshot = snapshots.get(clazz);
+			if(snapshot==null) continue;
+			sources.put(clazz, snapshot);
+			final Callable<byte[]> task = new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return transformer.transform(clazz.getClassLoader(), internalFormName, clazz, clazz.getProtectionDomain(), snapshot);
+				}
+			};
+			if(parallel) {
+				futures.put(clazz, compileExecutor.submit(task));
+			} else {
+				final FutureTask<byte[]> inline = new FutureTask<byte[]>(task);
+				inline.run();
+				futures.put(clazz, inline);
 			}
 		}
-		
+		for(Map.Entry<Class<?>, Future<byte[]>> entry: futures.entrySet()) {
+			final Class<?> clazz = entry.getKey();
+			final byte[] compiled;
+			try {
+				compiled = entry.getValue().get();
+			} catch (ExecutionException eex) {
+				if(strict) throw new RuntimeException("Failed to compile [" + clazz.getName() + "]", eex.getCause());
+				loge("Skipped [%s] which failed to compile: %s", clazz.getName(), eex.getCause());
+				registry.discard(clazz);
+				transformTargets.remove(clazz);
+				dispatch.remove(clazz);
+				continue;
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while compiling [" + clazz.getName() + "]", iex);
+			}
+			final byte[] source = sources.get(clazz);
+			final ClassFileTransformer transformer = transformers.get(clazz);
+			dispatch.put(clazz, new ClassFileTransformer() {
+				@Override
+				public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+					// the prebuilt bytes only stand in for a compile of the very same input
+					if(Arrays.equals(source, classfileBuffer)) return compiled;
+					return transformer.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+				}
+			});
+		}
+		return dispatch;
 	}
-	
+
 	/**
 	 * Helper to get the JVM spec signature for the passed method 
 	 * @param method The method to get a descriptor for
@@ -211,27 +699,9 @@ public class Retransformer {
 	 */
 	public static String getMethodDescriptor(final Method method) {
 		if(method==null) throw new IllegalArgumentException("Passed method was null");
-		try {
-			ClassPool cp = new ClassPool();
-			cp.appendSystemPath();
-			cp.appendClassPath(new LoaderClassPath(method.getDeclaringClass().getClassLoader()));
-			CtClass ctClass = cp.get(method.getDeclaringClass().getName());
-			final Class<?>[] paramTypes = method.getParameterTypes();			
-			final CtClass[] ctParams = new CtClass[method.getParameterTypes().length];
-			if(paramTypes.length>0) {
-				for(int i = 0; i < paramTypes.length; i++) {
-					Class<?> paramType = paramTypes[i];
-					ctParams[i] = cp.get(paramType.getName());
-				}				
-			}
-			CtMethod ctMethod = ctClass.getDeclaredMethod(method.getName(), ctParams);
-			return ctMethod.getSignature();
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to get descriptor for method [" + method.toGenericString() + "]", ex);
-		}
+		return Descriptors.getMethodDescriptor(method);
 	}
 	
-	private static final AtomicLong tempClassSerial = new AtomicLong(0L);
 	private static final Map<Class<?>, CtClass> PRIMITIVES;
 	private static final Map<String, CtClass> PRIMITIVENAMES;
 	
@@ -313,18 +783,10 @@ public class Retransformer {
 	public static String getMethodDescriptor(final String name, final Class<?> returnType, final Class<?>...typeArgs) {
 		if(name==null) throw new IllegalArgumentException("Passed method name was null");
 		try {
-			final ClassPool cp = new ClassPool();
-			cp.appendSystemPath();
-			final CtClass tmpClazz = cp.makeInterface("TempX" + tempClassSerial.incrementAndGet());
-			final CtClass[] params = new CtClass[typeArgs.length];
-			for(int i = 0; i < typeArgs.length; i++) {
-				params[i] = lookup(typeArgs[i], cp);
-			}
-			final CtMethod ctm = new CtMethod(returnType==null ? CtClass.voidType : lookup(returnType, cp), name, params, tmpClazz);
-			return ctm.getSignature();
+			return Descriptors.getMethodDescriptor(returnType, typeArgs);
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to get descriptor for method [" + name + Arrays.deepToString(typeArgs) + "]", ex);
-		}		
+		}
 	}
 	
 	/**
@@ -366,7 +828,7 @@ public class Retransformer {
 	 * @param transformTargets A set that the actual Java classes that need to be transformed should be written into
 	 * @return the transformer
 	 */
-	ClassFileTransformer newClassFileTransformer(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap, final Set<Class<?>> transformTargets) {
+	ClassFileTransformer newClassFileTransformer(final Class<?> targetClass, final boolean failOnNotFound, final SourceMap sourceMap, final Set<Class<?>> transformTargets) {
 		final Map<CtClass, Set<CtMethod>> actualTargets =  getMatchedMethods(targetClass, failOnNotFound, sourceMap);
 		if(actualTargets.isEmpty()) throw new RuntimeException("Failed to match any methods");
 		final Map<String, CtClass> internalClassNames = new HashMap<String, CtClass>(actualTargets.size());
@@ -389,50 +851,42 @@ public class Retransformer {
 					if(internalClassNames.containsKey(className)) {
 						try {
 							log("\n\t================\n\tTransforming [%s]\n\tUsing Source Map\n\t================", binaryForm(className));
-							final CtClass targetClazz = internalClassNames.get(className);							
-							ClassPool cp = targetClazz.getClassPool();														
-							if(loader!=null) {
-								cp.appendClassPath(new LoaderClassPath(loader));
-							}
-							Set<CtMethod> targetMethods = actualTargets.get(targetClazz);
-							for(CtMethod targetMethod: targetMethods) {
-								
-								
-								String sourceKey = null;
-								String source = null;
-								if(targetMethod.getParameterTypes().length>0) {
-									sourceKey = targetMethod.getName() + ":" + targetMethod.getSignature();
-									source = sourceMap.get(sourceKey);
-									if(source == null) {
-										// some slacker left off the descriptor because the method name is unique
-										sourceKey = targetMethod.getName();
-										source = sourceMap.get(sourceKey);
-									}
-								} else {
-									sourceKey = targetMethod.getName();
-									source = sourceMap.get(sourceKey);
+							// build a fresh CtClass from the bytes the JVM supplied, so earlier transformers' changes are kept
+							final CtClass matchedClazz = internalClassNames.get(className);
+							final CtClass targetClazz = matchedClazz.getClassPool().makeClass(new ByteArrayInputStream(classfileBuffer), false);
+							final String binaryName = binaryForm(className);
+							final long compileStart = System.nanoTime();
+							final MethodBodyCache bodyCache = MethodBodyCache.getInstance();
+							final String classDigest = MethodBodyCache.digest(classfileBuffer);
+							Set<CtMethod> targetMethods = actualTargets.get(matchedClazz);
+							for(CtMethod matchedMethod: targetMethods) {
+								final CtMethod targetMethod = targetClazz.getMethod(matchedMethod.getName(), matchedMethod.getSignature());
+								// the descriptor keyed source wins, otherwise some slacker left it off because the method name is unique
+								final SourceMap.Body body = sourceMap.lookup(targetMethod.getName(), targetMethod.getSignature());
+								if(body==null) {
+									throw new RuntimeException("Failed to locate source for method [" + targetMethod.getLongName() + "]");
 								}
 								
-								if(source==null) {
-									throw new RuntimeException("Failed to locate source with key [" + sourceKey + "] for method [" + targetMethod.getLongName() + "]");
+								final MethodBodyCache.Key bodyKey = bodyCache.key(classDigest, targetMethod, body.getSourceDigest());
+								if(!bodyCache.apply(bodyKey, targetMethod)) {
+									targetMethod.setBody(body.getSource());
+									bodyCache.store(bodyKey, targetMethod);
 								}
-								
-								targetMethod.setBody(source);
 							}
-							ConstPool constpool = targetClazz.getClassFile().getConstPool();
-							AnnotationsAttribute attr = new AnnotationsAttribute(constpool, AnnotationsAttribute.visibleTag);
-							javassist.bytecode.annotation.Annotation annot = new javassist.bytecode.annotation.Annotation(Instrumented.class.getName(), constpool);
-							StringMemberValue smv = new StringMemberValue("Source", constpool);
-							annot.addMemberValue("mockProvider", smv);
-							LongMemberValue timestamp = new LongMemberValue(System.currentTimeMillis(), constpool);
-							annot.addMemberValue("instrumentedTime", timestamp);
-							attr.addAnnotation(annot);	
-							targetClazz.getClassFile().addAttribute(attr);							
+							metrics.record(TransformMetrics.Phase.COMPILE, binaryName, System.nanoTime() - compileStart);
+							if(annotate) addInstrumentedAnnotation(targetClazz.getClassFile(), "Source");
+							final long bytecodeStart = System.nanoTime();
 							byte[] byteCode =  targetClazz.toBytecode();
+							metrics.record(TransformMetrics.Phase.BYTECODE, binaryName, System.nanoTime() - bytecodeStart);
+							registry.stage(classBeingRedefined, "Source", classfileBuffer.length, byteCode);
 							return byteCode;							
 						} catch (Exception ex) {
+							metrics.failed();
 							loge("Transform for [%s] using source map failed: %s", targetClass.getName(), ex);
 							throw new RuntimeException(ex);							
+						} finally {
+							// the shared pool must never hand out the modified CtClass again
+							ClassPoolCache.getInstance().detach(loader, binaryForm(className));
 						}
 					}
 					return classfileBuffer;
@@ -440,13 +894,84 @@ public class Retransformer {
 		};
 	}
 	
+	/**
+	 * Returns the registry of the currently instrumented classes
+	 * @return the instrumented class registry
+	 */
+	public InstrumentedRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * Returns the retransformer's instrumentation instance
+	 * @return the instrumentation instance
+	 */
 	public Instrumentation getInstrumentation() {
 		return instrumentation;
 	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getInstrumentationSource()
+	 */
+	@Override
+	public String getInstrumentationSource() {
+		return instrumentationSource;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getInstrumentationAcquisitionTime()
+	 */
+	@Override
+	public long getInstrumentationAcquisitionTime() {
+		return instrumentationAcquisitionTime;
+	}
+
+	/**
+	 * Returns the per-class lock stripes, which carry the lock contention metrics
+	 * @return the class lock stripes
+	 */
+	public ClassLockStripes getClassLocks() {
+		return classLocks;
+	}
+
+	/**
+	 * Returns the executor running asynchronous transforms and restores, which carries the queue and latency metrics
+	 * @return the transform executor
+	 */
+	public TransformExecutor getTransformExecutor() {
+		return transformExecutor;
+	}
+
+	/**
+	 * Returns the executor compiling target classes in parallel ahead of a batched retransform
+	 * @return the compile executor
+	 */
+	public TransformExecutor getCompileExecutor() {
+		return compileExecutor;
+	}
+
+	/**
+	 * Returns the per-phase transform timings
+	 * @return the transform metrics
+	 */
+	public TransformMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the store of pristine class bytes used to restore transformed classes
+	 * @return the class snapshot store
+	 */
+	public ClassSnapshotStore getSnapshotStore() {
+		return snapshots;
+	}
 	
 	
 	/**
-	 * Creates a new method replacement classfile transformer
+	 * Creates a new method replacement classfile transformer. The mocked methods are grafted onto the class bytes the JVM supplies
+	 * to the callback, so changes made by earlier transformers or redefinitions are kept.
 	 * @param internalFormClassName The class name to transform
 	 * @param mockedClass The class containing the mocked template methods to inject into the target class
 	 * @return the transformer
@@ -459,45 +984,26 @@ public class Retransformer {
 					if(internalFormClassName.equals(className)) {
 						log("\n\t================\n\tTransforming [%s]\n\tUsing [%s]\n\t================", binaryForm(internalFormClassName), mockedClass.getName());
 						try {
-							ClassPool cp = new ClassPool();
-							cp.appendSystemPath();
-							cp.appendClassPath(new ByteArrayClassPath(binaryName, classfileBuffer));
-							cp.appendClassPath(new LoaderClassPath(mockedClass.getClassLoader()));
-							cp.appendClassPath(new ClassClassPath(mockedClass));
-							CtClass targetClazz = cp.get(binaryName);
-							CtClass mockClazz = cp.get(mockedClass.getName());
-//							 
-							int methodCount = 0;
-							for(CtMethod templateMethod: mockClazz.getDeclaredMethods()) {
-								//if(!templateMethod.getDeclaringClass().equals(mockClazz)) continue;
-								CtMethod targetMethod = null;
-								// TODO:  getAnnotation(clazz) might not be implemented in JBoss 4.3's javassist version
-								if(templateMethod.getAnnotation(MethodIgnore.class) != null) continue;
-								try {
-									targetMethod = targetClazz.getDeclaredMethod(templateMethod.getName(), templateMethod.getParameterTypes());
-									targetClazz.removeMethod(targetMethod);
-									targetMethod.setBody(templateMethod, null);
-									targetClazz.addMethod(targetMethod);
-									methodCount++;
-								} catch (NotFoundException nfe) {					
-								}				
-							}
+							final long matchStart = System.nanoTime();
+							// graft onto the supplied class bytes directly, never the class resource; the target is never materialized in the shared pool
+							final ClassFile targetFile = MethodGrafter.read(classfileBuffer);
+							final ClassFile mockFile = ClassPoolCache.getInstance().getClassPool(mockedClass).get(mockedClass.getName()).getClassFile2();
+							metrics.record(TransformMetrics.Phase.MATCH, binaryName, System.nanoTime() - matchStart);
+							final long compileStart = System.nanoTime();
+							final int methodCount = MethodGrafter.graft(mockFile, targetFile);
 							if(methodCount==0) {
 								throw new RuntimeException("Failed to replace any methods");
 							}
-							ConstPool constpool = targetClazz.getClassFile().getConstPool();
-							AnnotationsAttribute attr = new AnnotationsAttribute(constpool, AnnotationsAttribute.visibleTag);
-							javassist.bytecode.annotation.Annotation annot = new javassist.bytecode.annotation.Annotation(Instrumented.class.getName(), constpool);
-							StringMemberValue smv = new StringMemberValue(mockedClass.getName(), constpool);
-							annot.addMemberValue("mockProvider", smv);
-							LongMemberValue timestamp = new LongMemberValue(System.currentTimeMillis(), constpool);
-							annot.addMemberValue("instrumentedTime", timestamp);
-							attr.addAnnotation(annot);	
-							targetClazz.getClassFile().addAttribute(attr);
+							metrics.record(TransformMetrics.Phase.COMPILE, binaryName, System.nanoTime() - compileStart);
+							if(annotate) addInstrumentedAnnotation(targetFile, mockedClass.getName());
 							
-							byte[] byteCode =  targetClazz.toBytecode();
+							final long bytecodeStart = System.nanoTime();
+							byte[] byteCode = MethodGrafter.write(targetFile);
+							metrics.record(TransformMetrics.Phase.BYTECODE, binaryName, System.nanoTime() - bytecodeStart);
+							registry.stage(classBeingRedefined, mockedClass.getName(), classfileBuffer.length, byteCode);
 							return byteCode;
 						} catch (Exception ex) {
+							metrics.failed();
 							loge("Transform for [%s] using [%s] failed: %s", binaryName, mockedClass.getName(), ex);
 							throw new RuntimeException(ex);
 						}
@@ -507,6 +1013,77 @@ public class Retransformer {
 		}; 
 	}
 	
+	/**
+	 * Creates a new chained transform classfile transformer that applies each stage of the passed pipeline in turn to one CtClass
+	 * @param internalFormClassName The class name to transform
+	 * @param stages The stages to apply, in order
+	 * @return the transformer
+	 */
+	ClassFileTransformer newPipelineTransformer(final String internalFormClassName, final List<RetransformChain.Stage<?>> stages) {
+		final String binaryName = binaryForm(internalFormClassName);
+		final StringBuilder b = new StringBuilder("Chain[");
+		for(RetransformChain.Stage<?> stage: stages) {
+			if(b.length() > 6) b.append(",");
+			b.append(stage.getName());
+		}
+		final String provider = b.append("]").toString();
+		return new ClassFileTransformer(){
+			@Override
+			public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+					if(internalFormClassName.equals(className)) {
+						log("\n\t================\n\tTransforming [%s]\n\tUsing %s\n\t================", binaryName, provider);
+						final TransformContext tc = TransformContext.acquire(binaryName, classfileBuffer);
+						try {
+							final long matchStart = System.nanoTime();
+							// build the CtClass from the supplied class bytes so every stage works on the same copy
+							final CtClass targetClazz = ClassPoolCache.getInstance().getClassPool(loader).makeClass(new ByteArrayInputStream(classfileBuffer), false);
+							metrics.record(TransformMetrics.Phase.MATCH, binaryName, System.nanoTime() - matchStart);
+							final long compileStart = System.nanoTime();
+							for(RetransformChain.Stage<?> stage: stages) {
+								tc.startStage(stage.getName());
+								stage.apply(targetClazz, tc);
+								tc.endStage();
+							}
+							metrics.record(TransformMetrics.Phase.COMPILE, binaryName, System.nanoTime() - compileStart);
+							metrics.recordStages(tc);
+							if(annotate) addInstrumentedAnnotation(targetClazz.getClassFile(), provider);
+							final long bytecodeStart = System.nanoTime();
+							byte[] byteCode = targetClazz.toBytecode();
+							metrics.record(TransformMetrics.Phase.BYTECODE, binaryName, System.nanoTime() - bytecodeStart);
+							tc.transformed(byteCode.length);
+							registry.stage(classBeingRedefined, provider, classfileBuffer.length, byteCode);
+							return byteCode;
+						} catch (Exception ex) {
+							metrics.failed();
+							loge("Transform for [%s] using %s failed: %s", binaryName, provider, ex);
+							throw new RuntimeException(ex);
+						} finally {
+							tc.release();
+							// the shared pool must never hand out the modified CtClass again
+							ClassPoolCache.getInstance().detach(loader, binaryName);
+						}
+					}
+					return classfileBuffer;
+			}
+		};
+	}
+	
+	/**
+	 * Adds the {@link Instrumented} annotation to the passed class file, keeping any visible annotations it already has
+	 * @param classFile The class file to annotate
+	 * @param provider The name of the instrumentation provider
+	 */
+	private static void addInstrumentedAnnotation(final ClassFile classFile, final String provider) {
+		final ConstPool constpool = classFile.getConstPool();
+		final AnnotationsAttribute existing = (AnnotationsAttribute)classFile.getAttribute(AnnotationsAttribute.visibleTag);
+		final AnnotationsAttribute attr = existing!=null ? existing : new AnnotationsAttribute(constpool, AnnotationsAttribute.visibleTag);
+		final javassist.bytecode.annotation.Annotation annot = new javassist.bytecode.annotation.Annotation(Instrumented.class.getName(), constpool);
+		annot.addMemberValue("mockProvider", new StringMemberValue(provider, constpool));
+		annot.addMemberValue("instrumentedTime", new LongMemberValue(System.currentTimeMillis(), constpool));
+		attr.addAnnotation(annot);
+		if(existing==null) classFile.addAttribute(attr);
+	}
+	
 	/**
 	 * Finds the matched methods 
 	 * @param targetClass The class to inspect and traverse from
@@ -517,33 +1094,22 @@ public class Retransformer {
 	protected Map<CtClass, Set<CtBehavior>> getMatchedBehaviors(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
 		try {
 			final Map<CtClass, Set<CtBehavior>> actualTargets = new HashMap<CtClass, Set<CtBehavior>>();
-			final ClassPool classPool = new ClassPool();
-			classPool.appendSystemPath();
-			classPool.appendClassPath(new ClassClassPath(targetClass));
+			final ClassPool classPool = ClassPoolCache.getInstance().getClassPool(targetClass);
 			final CtClass targetCtClass = classPool.get(targetClass.getName());
-			for(Map.Entry<String, String> entry: sourceMap.entrySet()) {
-				String key = entry.getKey();								
-				String bname = null;
-				String descriptor = null;
-				int index = key.indexOf(':');
-				if(index==-1) {
-					bname = key.trim();
-					descriptor = null;
-				} else {
-					bname = key.substring(0, index).trim();
-					descriptor = key.substring(index+1).trim();									
-				}								
-				final boolean ctor = targetClass.getSimpleName().equals(bname); 
+			final String simpleName = targetClass.getSimpleName();
+			for(SourceMap.Body body: SourceMap.of(sourceMap).bodies()) {
+				final boolean ctor = simpleName.equals(body.getName()); 
 				CtBehavior matched = null;
 				try {
 					if(ctor) {
-						matched = matchCtor(descriptor, targetCtClass);
+						matched = matchCtor(body.getDescriptor(), targetCtClass);
 					} else {
-						matched = matchMethod(bname, descriptor, targetCtClass);
+						matched = matchMethod(body.getName(), body.getDescriptor(), targetCtClass);
 					}
 				} catch (Exception ex) {
 					if(failOnNotFound) throw ex;
 				}
+				if(matched==null) continue;
 				Set<CtBehavior> behaviors = actualTargets.get(matched.getDeclaringClass());
 				if(behaviors==null) {
 					behaviors = new LinkedHashSet<CtBehavior>();
@@ -568,25 +1134,12 @@ public class Retransformer {
 	protected Map<CtClass, Set<CtMethod>> getMatchedMethods(final Class<?> targetClass, final boolean failOnNotFound, final Map<String, String> sourceMap) {
 		try {
 			final Map<CtClass, Set<CtMethod>> actualTargets = new HashMap<CtClass, Set<CtMethod>>();
-			final ClassPool classPool = new ClassPool();
-			classPool.appendSystemPath();
-			classPool.appendClassPath(new ClassClassPath(targetClass));
+			final ClassPool classPool = ClassPoolCache.getInstance().getClassPool(targetClass);
 			final CtClass targetCtClass = classPool.get(targetClass.getName());
-			for(Map.Entry<String, String> entry: sourceMap.entrySet()) {
-				String key = entry.getKey();								
-				String methodName = null;
-				String descriptor = null;
-				int index = key.indexOf(':');
-				if(index==-1) {
-					methodName = key.trim();
-					descriptor = null;
-				} else {
-					methodName = key.substring(0, index).trim();
-					descriptor = key.substring(index+1).trim();									
-				}								
+			for(SourceMap.Body body: SourceMap.of(sourceMap).bodies()) {
 				CtMethod matchedMethod = null;
 				try {
-					matchedMethod = matchMethod(methodName, descriptor, targetCtClass);
+					matchedMethod = matchMethod(body.getName(), body.getDescriptor(), targetCtClass);
 					// =============================================================================================
 					//   Class redefinition !!!
 					// =============================================================================================
@@ -600,6 +1153,7 @@ public class Retransformer {
 				} catch (Exception ex) {
 					if(failOnNotFound) throw ex;
 				}
+				if(matchedMethod==null) continue;
 				Set<CtMethod> methods = actualTargets.get(matchedMethod.getDeclaringClass());
 				if(methods==null) {
 					methods = new HashSet<CtMethod>();
@@ -619,51 +1173,38 @@ public class Retransformer {
 	 * @return the matched ctor
 	 */
 	protected static CtConstructor matchCtor(final String descriptor, final CtClass klass) {
+		final BehaviorIndex index = ClassPoolCache.getInstance().getBehaviorIndex(klass);
 		if(descriptor==null) {
-			final CtConstructor[] ctors = klass.getConstructors();
+			final CtConstructor[] ctors = index.getConstructors();
 			if(ctors.length!=1) throw new RuntimeException("Class [" + klass.getName() + "] has multiple ctors and no descriptor was supplied");
 			return ctors[0];
-		} else {
-			try {
-				return klass.getConstructor(descriptor);
-			} catch (NotFoundException e) {
-				throw new RuntimeException("Failed to find ctor for [" + klass.getName() + "] with descriptor [" + descriptor + "]");
-			}
 		}
+		final CtConstructor ctor = index.getConstructor(descriptor);
+		if(ctor==null) throw new RuntimeException("Failed to find ctor for [" + klass.getName() + "] with descriptor [" + descriptor + "]");
+		return ctor;
 	}
 	
 	
 	/**
-	 * Matches a method name and optional descriptor
+	 * Matches a method name and optional descriptor against the cached behavior index of the passed class.
+	 * A method declared by the class is preferred, then the method declared by the nearest superclass.
 	 * @param methodName The method name
 	 * @param descriptor The optional descriptor
 	 * @param klass The class to inspect
 	 * @return the matched method
 	 */
 	protected static CtMethod matchMethod(final String methodName, final String descriptor, final CtClass klass) {
-		CtMethod ctMethod = null;
 		try {
+			final BehaviorIndex index = ClassPoolCache.getInstance().getBehaviorIndex(klass);
+			CtMethod ctMethod = null;
 			if(descriptor==null) {
-				try {
-					ctMethod = klass.getDeclaredMethod(methodName);
-				} catch (NotFoundException nfe) {
-					CtClass crnt = klass;
-					while(crnt.getSuperclass()!=null) {
-						crnt = crnt.getSuperclass();
-						try {
-							ctMethod = crnt.getDeclaredMethod(methodName);
-							// check to see if this is ambig.
-							int cnt = 0;
-							for(CtMethod ctm: crnt.getMethods()) {
-								if(methodName.equals(ctm.getName())) cnt++;
-							}
-							if(cnt>1) throw new RuntimeException("Method match failed on [" + methodName + "]. Ambiguous methods. Please specify a method descriptor");
-							break;
-						} catch (NotFoundException nfx) { /* No Op */}
-					}
+				ctMethod = index.getDeclaredMethod(methodName);
+				if(ctMethod==null) {
+					ctMethod = index.getInheritedMethod(methodName);
+					if(ctMethod!=null && index.isAmbiguous(methodName)) throw new RuntimeException("Method match failed on [" + methodName + "]. Ambiguous methods. Please specify a method descriptor");
 				}
 			} else {
-				ctMethod = klass.getMethod(methodName, descriptor);
+				ctMethod = index.getMethod(methodName, descriptor);
 			}
 			if(ctMethod==null) throw new NotFoundException("Failed to find method [" + methodName + "]");
 			return ctMethod;
@@ -676,14 +1217,52 @@ public class Retransformer {
 	
 	
 	/**
-	 * Restores transformed classes back to their original form 
+	 * Restores transformed classes back to their original form.
+	 * Classes with a captured snapshot are redefined directly from the snapshot bytes.
+	 * Any others are retransformed with no transformer attached.
 	 * @param targetClasses The classes to restore
 	 */
-	public synchronized void restore(final Class<?>... targetClasses) {
+	public void restore(final Class<?>... targetClasses) {
 		if(targetClasses==null) throw new IllegalArgumentException("Passed target class was null");
+		final ClassLockStripes.Held held = classLocks.lock(targetClasses);
+		try {
+			restoreLocked(targetClasses);
+		} finally {
+			held.release();
+		}
+	}
+
+	/**
+	 * Restores transformed classes back to their original form. The caller must hold the class locks.
+	 * @param targetClasses The classes to restore
+	 */
+	private void restoreLocked(final Class<?>... targetClasses) {
+		final List<ClassDefinition> definitions = new ArrayList<ClassDefinition>(targetClasses.length);
+		final List<Class<?>> retransforms = new ArrayList<Class<?>>(targetClasses.length);
+		final boolean redefine = instrumentation.isRedefineClassesSupported();
+		for(Class<?> clazz: targetClasses) {
+			final byte[] snapshot = redefine ? snapshots.get(clazz) : null;
+			if(snapshot!=null) {
+				definitions.add(new ClassDefinition(clazz, snapshot));
+			} else {
+				retransforms.add(clazz);
+			}
+		}
 		try {
 //			log("\n\t================\n\tRestoring [%s]\n\t================", targetClass.getName());
-			instrumentation.retransformClasses(targetClasses);
+			if(!definitions.isEmpty()) {
+				final long start = System.nanoTime();
+				instrumentation.redefineClasses(definitions.toArray(new ClassDefinition[definitions.size()]));
+				snapshots.restored(definitions.size(), System.nanoTime() - start);
+			}
+			if(!retransforms.isEmpty()) {
+				instrumentation.retransformClasses(retransforms.toArray(new Class[retransforms.size()]));
+			}
+			for(Class<?> clazz: targetClasses) {
+				registry.remove(clazz);
+				// drop the pooled CtClass and any behavior indexes built over the redefined class
+				ClassPoolCache.getInstance().detach(clazz.getClassLoader(), clazz.getName());
+			}
 		} catch (Throwable e) {
 			throw new RuntimeException("Failed to restore classes " + Arrays.toString(targetClasses) , e);
 		}
@@ -759,12 +1338,15 @@ public class Retransformer {
 	
 	/**
 	 * <p>Title: InstrumentedImpl</p>
-	 * <p>Description: A concrete pojo to represent an @Instrumented annotation instance</p> 
+	 * <p>Description: A concrete pojo to represent the instrumented state of a class, read from the {@link InstrumentedRegistry}
+	 * or, failing that, from an @Instrumented annotation instance</p> 
 	 * <p>Company: Helios Development Group LLC</p>
 	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
 	 * <p><code>com.heliosapm.aop.retransformer.Retransformer.InstrumentedImpl</code></p>
 	 */
 	public static class InstrumentedImpl {
+		/** The registry record */
+		final InstrumentedRegistry.Record r;
 		/** The annotation instance */
 		final Instrumented i;
 		/** The [possibly instrumented] class */
@@ -777,7 +1359,8 @@ public class Retransformer {
 		public InstrumentedImpl(final Class<?> clazz) {
 			if(clazz==null) throw new IllegalArgumentException("Passed class was null");
 			this.clazz = clazz;			
-			this.i = clazz.getAnnotation(Instrumented.class);
+			this.r = InstrumentedRegistry.getInstance().get(clazz);
+			this.i = r==null ? clazz.getAnnotation(Instrumented.class) : null;
 		}
 		
 		/**
@@ -785,6 +1368,7 @@ public class Retransformer {
 		 * @return the mock provider class name 
 		 */
 		public String getMockProvider() {
+			if(r!=null) return r.getProvider();
 			return i!=null ? i.mockProvider() : null;
 		}
 		
@@ -793,6 +1377,7 @@ public class Retransformer {
 		 * @return the timestamp of the instrumentation event
 		 */
 		public long getInstrumentedTime() {
+			if(r!=null) return r.getTimestamp();
 			return i==null ? -1L : i.instrumentedTime();
 		}
 		
@@ -802,12 +1387,372 @@ public class Retransformer {
 		 */
 		@Override
 		public String toString() {
-			return String.format("Instrumented [\n\tclass:%s, \n\tmock:%s, \n\ttime:%s\n]", clazz.getName(), getMockProvider(), i==null ? "" : new Date(i.instrumentedTime()));
+			return String.format("Instrumented [\n\tclass:%s, \n\tmock:%s, \n\ttime:%s\n]", clazz.getName(), getMockProvider(), getInstrumentedTime()==-1L ? "" : new Date(getInstrumentedTime()));
 		}
 		
 	}
 	
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getTransformCount()
+	 */
+	@Override
+	public long getTransformCount() {
+		return metrics.getTransforms();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getFailureCount()
+	 */
+	@Override
+	public long getFailureCount() {
+		return metrics.getFailures();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBytesProduced()
+	 */
+	@Override
+	public long getBytesProduced() {
+		return metrics.getBytesProduced();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getAppliedCount()
+	 */
+	@Override
+	public long getAppliedCount() {
+		return metrics.getApplied();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getSkippedCount()
+	 */
+	@Override
+	public long getSkippedCount() {
+		return metrics.getSkipped();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getDispatchCount()
+	 */
+	@Override
+	public long getDispatchCount() {
+		return dispatcher.getDispatched();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getActiveDirectiveCount()
+	 */
+	@Override
+	public int getActiveDirectiveCount() {
+		return dispatcher.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getMatchCount()
+	 */
+	@Override
+	public long getMatchCount() {
+		return metrics.get(TransformMetrics.Phase.MATCH).getCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getMatchP50()
+	 */
+	@Override
+	public long getMatchP50() {
+		return metrics.get(TransformMetrics.Phase.MATCH).percentile(50);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getMatchP99()
+	 */
+	@Override
+	public long getMatchP99() {
+		return metrics.get(TransformMetrics.Phase.MATCH).percentile(99);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getMatchMax()
+	 */
+	@Override
+	public long getMatchMax() {
+		return metrics.get(TransformMetrics.Phase.MATCH).getMax();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getCompileCount()
+	 */
+	@Override
+	public long getCompileCount() {
+		return metrics.get(TransformMetrics.Phase.COMPILE).getCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getCompileP50()
+	 */
+	@Override
+	public long getCompileP50() {
+		return metrics.get(TransformMetrics.Phase.COMPILE).percentile(50);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getCompileP99()
+	 */
+	@Override
+	public long getCompileP99() {
+		return metrics.get(TransformMetrics.Phase.COMPILE).percentile(99);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getCompileMax()
+	 */
+	@Override
+	public long getCompileMax() {
+		return metrics.get(TransformMetrics.Phase.COMPILE).getMax();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBytecodeCount()
+	 */
+	@Override
+	public long getBytecodeCount() {
+		return metrics.get(TransformMetrics.Phase.BYTECODE).getCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBytecodeP50()
+	 */
+	@Override
+	public long getBytecodeP50() {
+		return metrics.get(TransformMetrics.Phase.BYTECODE).percentile(50);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBytecodeP99()
+	 */
+	@Override
+	public long getBytecodeP99() {
+		return metrics.get(TransformMetrics.Phase.BYTECODE).percentile(99);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBytecodeMax()
+	 */
+	@Override
+	public long getBytecodeMax() {
+		return metrics.get(TransformMetrics.Phase.BYTECODE).getMax();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getRetransformCount()
+	 */
+	@Override
+	public long getRetransformCount() {
+		return metrics.get(TransformMetrics.Phase.RETRANSFORM).getCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getRetransformP50()
+	 */
+	@Override
+	public long getRetransformP50() {
+		return metrics.get(TransformMetrics.Phase.RETRANSFORM).percentile(50);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getRetransformP99()
+	 */
+	@Override
+	public long getRetransformP99() {
+		return metrics.get(TransformMetrics.Phase.RETRANSFORM).percentile(99);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getRetransformMax()
+	 */
+	@Override
+	public long getRetransformMax() {
+		return metrics.get(TransformMetrics.Phase.RETRANSFORM).getMax();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getTimedClasses()
+	 */
+	@Override
+	public String[] getTimedClasses() {
+		return metrics.getTimedClasses();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getClassPhaseTimes(java.lang.String)
+	 */
+	@Override
+	public Map<String, Long> getClassPhaseTimes(final String className) {
+		return metrics.summary(className);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getStageTimes()
+	 */
+	@Override
+	public Map<String, Long> getStageTimes() {
+		return metrics.stageSummary();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#resetMetrics()
+	 */
+	@Override
+	public void resetMetrics() {
+		metrics.reset();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getClassPoolCount()
+	 */
+	@Override
+	public int getClassPoolCount() {
+		return ClassPoolCache.getInstance().getPoolCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getClassPoolHits()
+	 */
+	@Override
+	public long getClassPoolHits() {
+		return ClassPoolCache.getInstance().getHits();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getClassPoolMisses()
+	 */
+	@Override
+	public long getClassPoolMisses() {
+		return ClassPoolCache.getInstance().getMisses();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBodyCacheSize()
+	 */
+	@Override
+	public int getBodyCacheSize() {
+		return MethodBodyCache.getInstance().size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getBodyCacheHitRate()
+	 */
+	@Override
+	public int getBodyCacheHitRate() {
+		return MethodBodyCache.getInstance().getHitRate();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getSnapshotCount()
+	 */
+	@Override
+	public int getSnapshotCount() {
+		return snapshots.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getSnapshotBytes()
+	 */
+	@Override
+	public long getSnapshotBytes() {
+		return snapshots.getStoredBytes();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getRestoreCount()
+	 */
+	@Override
+	public long getRestoreCount() {
+		return snapshots.getRestoreCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getLockContended()
+	 */
+	@Override
+	public long getLockContended() {
+		return classLocks.getContended();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getAsyncQueueDepth()
+	 */
+	@Override
+	public int getAsyncQueueDepth() {
+		return transformExecutor.getQueueDepth();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getAsyncAverageLatency()
+	 */
+	@Override
+	public long getAsyncAverageLatency() {
+		return transformExecutor.getAverageLatency();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getCompileQueueDepth()
+	 */
+	@Override
+	public int getCompileQueueDepth() {
+		return compileExecutor.getQueueDepth();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.RetransformerMXBean#getCompileCompleted()
+	 */
+	@Override
+	public long getCompileCompleted() {
+		return compileExecutor.getCompleted();
+	}
+
 	/**
 	 * Standard out logger 
 	 * @param fmt The message format
@@ -0,0 +1,106 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * <p>Title: RetransformerAgent</p>
+ * <p>Description: The java agent entry point. When the retransformer jar is loaded with <b><code>-javaagent</code></b>
+ * or attached to a running JVM, the agent captures the {@link Instrumentation} instance so the {@link Retransformer}
+ * can use it directly instead of self-attaching through tools.jar.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.RetransformerAgent</code></p>
+ */
+
+public class RetransformerAgent {
+	/** The instrumentation instance passed to the agent */
+	private static volatile Instrumentation instrumentation = null;
+	/** The agent arguments */
+	private static volatile String agentArgs = null;
+	/** The agent entry point that was invoked (premain or agentmain) */
+	private static volatile String entryPoint = null;
+
+	/**
+	 * The pre-main entry point for agents loaded with <b><code>-javaagent</code></b>
+	 * @param args The agent arguments
+	 * @param inst The instrumentation instance
+	 */
+	public static void premain(final String args, final Instrumentation inst) {
+		install("premain", args, inst);
+	}
+
+	/**
+	 * The agent-main entry point for agents attached to a running JVM
+	 * @param args The agent arguments
+	 * @param inst The instrumentation instance
+	 */
+	public static void agentmain(final String args, final Instrumentation inst) {
+		install("agentmain", args, inst);
+	}
+
+	/**
+	 * Captures the passed instrumentation instance
+	 * @param entry The invoked entry point
+	 * @param args The agent arguments
+	 * @param inst The instrumentation instance
+	 */
+	private static void install(final String entry, final String args, final Instrumentation inst) {
+		if(inst==null) return;
+		agentArgs = args;
+		entryPoint = entry;
+		instrumentation = inst;
+		Retransformer.log("RetransformerAgent installed via %s", entry);
+	}
+
+	/**
+	 * Returns the instrumentation instance captured by the agent
+	 * @return the instrumentation instance, or null if the agent was not loaded
+	 */
+	public static Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * Indicates if the agent was loaded
+	 * @return true if the agent was loaded, false otherwise
+	 */
+	public static boolean isInstalled() {
+		return instrumentation!=null;
+	}
+
+	/**
+	 * Returns the agent arguments
+	 * @return the agent arguments, or null if none were passed or the agent was not loaded
+	 */
+	public static String getAgentArgs() {
+		return agentArgs;
+	}
+
+	/**
+	 * Returns the agent entry point that was invoked
+	 * @return <b><code>premain</code></b>, <b><code>agentmain</code></b>, or null if the agent was not loaded
+	 */
+	public static String getEntryPoint() {
+		return entryPoint;
+	}
+
+	private RetransformerAgent() {}
+}
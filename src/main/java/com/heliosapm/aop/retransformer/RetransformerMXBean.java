@@ -0,0 +1,286 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.Map;
+
+/**
+ * <p>Title: RetransformerMXBean</p>
+ * <p>Description: JMX management interface for the {@link Retransformer}. All times are in ns.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.RetransformerMXBean</code></p>
+ */
+
+public interface RetransformerMXBean {
+	/** The JMX ObjectName of the Retransformer MXBean */
+	public static final String OBJECT_NAME = "com.heliosapm.aop.retransformer:service=Retransformer";
+
+	/**
+	 * Returns a description of where the instrumentation instance was acquired from
+	 * @return the instrumentation source
+	 */
+	public String getInstrumentationSource();
+
+	/**
+	 * Returns the time it took to acquire the instrumentation instance
+	 * @return the instrumentation acquisition time
+	 */
+	public long getInstrumentationAcquisitionTime();
+
+	/**
+	 * Returns the number of classes retransformed with transformed bytes. Classes skipped because their bytes were unchanged are not counted.
+	 * @return the transform count
+	 */
+	public long getTransformCount();
+
+	/**
+	 * Returns the number of failed class transforms
+	 * @return the failure count
+	 */
+	public long getFailureCount();
+
+	/**
+	 * Returns the number of transformed class bytes retransformed into classes
+	 * @return the produced byte count
+	 */
+	public long getBytesProduced();
+
+	/**
+	 * Returns the number of classes retransformed
+	 * @return the applied count
+	 */
+	public long getAppliedCount();
+
+	/**
+	 * Returns the number of classes not retransformed because their transformed bytes were already installed
+	 * @return the skipped count
+	 */
+	public long getSkippedCount();
+
+	/**
+	 * Returns the number of class file buffers the dispatching transformer has routed to a transform directive
+	 * @return the dispatch count
+	 */
+	public long getDispatchCount();
+
+	/**
+	 * Returns the number of transform directives currently registered with the dispatching transformer
+	 * @return the active directive count
+	 */
+	public int getActiveDirectiveCount();
+
+	/**
+	 * Returns the number of timed match phases
+	 * @return the match phase count
+	 */
+	public long getMatchCount();
+
+	/**
+	 * Returns the approximate median match phase time
+	 * @return the p50 match time
+	 */
+	public long getMatchP50();
+
+	/**
+	 * Returns the approximate 99th percentile match phase time
+	 * @return the p99 match time
+	 */
+	public long getMatchP99();
+
+	/**
+	 * Returns the maximum match phase time
+	 * @return the max match time
+	 */
+	public long getMatchMax();
+
+	/**
+	 * Returns the number of timed compile phases
+	 * @return the compile phase count
+	 */
+	public long getCompileCount();
+
+	/**
+	 * Returns the approximate median compile phase time
+	 * @return the p50 compile time
+	 */
+	public long getCompileP50();
+
+	/**
+	 * Returns the approximate 99th percentile compile phase time
+	 * @return the p99 compile time
+	 */
+	public long getCompileP99();
+
+	/**
+	 * Returns the maximum compile phase time
+	 * @return the max compile time
+	 */
+	public long getCompileMax();
+
+	/**
+	 * Returns the number of timed bytecode phases
+	 * @return the bytecode phase count
+	 */
+	public long getBytecodeCount();
+
+	/**
+	 * Returns the approximate median bytecode phase time
+	 * @return the p50 bytecode time
+	 */
+	public long getBytecodeP50();
+
+	/**
+	 * Returns the approximate 99th percentile bytecode phase time
+	 * @return the p99 bytecode time
+	 */
+	public long getBytecodeP99();
+
+	/**
+	 * Returns the maximum bytecode phase time
+	 * @return the max bytecode time
+	 */
+	public long getBytecodeMax();
+
+	/**
+	 * Returns the number of timed retransform phases
+	 * @return the retransform phase count
+	 */
+	public long getRetransformCount();
+
+	/**
+	 * Returns the approximate median retransform phase time
+	 * @return the p50 retransform time
+	 */
+	public long getRetransformP50();
+
+	/**
+	 * Returns the approximate 99th percentile retransform phase time
+	 * @return the p99 retransform time
+	 */
+	public long getRetransformP99();
+
+	/**
+	 * Returns the maximum retransform phase time
+	 * @return the max retransform time
+	 */
+	public long getRetransformMax();
+
+	/**
+	 * Returns the names of the classes with recorded phase times
+	 * @return the timed class names
+	 */
+	public String[] getTimedClasses();
+
+	/**
+	 * Returns the phase times for the passed class, keyed by <b><code>&lt;phase&gt;.&lt;count|p50|p99|max&gt;</code></b>
+	 * @param className The binary name of the class
+	 * @return the phase times
+	 */
+	public Map<String, Long> getClassPhaseTimes(String className);
+
+	/**
+	 * Returns the chained transform stage times, keyed by <b><code>&lt;stage&gt;.&lt;count|p50|p99|max&gt;</code></b>
+	 * @return the stage times
+	 */
+	public Map<String, Long> getStageTimes();
+
+	/**
+	 * Resets the transform metrics
+	 */
+	public void resetMetrics();
+
+	/**
+	 * Returns the number of shared class pools
+	 * @return the class pool count
+	 */
+	public int getClassPoolCount();
+
+	/**
+	 * Returns the number of CtClass lookups served from the shared class pools
+	 * @return the class pool hit count
+	 */
+	public long getClassPoolHits();
+
+	/**
+	 * Returns the number of CtClass lookups that loaded the class into the shared class pools
+	 * @return the class pool miss count
+	 */
+	public long getClassPoolMisses();
+
+	/**
+	 * Returns the number of cached method bodies
+	 * @return the method body cache size
+	 */
+	public int getBodyCacheSize();
+
+	/**
+	 * Returns the method body cache hit rate as a percentage
+	 * @return the method body cache hit rate
+	 */
+	public int getBodyCacheHitRate();
+
+	/**
+	 * Returns the number of class snapshots held
+	 * @return the snapshot count
+	 */
+	public int getSnapshotCount();
+
+	/**
+	 * Returns the number of bytes held by the class snapshots
+	 * @return the snapshot bytes
+	 */
+	public long getSnapshotBytes();
+
+	/**
+	 * Returns the number of restored classes
+	 * @return the restore count
+	 */
+	public long getRestoreCount();
+
+	/**
+	 * Returns the number of contended class lock acquisitions
+	 * @return the contended lock count
+	 */
+	public long getLockContended();
+
+	/**
+	 * Returns the number of queued asynchronous transforms
+	 * @return the async queue depth
+	 */
+	public int getAsyncQueueDepth();
+
+	/**
+	 * Returns the average asynchronous transform submit-to-completion latency
+	 * @return the average async latency
+	 */
+	public long getAsyncAverageLatency();
+
+	/**
+	 * Returns the number of class compilations queued ahead of a batched retransform
+	 * @return the compile queue depth
+	 */
+	public int getCompileQueueDepth();
+
+	/**
+	 * Returns the number of class compilations completed ahead of a batched retransform
+	 * @return the completed compile count
+	 */
+	public long getCompileCompleted();
+}
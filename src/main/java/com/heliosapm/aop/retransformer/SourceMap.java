@@ -0,0 +1,236 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Title: SourceMap</p>
+ * <p>Description: An immutable, precompiled source map. The <b><code>&lt;name&gt;[:&lt;descriptor&gt;]</code></b> keys are parsed once,
+ * the names interned, and the digest of each source computed once, so the same source map can be applied to any number of classes
+ * with behaviors resolved by two hash lookups and no string work. A SourceMap is also a read-only {@link Map} of the original keys
+ * to their sources, so it can be passed wherever a raw source map is accepted without being parsed again.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.SourceMap</code></p>
+ */
+
+public final class SourceMap extends AbstractMap<String, String> {
+	/** The original keys and sources in iteration order */
+	private final Map<String, String> sources;
+	/** The parsed bodies in iteration order */
+	private final List<Body> bodies;
+	/** The bodies with a descriptor keyed by name and then descriptor */
+	private final Map<String, Map<String, Body>> byDescriptor = new HashMap<String, Map<String, Body>>();
+	/** The bodies without a descriptor keyed by name */
+	private final Map<String, Body> byName = new HashMap<String, Body>();
+
+	/**
+	 * Returns a SourceMap for the passed source map, which is returned as is if it is already a SourceMap
+	 * @param sourceMap The source map keyed by <b><code>&lt;name&gt;[:&lt;descriptor&gt;]</code></b>
+	 * @return the SourceMap
+	 */
+	public static SourceMap of(final Map<String, String> sourceMap) {
+		if(sourceMap==null) throw new IllegalArgumentException("Passed source map was null");
+		if(sourceMap instanceof SourceMap) return (SourceMap)sourceMap;
+		return new SourceMap(sourceMap);
+	}
+
+	/**
+	 * Creates a new SourceMap
+	 * @param sourceMap The source map keyed by <b><code>&lt;name&gt;[:&lt;descriptor&gt;]</code></b>
+	 */
+	private SourceMap(final Map<String, String> sourceMap) {
+		final Map<String, String> copy = new LinkedHashMap<String, String>(sourceMap);
+		final List<Body> list = new ArrayList<Body>(copy.size());
+		for(Map.Entry<String, String> entry: copy.entrySet()) {
+			final String key = entry.getKey();
+			if(key==null) throw new IllegalArgumentException("Passed source map contained a null key");
+			if(entry.getValue()==null) throw new IllegalArgumentException("Passed source map contained a null source for [" + key + "]");
+			final int index = key.indexOf(':');
+			final String name = (index==-1 ? key : key.substring(0, index)).trim().intern();
+			final String descriptor = index==-1 ? null : key.substring(index+1).trim().intern();
+			final Body body = new Body(key, name, descriptor, entry.getValue());
+			list.add(body);
+			if(descriptor==null) {
+				byName.put(name, body);
+			} else {
+				Map<String, Body> descs = byDescriptor.get(name);
+				if(descs==null) {
+					descs = new HashMap<String, Body>(4);
+					byDescriptor.put(name, descs);
+				}
+				descs.put(descriptor, body);
+			}
+		}
+		sources = Collections.unmodifiableMap(copy);
+		bodies = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Returns the body for the behavior with the passed name and descriptor, preferring a body keyed with the
+	 * descriptor over one keyed by the name alone
+	 * @param name The behavior name
+	 * @param descriptor The behavior descriptor
+	 * @return the body, or null if the source map has no source for the behavior
+	 */
+	public Body lookup(final String name, final String descriptor) {
+		final Map<String, Body> descs = byDescriptor.get(name);
+		if(descs!=null) {
+			final Body body = descs.get(descriptor);
+			if(body!=null) return body;
+		}
+		return byName.get(name);
+	}
+
+	/**
+	 * Returns the parsed bodies in iteration order
+	 * @return the parsed bodies
+	 */
+	public List<Body> bodies() {
+		return bodies;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.AbstractMap#get(java.lang.Object)
+	 */
+	@Override
+	public String get(final Object key) {
+		return sources.get(key);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.AbstractMap#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey(final Object key) {
+		return sources.containsKey(key);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.AbstractMap#size()
+	 */
+	@Override
+	public int size() {
+		return sources.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.AbstractMap#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return sources.entrySet();
+	}
+
+	/**
+	 * <p>Title: Body</p>
+	 * <p>Description: A parsed source map entry</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.SourceMap.Body</code></p>
+	 */
+	public static final class Body {
+		/** The original source map key */
+		private final String key;
+		/** The interned behavior name */
+		private final String name;
+		/** The interned behavior descriptor, or null if none was supplied */
+		private final String descriptor;
+		/** The source */
+		private final String source;
+		/** The digest of the source */
+		private final String sourceDigest;
+
+		/**
+		 * Creates a new Body
+		 * @param key The original source map key
+		 * @param name The interned behavior name
+		 * @param descriptor The interned behavior descriptor, or null if none was supplied
+		 * @param source The source
+		 */
+		private Body(final String key, final String name, final String descriptor, final String source) {
+			this.key = key;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.source = source;
+			this.sourceDigest = MethodBodyCache.digest(source);
+		}
+
+		/**
+		 * Returns the original source map key
+		 * @return the key
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the interned behavior name
+		 * @return the behavior name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the interned behavior descriptor
+		 * @return the descriptor, or null if none was supplied
+		 */
+		public String getDescriptor() {
+			return descriptor;
+		}
+
+		/**
+		 * Returns the source
+		 * @return the source
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the hex encoded digest of the source
+		 * @return the source digest
+		 */
+		public String getSourceDigest() {
+			return sourceDigest;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return key;
+		}
+	}
+}
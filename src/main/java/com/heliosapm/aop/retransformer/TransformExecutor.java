@@ -0,0 +1,280 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: TransformExecutor</p>
+ * <p>Description: A bounded executor running asynchronous transforms and restores off the caller's thread, or compiling
+ * target classes in parallel ahead of a batched retransform. The pool size and queue capacity are configured through
+ * system properties. Asynchronous submissions beyond the queue capacity are rejected rather than blocking the caller,
+ * while compile submissions beyond it run on the caller's thread. Queue depth and submit-to-completion latency are tracked.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.TransformExecutor</code></p>
+ */
+
+public class TransformExecutor {
+	/** The system property name defining the number of transform threads */
+	public static final String THREADS_PROP = "retransformer.executor.threads";
+	/** The default number of transform threads */
+	public static final int DEFAULT_THREADS = 1;
+	/** The system property name defining the transform queue capacity */
+	public static final String QUEUE_SIZE_PROP = "retransformer.executor.queuesize";
+	/** The default transform queue capacity */
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	/** The system property name defining the number of compile threads */
+	public static final String COMPILE_THREADS_PROP = "retransformer.compile.threads";
+	/** The default number of compile threads */
+	public static final int DEFAULT_COMPILE_THREADS = Runtime.getRuntime().availableProcessors();
+	/** The system property name defining the compile queue capacity */
+	public static final String COMPILE_QUEUE_SIZE_PROP = "retransformer.compile.queuesize";
+	/** The default compile queue capacity */
+	public static final int DEFAULT_COMPILE_QUEUE_SIZE = 1024;
+
+	/** The serial number factory for executor threads */
+	private static final AtomicInteger threadSerial = new AtomicInteger(0);
+
+	/** The underlying thread pool */
+	private final ThreadPoolExecutor executor;
+	/** The task queue */
+	private final ArrayBlockingQueue<Runnable> queue;
+	/** The number of submitted tasks */
+	private final AtomicLong submitted = new AtomicLong(0L);
+	/** The number of completed tasks, including failures */
+	private final AtomicLong completed = new AtomicLong(0L);
+	/** The number of tasks that completed with an exception */
+	private final AtomicLong failed = new AtomicLong(0L);
+	/** The number of rejected submissions */
+	private final AtomicLong rejected = new AtomicLong(0L);
+	/** The total submit-to-completion latency in ns. */
+	private final AtomicLong totalLatency = new AtomicLong(0L);
+	/** The maximum submit-to-completion latency in ns. */
+	private final AtomicLong maxLatency = new AtomicLong(0L);
+	/** The most recent submit-to-completion latency in ns. */
+	private volatile long lastLatency = -1L;
+
+	/**
+	 * Creates a new TransformExecutor configured from the system properties {@link #THREADS_PROP} and {@link #QUEUE_SIZE_PROP}
+	 */
+	public TransformExecutor() {
+		this(intProp(THREADS_PROP, DEFAULT_THREADS), intProp(QUEUE_SIZE_PROP, DEFAULT_QUEUE_SIZE));
+	}
+
+	/**
+	 * Creates a new TransformExecutor
+	 * @param threads The number of transform threads
+	 * @param queueSize The transform queue capacity
+	 */
+	public TransformExecutor(final int threads, final int queueSize) {
+		this("RetransformerThread", threads, queueSize, false);
+	}
+
+	/**
+	 * Creates a new compile executor configured from the system properties {@link #COMPILE_THREADS_PROP} and {@link #COMPILE_QUEUE_SIZE_PROP}
+	 * @return a new compile executor
+	 */
+	public static TransformExecutor newCompileExecutor() {
+		return new TransformExecutor("RetransformerCompileThread", intProp(COMPILE_THREADS_PROP, DEFAULT_COMPILE_THREADS), intProp(COMPILE_QUEUE_SIZE_PROP, DEFAULT_COMPILE_QUEUE_SIZE), true);
+	}
+
+	/**
+	 * Creates a new TransformExecutor
+	 * @param threadName The executor thread name prefix
+	 * @param threads The number of threads
+	 * @param queueSize The queue capacity
+	 * @param callerRuns true to run submissions beyond the queue capacity on the caller's thread, false to reject them
+	 */
+	private TransformExecutor(final String threadName, final int threads, final int queueSize, final boolean callerRuns) {
+		if(threads < 1) throw new IllegalArgumentException("Invalid thread count [" + threads + "]");
+		if(queueSize < 1) throw new IllegalArgumentException("Invalid queue size [" + queueSize + "]");
+		queue = new ArrayBlockingQueue<Runnable>(queueSize);
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, threadName + "#" + threadSerial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}, callerRuns ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Reads a positive int system property
+	 * @param name The property name
+	 * @param defaultValue The default value
+	 * @return the property value
+	 */
+	private static int intProp(final String name, final int defaultValue) {
+		try {
+			final int v = Integer.parseInt(System.getProperty(name, "" + defaultValue).trim());
+			return v < 1 ? defaultValue : v;
+		} catch (Exception ex) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Submits a task for asynchronous execution
+	 * @param task The task to execute
+	 * @return the future result of the task
+	 * @throws RejectedExecutionException thrown if the transform queue is full
+	 */
+	public <T> Future<T> submit(final Callable<T> task) {
+		if(task==null) throw new IllegalArgumentException("The passed task was null");
+		final long start = System.nanoTime();
+		final Callable<T> timed = new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				boolean ok = false;
+				try {
+					final T result = task.call();
+					ok = true;
+					return result;
+				} finally {
+					if(!ok) failed.incrementAndGet();
+					completed(System.nanoTime() - start);
+				}
+			}
+		};
+		try {
+			final Future<T> f = executor.submit(timed);
+			submitted.incrementAndGet();
+			return f;
+		} catch (RejectedExecutionException rex) {
+			rejected.incrementAndGet();
+			throw rex;
+		}
+	}
+
+	/**
+	 * Records a task completion
+	 * @param elapsed The submit-to-completion latency in ns.
+	 */
+	private void completed(final long elapsed) {
+		completed.incrementAndGet();
+		totalLatency.addAndGet(elapsed);
+		lastLatency = elapsed;
+		while(true) {
+			final long max = maxLatency.get();
+			if(elapsed <= max || maxLatency.compareAndSet(max, elapsed)) break;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks waiting in the queue
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the transform queue capacity
+	 * @return the queue capacity
+	 */
+	public int getQueueCapacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+
+	/**
+	 * Returns the number of threads currently executing tasks
+	 * @return the active thread count
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Returns the number of submitted tasks
+	 * @return the submitted task count
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * Returns the number of completed tasks, including failures
+	 * @return the completed task count
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Returns the number of tasks that completed with an exception
+	 * @return the failed task count
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of rejected submissions
+	 * @return the rejected submission count
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the most recent submit-to-completion latency in ns.
+	 * @return the last latency, or -1 if no task has completed
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * Returns the maximum submit-to-completion latency in ns.
+	 * @return the maximum latency
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	/**
+	 * Returns the average submit-to-completion latency in ns.
+	 * @return the average latency
+	 */
+	public long getAverageLatency() {
+		final long c = completed.get();
+		return c==0L ? 0L : totalLatency.get() / c;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("TransformExecutor [queue:%s/%s, active:%s, completed:%s, failed:%s, rejected:%s, avgLatencyNs:%s, maxLatencyNs:%s]", getQueueDepth(), getQueueCapacity(), getActiveCount(), getCompleted(), getFailed(), getRejected(), getAverageLatency(), getMaxLatency());
+	}
+
+}
@@ -0,0 +1,405 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
+
+/**
+ * <p>Title: TransformMetrics</p>
+ * <p>Description: Records the elapsed time of each transform phase into log2 bucketed histograms, overall and per
+ * target class and per chained transform stage, along with the transform, failure, produced byte, applied and skipped counts.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.TransformMetrics</code></p>
+ */
+
+public class TransformMetrics {
+	/** The overall phase histograms */
+	private final Histogram[] overall = newHistograms();
+	/** The phase histograms keyed by target class name */
+	private final ConcurrentHashMap<String, Histogram[]> byClass = new ConcurrentHashMap<String, Histogram[]>();
+	/** The chained transform stage histograms keyed by stage name */
+	private final ConcurrentHashMap<String, Histogram> stages = new ConcurrentHashMap<String, Histogram>();
+	/** The number of classes retransformed with transformed bytes */
+	private final AtomicLong transforms = new AtomicLong(0L);
+	/** The number of failed class transforms */
+	private final AtomicLong failures = new AtomicLong(0L);
+	/** The number of transformed class bytes produced */
+	private final AtomicLong bytesProduced = new AtomicLong(0L);
+	/** The number of classes retransformed */
+	private final AtomicLong applied = new AtomicLong(0L);
+	/** The number of classes not retransformed because their transformed bytes were already installed */
+	private final AtomicLong skipped = new AtomicLong(0L);
+
+	/**
+	 * <p>Title: Phase</p>
+	 * <p>Description: Enumerates the timed transform phases</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.TransformMetrics.Phase</code></p>
+	 */
+	public static enum Phase {
+		/** Resolving the target classes and matching the target behaviors */
+		MATCH,
+		/** Compiling or grafting the replacement method bodies */
+		COMPILE,
+		/** Writing the transformed class bytes */
+		BYTECODE,
+		/** The JVM retransform of the target classes */
+		RETRANSFORM;
+	}
+
+	/**
+	 * Creates a new set of phase histograms
+	 * @return a histogram per phase
+	 */
+	private static Histogram[] newHistograms() {
+		final Histogram[] h = new Histogram[Phase.values().length];
+		for(int i = 0; i < h.length; i++) {
+			h[i] = new Histogram();
+		}
+		return h;
+	}
+
+	/**
+	 * Records the elapsed time of a phase
+	 * @param phase The phase
+	 * @param className The binary name of the target class
+	 * @param elapsed The elapsed time in ns.
+	 */
+	public void record(final Phase phase, final String className, final long elapsed) {
+		overall[phase.ordinal()].record(elapsed);
+		recordClass(phase, className, elapsed);
+	}
+
+	/**
+	 * Records the elapsed time of a phase against the target class only, for a phase shared by a batch of classes
+	 * whose overall time is recorded once for the batch
+	 * @param phase The phase
+	 * @param className The binary name of the target class. Ignored if null.
+	 * @param elapsed The elapsed time in ns.
+	 */
+	public void recordClass(final Phase phase, final String className, final long elapsed) {
+		if(className==null) return;
+		Histogram[] h = byClass.get(className);
+		if(h==null) {
+			final Histogram[] nh = newHistograms();
+			h = byClass.putIfAbsent(className, nh);
+			if(h==null) h = nh;
+		}
+		h[phase.ordinal()].record(elapsed);
+	}
+
+	/**
+	 * Records the elapsed time of a chained transform stage
+	 * @param stage The stage name
+	 * @param elapsed The elapsed time in ns.
+	 */
+	public void recordStage(final String stage, final long elapsed) {
+		Histogram h = stages.get(stage);
+		if(h==null) {
+			final Histogram nh = new Histogram();
+			h = stages.putIfAbsent(stage, nh);
+			if(h==null) h = nh;
+		}
+		h.record(elapsed);
+	}
+
+	/**
+	 * Records the elapsed times of the stages completed in the passed transform context
+	 * @param tc The transform context to read the stage times from
+	 */
+	public void recordStages(final TransformContext tc) {
+		final int stageCount = tc.getStageCount();
+		for(int i = 0; i < stageCount; i++) {
+			recordStage(tc.getStageName(i), tc.getStageNanos(i));
+		}
+	}
+
+	/**
+	 * Records a class retransformed with transformed bytes
+	 * @param byteCount The number of transformed class bytes retransformed into the class
+	 */
+	public void transformed(final int byteCount) {
+		transforms.incrementAndGet();
+		bytesProduced.addAndGet(byteCount);
+	}
+
+	/**
+	 * Records a failed class transform
+	 */
+	public void failed() {
+		failures.incrementAndGet();
+	}
+
+	/**
+	 * Records retransformed classes
+	 * @param classCount The number of classes retransformed
+	 */
+	public void applied(final int classCount) {
+		applied.addAndGet(classCount);
+	}
+
+	/**
+	 * Records a class that was not retransformed because its transformed bytes were already installed
+	 */
+	public void skipped() {
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * Returns the overall histogram for the passed phase
+	 * @param phase The phase
+	 * @return the histogram
+	 */
+	public Histogram get(final Phase phase) {
+		return overall[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the histogram for the passed phase and target class
+	 * @param phase The phase
+	 * @param className The binary name of the target class
+	 * @return the histogram, or null if no times were recorded for the class
+	 */
+	public Histogram get(final Phase phase, final String className) {
+		final Histogram[] h = byClass.get(className);
+		return h==null ? null : h[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the histogram for the passed chained transform stage
+	 * @param stage The stage name
+	 * @return the histogram, or null if no times were recorded for the stage
+	 */
+	public Histogram getStage(final String stage) {
+		return stages.get(stage);
+	}
+
+	/**
+	 * Returns a summary of the chained transform stage times, keyed by <b><code>&lt;stage&gt;.&lt;stat&gt;</code></b>
+	 * @return the stage time summary
+	 */
+	public Map<String, Long> stageSummary() {
+		final Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for(Map.Entry<String, Histogram> entry: stages.entrySet()) {
+			final Histogram hist = entry.getValue();
+			map.put(entry.getKey() + ".count", hist.getCount());
+			map.put(entry.getKey() + ".p50", hist.percentile(50));
+			map.put(entry.getKey() + ".p99", hist.percentile(99));
+			map.put(entry.getKey() + ".max", hist.getMax());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the names of the classes with recorded times
+	 * @return the timed class names
+	 */
+	public String[] getTimedClasses() {
+		return byClass.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Returns a summary of the phase times for the passed class, keyed by <b><code>&lt;phase&gt;.&lt;stat&gt;</code></b>
+	 * @param className The binary name of the class, or null for the overall times
+	 * @return the phase time summary, empty if no times were recorded for the class
+	 */
+	public Map<String, Long> summary(final String className) {
+		final Map<String, Long> map = new LinkedHashMap<String, Long>();
+		final Histogram[] h = className==null ? overall : byClass.get(className);
+		if(h==null) return map;
+		for(Phase phase: Phase.values()) {
+			final Histogram hist = h[phase.ordinal()];
+			final String prefix = phase.name().toLowerCase();
+			map.put(prefix + ".count", hist.getCount());
+			map.put(prefix + ".p50", hist.percentile(50));
+			map.put(prefix + ".p99", hist.percentile(99));
+			map.put(prefix + ".max", hist.getMax());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the number of classes retransformed with transformed bytes
+	 * @return the transform count
+	 */
+	public long getTransforms() {
+		return transforms.get();
+	}
+
+	/**
+	 * Returns the number of failed class transforms
+	 * @return the failure count
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the number of transformed class bytes produced
+	 * @return the produced byte count
+	 */
+	public long getBytesProduced() {
+		return bytesProduced.get();
+	}
+
+	/**
+	 * Returns the number of classes retransformed
+	 * @return the applied count
+	 */
+	public long getApplied() {
+		return applied.get();
+	}
+
+	/**
+	 * Returns the number of classes not retransformed because their transformed bytes were already installed
+	 * @return the skipped count
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Resets all the metrics
+	 */
+	public void reset() {
+		for(Histogram h: overall) h.reset();
+		byClass.clear();
+		stages.clear();
+		transforms.set(0L);
+		failures.set(0L);
+		bytesProduced.set(0L);
+		applied.set(0L);
+		skipped.set(0L);
+	}
+
+	/**
+	 * <p>Title: Histogram</p>
+	 * <p>Description: A lock free histogram of ns. times in power of 2 buckets</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.TransformMetrics.Histogram</code></p>
+	 */
+	public static class Histogram {
+		/** The bucket counts. Bucket n holds values with n significant bits. */
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		/** The number of recorded values */
+		private final AtomicLong count = new AtomicLong(0L);
+		/** The total of the recorded values */
+		private final AtomicLong total = new AtomicLong(0L);
+		/** The maximum recorded value */
+		private final AtomicLong max = new AtomicLong(0L);
+
+		/**
+		 * Records a value
+		 * @param value The value to record. Negative values are recorded as zero.
+		 */
+		public void record(final long value) {
+			final long v = value < 0L ? 0L : value;
+			buckets.incrementAndGet(bucket(v));
+			count.incrementAndGet();
+			total.addAndGet(v);
+			while(true) {
+				final long m = max.get();
+				if(v <= m || max.compareAndSet(m, v)) break;
+			}
+		}
+
+		/**
+		 * Returns the bucket for the passed value
+		 * @param v The non-negative value
+		 * @return the bucket index
+		 */
+		private static int bucket(final long v) {
+			final int b = 64 - Long.numberOfLeadingZeros(v);
+			return b > 63 ? 63 : b;
+		}
+
+		/**
+		 * Returns an approximation of the passed percentile, being the upper bound of the bucket it falls in, capped at the maximum
+		 * @param pct The percentile (0 - 100)
+		 * @return the approximate percentile value, or 0 if no values were recorded
+		 */
+		public long percentile(final double pct) {
+			final long c = count.get();
+			if(c==0L) return 0L;
+			final long threshold = Math.max(1L, (long)Math.ceil(c * pct / 100D));
+			long cumulative = 0L;
+			for(int i = 0; i < 64; i++) {
+				cumulative += buckets.get(i);
+				if(cumulative >= threshold) {
+					final long upper = i==0 ? 0L : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1L);
+					return Math.min(upper, max.get());
+				}
+			}
+			return max.get();
+		}
+
+		/**
+		 * Returns the number of recorded values
+		 * @return the count
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Returns the total of the recorded values
+		 * @return the total
+		 */
+		public long getTotal() {
+			return total.get();
+		}
+
+		/**
+		 * Returns the maximum recorded value
+		 * @return the maximum
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Returns the mean of the recorded values
+		 * @return the mean
+		 */
+		public long getMean() {
+			final long c = count.get();
+			return c==0L ? 0L : total.get() / c;
+		}
+
+		/**
+		 * Resets the histogram
+		 */
+		void reset() {
+			for(int i = 0; i < 64; i++) buckets.set(i, 0L);
+			count.set(0L);
+			total.set(0L);
+			max.set(0L);
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+import com.heliosapm.aop.retransformer.transformers.ITransformer;
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
+
+/**
+ * <p>Title: CountingTransformer</p>
+ * <p>Description: Opts any transformer in to invocation counting. The decorated transformer is applied first, then an
+ * {@link InvocationProbes#increment(int)} call is inserted at the start of each behavior it recorded as changed in the
+ * {@link TransformContext}. The undecorated {@link #INSTANCE} counts every behavior changed by the preceding stages of
+ * a pipeline. A guarded transformer makes each increment conditional on the {@link ProbeSwitches} flag registered under
+ * the probe name prefixed with {@link #SWITCH_PREFIX}. The probe ids are compiled into the injected code, and the transformed
+ * class's loader must be able to see {@link InvocationProbes} and {@link ProbeSwitches}.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.CountingTransformer</code></p>
+ * @param <T> The type of the decorated transformer's directive set
+ */
+
+public class CountingTransformer<T> implements ITransformer<T> {
+	/** Public shareable instance counting all the behaviors changed in the transform context */
+	public static final CountingTransformer<Object> INSTANCE = new CountingTransformer<Object>(null);
+	/** Public shareable instance counting all the behaviors changed in the transform context, guarded by switches */
+	public static final CountingTransformer<Object> GUARDED_INSTANCE = new CountingTransformer<Object>(null, true);
+
+	/** The prefix of the switch names of guarded counters, so they never share a switch with another kind of probe */
+	public static final String SWITCH_PREFIX = "count:";
+
+	/** Static class logger */
+	private static final Logger LOG = Logger.getLogger(CountingTransformer.class.getName());
+	/** The injected code incrementing the counter, formatted with the probe id */
+	private static final String INCREMENT = InvocationProbes.class.getName() + ".increment(%s);";
+
+	/** The decorated transformer, or null to count all the changed behaviors */
+	private final ITransformer<T> transformer;
+	/** Indicates if the increments are guarded by a switch */
+	private final boolean guarded;
+
+	/**
+	 * Creates a new CountingTransformer
+	 * @param transformer The transformer to decorate, or null to count all the behaviors changed in the transform context
+	 */
+	public CountingTransformer(final ITransformer<T> transformer) {
+		this(transformer, false);
+	}
+
+	/**
+	 * Creates a new CountingTransformer
+	 * @param transformer The transformer to decorate, or null to count all the behaviors changed in the transform context
+	 * @param guarded true to guard the increments with a {@link ProbeSwitches} flag, false otherwise
+	 */
+	public CountingTransformer(final ITransformer<T> transformer, final boolean guarded) {
+		this.transformer = transformer;
+		this.guarded = guarded;
+	}
+
+	/**
+	 * Decorates the passed transformer with invocation counting
+	 * @param transformer The transformer to decorate
+	 * @return the counting transformer
+	 */
+	public static <T> CountingTransformer<T> counting(final ITransformer<T> transformer) {
+		return counting(transformer, false);
+	}
+
+	/**
+	 * Decorates the passed transformer with invocation counting
+	 * @param transformer The transformer to decorate
+	 * @param guarded true to guard the increments with a {@link ProbeSwitches} flag, false otherwise
+	 * @return the counting transformer
+	 */
+	public static <T> CountingTransformer<T> counting(final ITransformer<T> transformer, final boolean guarded) {
+		if(transformer==null) throw new IllegalArgumentException("The passed transformer was null");
+		return new CountingTransformer<T>(transformer, guarded);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.ITransformer#isStrict()
+	 */
+	@Override
+	public boolean isStrict() {
+		return transformer==null ? true : transformer.isStrict();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.ITransformer#transform(javassist.CtClass, com.heliosapm.aop.retransformer.transformers.TransformContext, java.lang.Object)
+	 */
+	@Override
+	public CtClass transform(final CtClass ct, final TransformContext tc, final T directiveSet) {
+		if(tc==null) throw new IllegalArgumentException("The passed transform context was null");
+		final int from = transformer==null ? 0 : tc.getChangedCount();
+		final CtClass transformed = transformer==null ? ct : transformer.transform(ct, tc, directiveSet);
+		final int to = tc.getChangedCount();
+		final Set<String> counted = new HashSet<String>(to - from);
+		for(int i = from; i < to; i++) {
+			final String name = tc.getChangedName(i);
+			final String descriptor = tc.getChangedDescriptor(i);
+			if(!counted.add(name + descriptor)) continue;
+			final CtBehavior behavior = find(transformed, name, descriptor);
+			if(behavior==null) {
+				if(isStrict()) throw new RuntimeException("Failed to find changed behavior [" + name + descriptor + "] in [" + transformed.getName() + "]");
+				continue;
+			}
+			final String probeName = ProbeRegistry.probeName(behavior);
+			final int probeId;
+			final int switchId;
+			try {
+				probeId = InvocationProbes.register(probeName);
+				switchId = guarded ? ProbeSwitches.register(SWITCH_PREFIX + probeName) : -1;
+			} catch (IllegalStateException ise) {
+				if(isStrict()) throw ise;
+				LOG.log(Level.WARNING, "Skipped invocation counter for [" + behavior.getLongName() + "]: " + ise.getMessage());
+				continue;
+			}
+			final String increment = String.format(INCREMENT, probeId);
+			try {
+				behavior.insertBefore(guarded ? "if(" + ProbeSwitches.guard(switchId) + ") " + increment : increment);
+			} catch (CannotCompileException cex) {
+				throw new RuntimeException("Failed to insert invocation counter into [" + behavior.getLongName() + "]", cex);
+			}
+			tc.matched("count:" + name + descriptor);
+		}
+		return transformed;
+	}
+
+	/**
+	 * Finds a behavior declared in the passed class
+	 * @param ct The class to search
+	 * @param name The behavior name, being the method name, <b><code>&lt;init&gt;</code></b> or the simple class name for a constructor, or <b><code>&lt;clinit&gt;</code></b> 
+	 * @param descriptor The behavior descriptor
+	 * @return the behavior, or null if it was not found
+	 */
+	private static CtBehavior find(final CtClass ct, final String name, final String descriptor) {
+		try {
+			if("<clinit>".equals(name)) return ct.getClassInitializer();
+			if("<init>".equals(name) || name.equals(ct.getSimpleName())) return ct.getConstructor(descriptor);
+			final CtBehavior behavior = ct.getMethod(name, descriptor);
+			return behavior.getDeclaringClass()==ct ? behavior : null;
+		} catch (NotFoundException nfe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the decorated transformer
+	 * @return the decorated transformer, or null if this transformer counts all the changed behaviors
+	 */
+	public ITransformer<T> getTransformer() {
+		return transformer;
+	}
+
+	/**
+	 * Indicates if the increments are guarded by a switch
+	 * @return true if the increments are guarded by a {@link ProbeSwitches} flag, false otherwise
+	 */
+	public boolean isGuarded() {
+		return guarded;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CountingTransformer [" + (transformer==null ? "all" : transformer.getClass().getSimpleName()) + (guarded ? ", guarded" : "") + "]";
+	}
+
+}
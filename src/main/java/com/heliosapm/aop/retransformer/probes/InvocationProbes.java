@@ -0,0 +1,151 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Title: InvocationProbes</p>
+ * <p>Description: The registry and off heap counters of the invocation counting probes injected by the {@link CountingTransformer}.
+ * Each probe name is assigned a fixed integer id at transform time, and the injected code calls {@link #increment(int)}
+ * with that id, which only updates a slot in the {@link OffHeapCounters}. Ids are assigned by a {@link ProbeRegistry}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.InvocationProbes</code></p>
+ */
+
+public class InvocationProbes {
+	/** The invocation counters, shared with injected code so never closed */
+	private static final OffHeapCounters counters = new OffHeapCounters(true);
+	/** The probe ids */
+	private static final ProbeRegistry registry = new ProbeRegistry(counters.getCapacity(), OffHeapCounters.CAPACITY_PROP);
+
+	private InvocationProbes() {}
+
+	/**
+	 * Increments the invocation count of the passed probe. Called from injected code.
+	 * @param probeId The probe id
+	 */
+	public static void increment(final int probeId) {
+		counters.increment(probeId);
+	}
+
+	/**
+	 * Registers a probe, returning the id already assigned to the name if it was registered before
+	 * @param name The probe name
+	 * @return the probe id
+	 */
+	public static int register(final String name) {
+		return registry.register(name);
+	}
+
+	/**
+	 * Returns the id of the named probe
+	 * @param name The probe name
+	 * @return the probe id, or -1 if no probe is registered with the name
+	 */
+	public static int getProbeId(final String name) {
+		return registry.getProbeId(name);
+	}
+
+	/**
+	 * Returns the name of the passed probe
+	 * @param probeId The probe id
+	 * @return the probe name, or null if no probe is registered with the id
+	 */
+	public static String getProbeName(final int probeId) {
+		return registry.getProbeName(probeId);
+	}
+
+	/**
+	 * Returns the number of registered probes
+	 * @return the probe count
+	 */
+	public static int getProbeCount() {
+		return registry.getProbeCount();
+	}
+
+	/**
+	 * Returns the invocation count of the passed probe
+	 * @param probeId The probe id
+	 * @return the invocation count
+	 */
+	public static long get(final int probeId) {
+		return counters.get(probeId);
+	}
+
+	/**
+	 * Returns the invocation count of the named probe
+	 * @param name The probe name
+	 * @return the invocation count, or -1 if no probe is registered with the name
+	 */
+	public static long get(final String name) {
+		final int probeId = registry.getProbeId(name);
+		return probeId==-1 ? -1L : counters.get(probeId);
+	}
+
+	/**
+	 * Copies the invocation counts of all the registered probes into a new array indexed by probe id
+	 * @return the invocation counts
+	 */
+	public static long[] snapshot() {
+		return counters.snapshot(registry.getProbeCount());
+	}
+
+	/**
+	 * Copies the invocation counts of the first <code>into.length</code> probe ids into the passed array
+	 * @param into The array to copy into
+	 * @return the passed array
+	 */
+	public static long[] snapshot(final long[] into) {
+		return counters.snapshot(into);
+	}
+
+	/**
+	 * Returns the invocation counts of all the registered probes
+	 * @return the invocation counts keyed by probe name, in probe id order
+	 */
+	public static Map<String, Long> snapshotByName() {
+		final long[] counts = snapshot();
+		final Map<String, Long> map = new LinkedHashMap<String, Long>(counts.length);
+		for(int i = 0; i < counts.length; i++) {
+			map.put(registry.getProbeName(i), counts[i]);
+		}
+		return map;
+	}
+
+	/**
+	 * Resets the invocation count of the passed probe
+	 * @param probeId The probe id
+	 */
+	public static void reset(final int probeId) {
+		counters.reset(probeId);
+	}
+
+	/**
+	 * Returns the invocation counters. Injected code increments them for the life of the JVM, so they are {@link OffHeapCounters#isShared() shared}
+	 * and {@link OffHeapCounters#close()} throws.
+	 * @return the invocation counters
+	 */
+	public static OffHeapCounters getCounters() {
+		return counters;
+	}
+
+}
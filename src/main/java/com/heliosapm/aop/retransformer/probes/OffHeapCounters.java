@@ -0,0 +1,307 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>Title: OffHeapCounters</p>
+ * <p>Description: A fixed number of long counters held off heap, one 8 byte slot per probe id, so tens of thousands of
+ * counters add no objects for the GC to trace and an increment is a single address computation. The region is allocated
+ * through <code>sun.misc.Unsafe</code>, by way of {@link UnsafeMemory}, when it is available, otherwise in a direct
+ * {@link ByteBuffer}. In {@link Mode#ATOMIC} mode no increment is ever lost. In {@link Mode#RELAXED} mode increments are
+ * plain read-modify-writes, which are cheaper but may lose counts when the same probe fires concurrently.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.OffHeapCounters</code></p>
+ */
+
+public class OffHeapCounters {
+	/** The system property name defining the increment mode. One of the {@link Mode} names. */
+	public static final String MODE_PROP = "retransformer.probes.counters.mode";
+	/** The default increment mode */
+	public static final Mode DEFAULT_MODE = Mode.ATOMIC;
+	/** The system property name defining the number of counters */
+	public static final String CAPACITY_PROP = "retransformer.probes.counters.capacity";
+	/** The default number of counters */
+	public static final int DEFAULT_CAPACITY = 65536;
+	/** The system property name indicating if <code>sun.misc.Unsafe</code> should be used when available. Set to false to force a direct buffer. */
+	public static final String UNSAFE_PROP = "retransformer.probes.counters.unsafe";
+
+	/** The number of lock stripes guarding atomic increments of a buffer backed region */
+	private static final int LOCK_STRIPES = 64;
+
+	/** The increment mode */
+	private final Mode mode;
+	/** True for atomic increments */
+	private final boolean atomic;
+	/** The number of counters */
+	private final int capacity;
+	/** The base address of an unsafe allocated region, or 0 if the region is buffer backed */
+	private final long address;
+	/** The direct buffer backing the region, or null if the region is unsafe allocated */
+	private final ByteBuffer buffer;
+	/** The locks guarding atomic increments of a buffer backed region */
+	private final Object[] locks;
+	/** Indicates if the region is shared with injected code, in which case it is never freed */
+	private final boolean shared;
+	/** Indicates if the region has been freed */
+	private volatile boolean closed = false;
+
+	/**
+	 * <p>Title: Mode</p>
+	 * <p>Description: Enumerates the counter increment modes</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.aop.retransformer.probes.OffHeapCounters.Mode</code></p>
+	 */
+	public static enum Mode {
+		/** Increments are compare and swapped so none are lost */
+		ATOMIC,
+		/** Increments are plain read-modify-writes and may be lost under contention */
+		RELAXED;
+
+		/**
+		 * Decodes the passed name to a Mode, returning the default if the name is null or invalid
+		 * @param name The name to decode
+		 * @return the decoded Mode
+		 */
+		public static Mode decode(final String name) {
+			if(name==null || name.trim().isEmpty()) return DEFAULT_MODE;
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (Exception ex) {
+				return DEFAULT_MODE;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new OffHeapCounters configured from the system properties {@link #MODE_PROP}, {@link #CAPACITY_PROP} and {@link #UNSAFE_PROP}
+	 */
+	public OffHeapCounters() {
+		this(false);
+	}
+
+	/**
+	 * Creates a new OffHeapCounters configured from the system properties {@link #MODE_PROP}, {@link #CAPACITY_PROP} and {@link #UNSAFE_PROP}
+	 * @param shared true if the counters are incremented by injected code, so they can never be {@link #close() closed}
+	 */
+	OffHeapCounters(final boolean shared) {
+		this(Mode.decode(System.getProperty(MODE_PROP)), Integer.getInteger(CAPACITY_PROP, DEFAULT_CAPACITY), !"false".equalsIgnoreCase(System.getProperty(UNSAFE_PROP, "true").trim()), shared);
+	}
+
+	/**
+	 * Creates a new OffHeapCounters
+	 * @param mode The increment mode
+	 * @param capacity The number of counters
+	 * @param useUnsafe true to allocate the region through <code>sun.misc.Unsafe</code> when it is available, false to use a direct buffer
+	 */
+	public OffHeapCounters(final Mode mode, final int capacity, final boolean useUnsafe) {
+		this(mode, capacity, useUnsafe, false);
+	}
+
+	/**
+	 * Creates a new OffHeapCounters
+	 * @param mode The increment mode
+	 * @param capacity The number of counters
+	 * @param useUnsafe true to allocate the region through <code>sun.misc.Unsafe</code> when it is available, false to use a direct buffer
+	 * @param shared true if the counters are incremented by injected code, so they can never be {@link #close() closed}
+	 */
+	private OffHeapCounters(final Mode mode, final int capacity, final boolean useUnsafe, final boolean shared) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+		if(capacity > Integer.MAX_VALUE/8) throw new IllegalArgumentException("Capacity [" + capacity + "] exceeds the maximum of [" + (Integer.MAX_VALUE/8) + "]");
+		this.mode = mode==null ? DEFAULT_MODE : mode;
+		this.capacity = capacity;
+		this.shared = shared;
+		atomic = this.mode==Mode.ATOMIC;
+		if(useUnsafe && UnsafeMemory.isAvailable()) {
+			address = UnsafeMemory.allocate(capacity * 8L);
+			buffer = null;
+			locks = null;
+		} else {
+			address = 0L;
+			buffer = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+			locks = new Object[atomic ? LOCK_STRIPES : 0];
+			for(int i = 0; i < locks.length; i++) locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Increments the passed counter. Ids outside the capacity, and increments after the region is {@link #close() closed}, are ignored.
+	 * @param probeId The probe id of the counter
+	 */
+	public void increment(final int probeId) {
+		if(probeId < 0 || probeId >= capacity || closed) return;
+		if(address!=0L) {
+			final long a = address + (((long)probeId) << 3);
+			if(atomic) {
+				UnsafeMemory.incrementAtomic(a);
+			} else {
+				UnsafeMemory.incrementRelaxed(a);
+			}
+		} else {
+			final int index = probeId << 3;
+			if(atomic) {
+				synchronized(locks[probeId & (LOCK_STRIPES - 1)]) {
+					buffer.putLong(index, buffer.getLong(index) + 1L);
+				}
+			} else {
+				buffer.putLong(index, buffer.getLong(index) + 1L);
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of the passed counter
+	 * @param probeId The probe id of the counter
+	 * @return the counter value
+	 */
+	public long get(final int probeId) {
+		checkId(probeId);
+		if(address!=0L) return UnsafeMemory.getVolatile(address + (((long)probeId) << 3));
+		if(atomic) {
+			synchronized(locks[probeId & (LOCK_STRIPES - 1)]) {
+				return buffer.getLong(probeId << 3);
+			}
+		}
+		return buffer.getLong(probeId << 3);
+	}
+
+	/**
+	 * Resets the passed counter to zero
+	 * @param probeId The probe id of the counter
+	 */
+	public void reset(final int probeId) {
+		checkId(probeId);
+		if(address!=0L) {
+			UnsafeMemory.putVolatile(address + (((long)probeId) << 3), 0L);
+		} else if(atomic) {
+			synchronized(locks[probeId & (LOCK_STRIPES - 1)]) {
+				buffer.putLong(probeId << 3, 0L);
+			}
+		} else {
+			buffer.putLong(probeId << 3, 0L);
+		}
+	}
+
+	/**
+	 * Copies the first <code>into.length</code> counters into the passed array. The copy is not atomic across counters.
+	 * @param into The array to copy into, no longer than the capacity
+	 * @return the passed array
+	 */
+	public long[] snapshot(final long[] into) {
+		if(into==null) throw new IllegalArgumentException("The passed array was null");
+		if(into.length > capacity) throw new IllegalArgumentException("The passed array length [" + into.length + "] exceeds the capacity [" + capacity + "]");
+		if(closed) throw new IllegalStateException("The counters have been closed");
+		if(address!=0L) {
+			for(int i = 0; i < into.length; i++) {
+				into[i] = UnsafeMemory.getVolatile(address + (((long)i) << 3));
+			}
+		} else {
+			// duplicate() reverts to big endian, so the order must be reapplied
+			buffer.duplicate().order(ByteOrder.nativeOrder()).asLongBuffer().get(into, 0, into.length);
+		}
+		return into;
+	}
+
+	/**
+	 * Copies the first <code>count</code> counters into a new array
+	 * @param count The number of counters to copy
+	 * @return the counter values
+	 */
+	public long[] snapshot(final int count) {
+		return snapshot(new long[count]);
+	}
+
+	/**
+	 * Validates a probe id
+	 * @param probeId The probe id to validate
+	 */
+	private void checkId(final int probeId) {
+		if(probeId < 0 || probeId >= capacity) throw new IllegalArgumentException("Invalid probe id [" + probeId + "]");
+		if(closed) throw new IllegalStateException("The counters have been closed");
+	}
+
+	/**
+	 * Frees an unsafe allocated region. Increments that have not yet seen the closed flag may still race the free,
+	 * so this is only safe once nothing can still increment these counters. Subsequent calls are ignored.
+	 * The shared counters incremented by injected code, such as {@link InvocationProbes#getCounters()}, are never freed.
+	 * @throws UnsupportedOperationException thrown if these are shared counters
+	 */
+	public void close() {
+		if(shared) throw new UnsupportedOperationException("The shared counters are incremented by injected code and cannot be closed");
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		if(address!=0L) UnsafeMemory.free(address);
+	}
+
+	/**
+	 * Indicates if these counters are shared with injected code and can never be closed
+	 * @return true for shared counters, false for counters the caller owns
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Returns the increment mode
+	 * @return the increment mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns the number of counters
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Indicates if the region was allocated through <code>sun.misc.Unsafe</code>
+	 * @return true if the region was allocated through <code>sun.misc.Unsafe</code>, false if it is held in a direct buffer
+	 */
+	public boolean isUnsafe() {
+		return address!=0L;
+	}
+
+	/**
+	 * Returns the number of bytes allocated off heap
+	 * @return the allocated byte count
+	 */
+	public long getAllocatedBytes() {
+		return capacity * 8L;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("OffHeapCounters [mode:%s, capacity:%s, backing:%s, closed:%s]", mode, capacity, isUnsafe() ? "unsafe" : "buffer", closed);
+	}
+
+}
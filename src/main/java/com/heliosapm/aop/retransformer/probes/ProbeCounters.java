@@ -0,0 +1,275 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: ProbeCounters</p>
+ * <p>Description: Preallocated count, total and max counters for a fixed number of probes, striped by thread so concurrent
+ * callers of the same probe rarely contend. Each probe's counters in each stripe occupy their own 64 byte cell, so no two
+ * cells share a cache line. Recording never allocates, boxes or locks. The stripes are aggregated on read, so a snapshot
+ * taken while probes are recording is approximate. A probe may be sampled at a rate of 1 in N calls, adjustable at any time,
+ * in which case each recorded sample is weighted by the number of calls in the interval it ends so the count and total remain
+ * estimates of all the calls. A rate change re-arms intervals longer than the new rate, so it takes effect within the new rate's calls.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.ProbeCounters</code></p>
+ */
+
+public class ProbeCounters {
+	/** The system property name defining the number of counter stripes. Rounded up to a power of 2. */
+	public static final String STRIPES_PROP = "retransformer.probes.stripes";
+	/** The default number of counter stripes */
+	public static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors();
+	/** The system property name defining the maximum number of probes */
+	public static final String CAPACITY_PROP = "retransformer.probes.capacity";
+	/** The default maximum number of probes */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** The system property name defining the initial sample rate of new probes */
+	public static final String SAMPLE_RATE_PROP = "retransformer.probes.samplerate";
+	/** The default initial sample rate of new probes, being every call */
+	public static final int DEFAULT_SAMPLE_RATE = 1;
+
+	/** The number of longs in a cell, being the 6 counters padded out to 64 bytes */
+	static final int CELL_SIZE = 8;
+	/** The offset of the count in a cell */
+	static final int COUNT = 0;
+	/** The offset of the total in a cell */
+	static final int TOTAL = 1;
+	/** The offset of the max in a cell */
+	static final int MAX = 2;
+	/** The offset of the recorded sample count in a cell */
+	static final int SAMPLES = 3;
+	/** The offset of the calls remaining until the next sample in a cell */
+	static final int COUNTDOWN = 4;
+	/** The offset of the length of the interval being counted down in a cell */
+	static final int ARMED = 5;
+
+	/** The counter cells, laid out by stripe, then by probe id */
+	private final AtomicLongArray cells;
+	/** The sample rates indexed by probe id */
+	private final AtomicIntegerArray rates;
+	/** The maximum number of probes */
+	private final int capacity;
+	/** The number of stripes */
+	private final int stripes;
+	/** The mask to map a thread id to a stripe */
+	private final int stripeMask;
+
+	/**
+	 * Creates a new ProbeCounters configured from the system properties {@link #STRIPES_PROP} and {@link #CAPACITY_PROP}
+	 */
+	public ProbeCounters() {
+		this(Integer.getInteger(STRIPES_PROP, DEFAULT_STRIPES), Integer.getInteger(CAPACITY_PROP, DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Creates a new ProbeCounters
+	 * @param stripeCount The number of stripes. Rounded up to a power of 2.
+	 * @param capacity The maximum number of probes
+	 */
+	public ProbeCounters(final int stripeCount, final int capacity) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+		int size = 1;
+		while(size < stripeCount) size <<= 1;
+		stripes = size;
+		stripeMask = size - 1;
+		this.capacity = capacity;
+		cells = new AtomicLongArray(stripes * capacity * CELL_SIZE);
+		rates = new AtomicIntegerArray(capacity);
+		final int initialRate = Math.max(1, Integer.getInteger(SAMPLE_RATE_PROP, DEFAULT_SAMPLE_RATE));
+		for(int i = 0; i < capacity; i++) rates.set(i, initialRate);
+	}
+
+	/**
+	 * Records an elapsed time against the passed probe in the calling thread's stripe
+	 * @param probeId The probe id
+	 * @param elapsed The elapsed time
+	 */
+	public void record(final int probeId, final long elapsed) {
+		record(probeId, elapsed, 1);
+	}
+
+	/**
+	 * Records a sampled elapsed time against the passed probe in the calling thread's stripe, weighted by the sample rate it was taken at
+	 * @param probeId The probe id
+	 * @param elapsed The elapsed time
+	 * @param rate The sample weight returned by {@link #sample(int)}
+	 */
+	public void record(final int probeId, final long elapsed, final int rate) {
+		if(probeId < 0 || probeId >= capacity) return;
+		final int base = cell(stripeFor(Thread.currentThread()), probeId);
+		cells.incrementAndGet(base + SAMPLES);
+		cells.addAndGet(base + COUNT, rate);
+		cells.addAndGet(base + TOTAL, elapsed * rate);
+		long max;
+		while(elapsed > (max = cells.get(base + MAX))) {
+			if(cells.compareAndSet(base + MAX, max, elapsed)) break;
+		}
+	}
+
+	/**
+	 * Counts down to the passed probe's next sample in the calling thread's stripe
+	 * @param probeId The probe id
+	 * @return the number of calls to weight the sample by, being the length of the interval this call ends, or 0 if this call is not sampled
+	 */
+	public int sample(final int probeId) {
+		if(probeId < 0 || probeId >= capacity) return 0;
+		final int base = cell(stripeFor(Thread.currentThread()), probeId);
+		// a lost update between threads sharing a stripe only shifts the next sample by a call
+		final long remaining = cells.get(base + COUNTDOWN) - 1L;
+		if(remaining > 0L) {
+			cells.lazySet(base + COUNTDOWN, remaining);
+			return 0;
+		}
+		final long armed = cells.get(base + ARMED);
+		final int rate = rates.get(probeId);
+		cells.lazySet(base + COUNTDOWN, rate);
+		cells.lazySet(base + ARMED, rate);
+		// a stripe that was never armed has only seen this call
+		return armed < 1L ? 1 : (int)armed;
+	}
+
+	/**
+	 * Sets the passed probe's sample rate. Takes effect without retransforming the probed classes.
+	 * Intervals with more calls remaining than the new rate are cut short to the new rate.
+	 * @param probeId The probe id
+	 * @param rate The sample rate, being 1 in how many calls are recorded
+	 */
+	public void setSampleRate(final int probeId, final int rate) {
+		checkProbeId(probeId);
+		if(rate < 1) throw new IllegalArgumentException("Invalid sample rate [" + rate + "]");
+		rates.set(probeId, rate);
+		for(int s = 0; s < stripes; s++) {
+			final int base = cell(s, probeId);
+			// racing a recording thread may shift its next sample by a call, as a lost countdown update would
+			final long remaining = cells.get(base + COUNTDOWN);
+			if(remaining < 1L) {
+				cells.set(base + ARMED, rate);
+				cells.set(base + COUNTDOWN, rate);
+			} else if(remaining > rate) {
+				cells.set(base + ARMED, cells.get(base + ARMED) - remaining + rate);
+				cells.set(base + COUNTDOWN, rate);
+			}
+		}
+	}
+
+	/**
+	 * Returns the passed probe's sample rate
+	 * @param probeId The probe id
+	 * @return the sample rate, being 1 in how many calls are recorded
+	 */
+	public int getSampleRate(final int probeId) {
+		checkProbeId(probeId);
+		return rates.get(probeId);
+	}
+
+	/**
+	 * Returns the stripe for the passed thread
+	 * @param thread The thread
+	 * @return the stripe index
+	 */
+	int stripeFor(final Thread thread) {
+		// thread ids are sequential, so consecutively started threads land in different stripes
+		return (int)thread.getId() & stripeMask;
+	}
+
+	/**
+	 * Returns the index of the first counter of the passed probe's cell in the passed stripe
+	 * @param stripe The stripe index
+	 * @param probeId The probe id
+	 * @return the cell index
+	 */
+	private int cell(final int stripe, final int probeId) {
+		return (stripe * capacity + probeId) * CELL_SIZE;
+	}
+
+	/**
+	 * Aggregates the passed probe's counters across all the stripes
+	 * @param probeId The probe id
+	 * @param name The probe name
+	 * @return the probe snapshot
+	 */
+	public ProbeSnapshot snapshot(final int probeId, final String name) {
+		checkProbeId(probeId);
+		long count = 0L, total = 0L, max = 0L, samples = 0L;
+		for(int s = 0; s < stripes; s++) {
+			final int base = cell(s, probeId);
+			samples += cells.get(base + SAMPLES);
+			count += cells.get(base + COUNT);
+			total += cells.get(base + TOTAL);
+			final long m = cells.get(base + MAX);
+			if(m > max) max = m;
+		}
+		return new ProbeSnapshot(probeId, name, count, total, max, samples, rates.get(probeId));
+	}
+
+	/**
+	 * Resets the passed probe's counters in all the stripes. The sample rate is retained.
+	 * @param probeId The probe id
+	 */
+	public void reset(final int probeId) {
+		checkProbeId(probeId);
+		for(int s = 0; s < stripes; s++) {
+			final int base = cell(s, probeId);
+			cells.set(base + COUNT, 0L);
+			cells.set(base + TOTAL, 0L);
+			cells.set(base + MAX, 0L);
+			cells.set(base + SAMPLES, 0L);
+			cells.set(base + COUNTDOWN, 0L);
+		}
+	}
+
+	/**
+	 * Validates a probe id
+	 * @param probeId The probe id to validate
+	 */
+	private void checkProbeId(final int probeId) {
+		if(probeId < 0 || probeId >= capacity) throw new IllegalArgumentException("Invalid probe id [" + probeId + "]");
+	}
+
+	/**
+	 * Returns the maximum number of probes
+	 * @return the probe capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of stripes
+	 * @return the stripe count
+	 */
+	public int getStripeCount() {
+		return stripes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("ProbeCounters [capacity:%s, stripes:%s]", capacity, stripes);
+	}
+
+}
@@ -0,0 +1,137 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javassist.CtBehavior;
+
+/**
+ * <p>Title: ProbeRegistry</p>
+ * <p>Description: Assigns fixed integer ids to probe names, in registration order and up to a fixed capacity.
+ * Ids are never reused, so a probe keeps its counters across retransforms of its class, and injected code can
+ * address the counters with a compiled in constant instead of a name lookup.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.ProbeRegistry</code></p>
+ */
+
+public class ProbeRegistry {
+	/** The probe names indexed by probe id */
+	private final AtomicReferenceArray<String> names;
+	/** The probe ids keyed by probe name */
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	/** The maximum number of probes */
+	private final int capacity;
+	/** The system property name defining the capacity, reported when the capacity is exhausted */
+	private final String capacityProp;
+	/** The probe registration lock */
+	private final Object lock = new Object();
+	/** The number of registered probes */
+	private volatile int probeCount = 0;
+
+	/**
+	 * Creates a new ProbeRegistry
+	 * @param capacity The maximum number of probes
+	 * @param capacityProp The system property name defining the capacity
+	 */
+	public ProbeRegistry(final int capacity, final String capacityProp) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+		this.capacity = capacity;
+		this.capacityProp = capacityProp;
+		names = new AtomicReferenceArray<String>(capacity);
+	}
+
+	/**
+	 * Returns the default probe name for the passed behavior, being the class name, behavior name and descriptor
+	 * @param behavior The behavior to name the probe for
+	 * @return the probe name
+	 */
+	public static String probeName(final CtBehavior behavior) {
+		if(behavior==null) throw new IllegalArgumentException("The passed behavior was null");
+		return behavior.getDeclaringClass().getName() + "." + behavior.getName() + behavior.getSignature();
+	}
+
+	/**
+	 * Registers a probe, returning the id already assigned to the name if it was registered before
+	 * @param name The probe name
+	 * @return the probe id
+	 */
+	public int register(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed probe name was null or empty");
+		final Integer id = ids.get(name);
+		if(id!=null) return id;
+		synchronized(lock) {
+			final Integer existing = ids.get(name);
+			if(existing!=null) return existing;
+			final int next = probeCount;
+			if(next >= capacity) throw new IllegalStateException("Probe capacity [" + capacity + "] exhausted. Set [" + capacityProp + "] to raise it.");
+			names.set(next, name);
+			ids.put(name, next);
+			probeCount = next + 1;
+			return next;
+		}
+	}
+
+	/**
+	 * Returns the id of the named probe
+	 * @param name The probe name
+	 * @return the probe id, or -1 if no probe is registered with the name
+	 */
+	public int getProbeId(final String name) {
+		final Integer id = name==null ? null : ids.get(name);
+		return id==null ? -1 : id;
+	}
+
+	/**
+	 * Returns the name of the passed probe
+	 * @param probeId The probe id
+	 * @return the probe name, or null if no probe is registered with the id
+	 */
+	public String getProbeName(final int probeId) {
+		return (probeId < 0 || probeId >= probeCount) ? null : names.get(probeId);
+	}
+
+	/**
+	 * Returns the number of registered probes
+	 * @return the probe count
+	 */
+	public int getProbeCount() {
+		return probeCount;
+	}
+
+	/**
+	 * Returns the maximum number of probes
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("ProbeRegistry [probes:%s/%s]", probeCount, capacity);
+	}
+
+}
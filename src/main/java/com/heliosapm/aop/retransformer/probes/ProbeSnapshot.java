@@ -0,0 +1,139 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+/**
+ * <p>Title: ProbeSnapshot</p>
+ * <p>Description: An immutable point in time read of a probe's counters, aggregated across the counter stripes.
+ * For a sampled probe the count and total are estimates, scaled up by the rate each sample was taken at.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.ProbeSnapshot</code></p>
+ */
+
+public final class ProbeSnapshot {
+	/** The probe id */
+	private final int probeId;
+	/** The probe name */
+	private final String name;
+	/** The number of recorded calls, scaled by the sample rate */
+	private final long count;
+	/** The total of the recorded times, scaled by the sample rate */
+	private final long total;
+	/** The maximum recorded time */
+	private final long max;
+	/** The number of recorded samples */
+	private final long samples;
+	/** The sample rate when the snapshot was taken */
+	private final int sampleRate;
+
+	/**
+	 * Creates a new ProbeSnapshot
+	 * @param probeId The probe id
+	 * @param name The probe name
+	 * @param count The number of recorded calls, scaled by the sample rate
+	 * @param total The total of the recorded times, scaled by the sample rate
+	 * @param max The maximum recorded time
+	 * @param samples The number of recorded samples
+	 * @param sampleRate The sample rate when the snapshot was taken
+	 */
+	ProbeSnapshot(final int probeId, final String name, final long count, final long total, final long max, final long samples, final int sampleRate) {
+		this.probeId = probeId;
+		this.name = name;
+		this.count = count;
+		this.total = total;
+		this.max = max;
+		this.samples = samples;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Returns the probe id
+	 * @return the probe id
+	 */
+	public int getProbeId() {
+		return probeId;
+	}
+
+	/**
+	 * Returns the probe name
+	 * @return the probe name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of recorded calls, estimated from the samples if the probe is sampled
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the total of the recorded times, estimated from the samples if the probe is sampled
+	 * @return the total
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the maximum recorded time
+	 * @return the maximum
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the number of recorded samples. Equal to the count if the probe has never been sampled.
+	 * @return the sample count
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns the sample rate when the snapshot was taken
+	 * @return the sample rate, being 1 in how many calls are recorded
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Returns the mean of the recorded times
+	 * @return the mean
+	 */
+	public long getMean() {
+		return count==0L ? 0L : total / count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("ProbeSnapshot [%s#%s, count:%s, total:%s, mean:%s, max:%s, samples:%s, sampleRate:1/%s]", name, probeId, count, total, getMean(), max, samples, sampleRate);
+	}
+
+}
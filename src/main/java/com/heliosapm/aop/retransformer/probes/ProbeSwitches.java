@@ -0,0 +1,226 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Title: ProbeSwitches</p>
+ * <p>Description: Per probe enable flags guarding injected probe code, so probes can be switched on and off with a memory
+ * write instead of a transform and restore. Injected code reads its flag straight out of the plain {@link #ENABLED} array
+ * through the expression returned by {@link #guard(int)}, which the JIT compiles to a constant array load and a
+ * predictable branch. Switch changes are staged and copied into {@link #ENABLED} by {@link #publish()}, which runs
+ * periodically on a daemon thread or can be called directly, and ends with a volatile write. Since the reads are plain,
+ * a change is picked up by running code eventually rather than immediately.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.ProbeSwitches</code></p>
+ */
+
+public class ProbeSwitches {
+	/** The system property name defining the maximum number of switches */
+	public static final String CAPACITY_PROP = "retransformer.probes.switches.capacity";
+	/** The default maximum number of switches */
+	public static final int DEFAULT_CAPACITY = 65536;
+	/** The system property name defining the period between publishes of staged switch changes in ms. */
+	public static final String PERIOD_PROP = "retransformer.probes.switches.period";
+	/** The default period between publishes of staged switch changes in ms. */
+	public static final long DEFAULT_PERIOD = 100L;
+	/** The system property name indicating if new switches start enabled */
+	public static final String ENABLED_PROP = "retransformer.probes.switches.enabled";
+
+	/** The published enable flags indexed by switch id. Read by injected code, written only by {@link #publish()} and {@link #register(String)}. */
+	public static final boolean[] ENABLED = new boolean[Math.max(1, Integer.getInteger(CAPACITY_PROP, DEFAULT_CAPACITY))];
+
+	/** The staged enable flags indexed by switch id */
+	private static final boolean[] staged = new boolean[ENABLED.length];
+	/** The switch ids, keyed by probe name */
+	private static final ProbeRegistry registry = new ProbeRegistry(ENABLED.length, CAPACITY_PROP);
+	/** Indicates if new switches start enabled */
+	private static final boolean enabledByDefault = !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROP, "true").trim());
+	/** The period between publishes of staged switch changes in ms. */
+	private static final long period = Long.getLong(PERIOD_PROP, DEFAULT_PERIOD);
+	/** Indicates if there are staged changes waiting to be published */
+	private static final AtomicBoolean dirty = new AtomicBoolean(false);
+	/** Indicates if the periodic publisher has been started */
+	private static final AtomicBoolean publisherStarted = new AtomicBoolean(false);
+	/** The staging and publish lock */
+	private static final Object lock = new Object();
+	/** The number of publishes. Written last in each publish so the flag writes are released with it. */
+	private static volatile long publishCount = 0L;
+
+	private ProbeSwitches() {}
+
+	/**
+	 * Returns the guard expression for the passed switch, for use as the condition of injected probe code
+	 * @param switchId The switch id
+	 * @return the guard expression
+	 */
+	public static String guard(final int switchId) {
+		if(switchId < 0 || switchId >= ENABLED.length) throw new IllegalArgumentException("Invalid switch id [" + switchId + "]");
+		return ProbeSwitches.class.getName() + ".ENABLED[" + switchId + "]";
+	}
+
+	/**
+	 * Registers the switch for the named probe, returning the id already assigned to the name if it was registered before.
+	 * A new switch is published immediately in its default state so it is in place before any injected code reads it.
+	 * @param name The probe name
+	 * @return the switch id
+	 */
+	public static int register(final String name) {
+		final int existing = registry.getProbeId(name);
+		if(existing!=-1) return existing;
+		synchronized(lock) {
+			final int count = registry.getProbeCount();
+			final int switchId = registry.register(name);
+			if(switchId >= count) {
+				staged[switchId] = enabledByDefault;
+				ENABLED[switchId] = enabledByDefault;
+				publishCount++;
+			}
+			return switchId;
+		}
+	}
+
+	/**
+	 * Stages a change to the passed switch, to be applied by the next {@link #publish()}
+	 * @param switchId The switch id
+	 * @param enabled true to enable the probe, false to disable it
+	 */
+	public static void setEnabled(final int switchId, final boolean enabled) {
+		if(switchId < 0 || switchId >= registry.getProbeCount()) throw new IllegalArgumentException("No switch registered with id [" + switchId + "]");
+		synchronized(lock) {
+			staged[switchId] = enabled;
+		}
+		dirty.set(true);
+		startPublisher();
+	}
+
+	/**
+	 * Stages a change to the switch of the named probe, registering the switch if it has not been registered,
+	 * so a probe can be staged before it is injected
+	 * @param name The probe name
+	 * @param enabled true to enable the probe, false to disable it
+	 * @return the switch id
+	 */
+	public static int setEnabled(final String name, final boolean enabled) {
+		final int switchId = register(name);
+		setEnabled(switchId, enabled);
+		return switchId;
+	}
+
+	/**
+	 * Stages a change to all the registered switches
+	 * @param enabled true to enable the probes, false to disable them
+	 */
+	public static void setAllEnabled(final boolean enabled) {
+		synchronized(lock) {
+			final int count = registry.getProbeCount();
+			for(int i = 0; i < count; i++) staged[i] = enabled;
+		}
+		dirty.set(true);
+		startPublisher();
+	}
+
+	/**
+	 * Publishes the staged switch changes to {@link #ENABLED}
+	 */
+	public static void publish() {
+		synchronized(lock) {
+			dirty.set(false);
+			final int count = registry.getProbeCount();
+			for(int i = 0; i < count; i++) {
+				if(ENABLED[i]!=staged[i]) ENABLED[i] = staged[i];
+			}
+			publishCount++;
+		}
+	}
+
+	/**
+	 * Starts the periodic publisher if it has not been started
+	 */
+	private static void startPublisher() {
+		if(!publisherStarted.compareAndSet(false, true)) return;
+		final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "RetransformerProbeSwitchPublisher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final long p = period < 1L ? DEFAULT_PERIOD : period;
+		publisher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if(dirty.get()) publish();
+			}
+		}, p, p, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Indicates if the passed switch's published state is enabled
+	 * @param switchId The switch id
+	 * @return true if the probe is enabled, false otherwise
+	 */
+	public static boolean isEnabled(final int switchId) {
+		if(switchId < 0 || switchId >= registry.getProbeCount()) throw new IllegalArgumentException("No switch registered with id [" + switchId + "]");
+		synchronized(lock) {
+			return ENABLED[switchId];
+		}
+	}
+
+	/**
+	 * Indicates if there are staged switch changes waiting to be published
+	 * @return true if there are unpublished changes, false otherwise
+	 */
+	public static boolean isDirty() {
+		return dirty.get();
+	}
+
+	/**
+	 * Returns the id of the named probe's switch
+	 * @param name The probe name
+	 * @return the switch id, or -1 if no switch is registered for the name
+	 */
+	public static int getSwitchId(final String name) {
+		return registry.getProbeId(name);
+	}
+
+	/**
+	 * Returns the number of registered switches
+	 * @return the switch count
+	 */
+	public static int getSwitchCount() {
+		return registry.getProbeCount();
+	}
+
+	/**
+	 * Returns the number of publishes
+	 * @return the publish count
+	 */
+	public static long getPublishCount() {
+		return publishCount;
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.logging.Level;
+
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+import javassist.CtClass;
+
+import com.heliosapm.aop.retransformer.MethodBodyCache;
+import com.heliosapm.aop.retransformer.SourceMap;
+import com.heliosapm.aop.retransformer.transformers.SourceMapTransformer;
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
+
+/**
+ * <p>Title: TimingProbeTransformer</p>
+ * <p>Description: A {@link SourceMapTransformer} that injects a timing probe into each behavior keyed in the source map.
+ * The source map values are the probe names, defaulting to {@link TimingProbes#probeName(CtBehavior)} when empty.
+ * The probe id is resolved at transform time and compiled into the injected code as a constant, so each call costs two
+ * {@link System#nanoTime()} reads and a {@link TimingProbes#record(int, long)} into the striped counters. A sampled transformer
+ * injects a {@link TimingProbes#sample(int)} countdown instead, so only 1 in N calls reads the clock and records, where N is set
+ * per probe through {@link TimingProbes#setSampleRate(int, int)}. A guarded transformer makes the probe conditional on its
+ * {@link ProbeSwitches} flag, registered under the probe name prefixed with {@link #SWITCH_PREFIX}, so it can be switched off and on
+ * without a retransform, and a disabled probe costs a single branch.
+ * The transformed class's loader must be able to see {@link TimingProbes} and {@link ProbeSwitches}.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.TimingProbeTransformer</code></p>
+ */
+
+public class TimingProbeTransformer extends SourceMapTransformer {
+	/** Public shareable strict instance */
+	public static final TimingProbeTransformer STRICT_INSTANCE = new TimingProbeTransformer(true);
+	/** Public shareable non-strict instance */
+	public static final TimingProbeTransformer INSTANCE = new TimingProbeTransformer(false);
+	/** Public shareable strict sampling instance */
+	public static final TimingProbeTransformer STRICT_SAMPLED_INSTANCE = new TimingProbeTransformer(true, true);
+	/** Public shareable non-strict sampling instance */
+	public static final TimingProbeTransformer SAMPLED_INSTANCE = new TimingProbeTransformer(false, true);
+	/** Public shareable strict guarded instance */
+	public static final TimingProbeTransformer STRICT_GUARDED_INSTANCE = new TimingProbeTransformer(true, false, true);
+	/** Public shareable non-strict guarded instance */
+	public static final TimingProbeTransformer GUARDED_INSTANCE = new TimingProbeTransformer(false, false, true);
+	/** Public shareable strict guarded sampling instance */
+	public static final TimingProbeTransformer STRICT_GUARDED_SAMPLED_INSTANCE = new TimingProbeTransformer(true, true, true);
+	/** Public shareable non-strict guarded sampling instance */
+	public static final TimingProbeTransformer GUARDED_SAMPLED_INSTANCE = new TimingProbeTransformer(false, true, true);
+	/** The prefix of the switch names of guarded timing probes, so they never share a switch with another kind of probe */
+	public static final String SWITCH_PREFIX = "timing:";
+	/** The name of the local variable holding the probe start time */
+	public static final String START_VAR = "_probeStart";
+	/** The name of the local variable holding the sample rate of a sampled or guarded call, 0 if the call is not recorded */
+	public static final String RATE_VAR = "_probeRate";
+
+	/** The injected code recording the elapsed time, formatted with the probe id */
+	private static final String RECORD = TimingProbes.class.getName() + ".record(%s, System.nanoTime() - " + START_VAR + ");";
+	/** The injected code deciding if a sampled call is recorded, formatted with the rate expression */
+	private static final String ENTER = RATE_VAR + " = %s; " + START_VAR + " = " + RATE_VAR + "==0 ? 0L : System.nanoTime();";
+	/** The rate expression of a sampled call, formatted with the probe id */
+	private static final String SAMPLE = TimingProbes.class.getName() + ".sample(%s)";
+	/** The injected code deciding if a guarded call is recorded, formatted with the switch expression and the injected code deciding if an enabled call is recorded */
+	private static final String GUARD = "if(%s) { %s } else { " + RATE_VAR + " = 0; " + START_VAR + " = 0L; }";
+	/** The injected code starting the timing of a guarded call recording every call */
+	private static final String ENTER_ALL = RATE_VAR + " = 1; " + START_VAR + " = System.nanoTime();";
+	/** The injected code recording the elapsed time of a sampled or guarded call, formatted with the probe id */
+	private static final String RECORD_SAMPLE = "if(" + RATE_VAR + "!=0) " + TimingProbes.class.getName() + ".record(%s, System.nanoTime() - " + START_VAR + ", " + RATE_VAR + ");";
+
+	/** Indicates if the injected probes are sampled */
+	private final boolean sampled;
+	/** Indicates if the injected probes are guarded by a switch */
+	private final boolean guarded;
+
+	/**
+	 * Creates a new TimingProbeTransformer recording every call
+	 * @param strict true for a strict transformer, false otherwise
+	 */
+	public TimingProbeTransformer(final boolean strict) {
+		this(strict, false);
+	}
+
+	/**
+	 * Creates a new TimingProbeTransformer
+	 * @param strict true for a strict transformer, false otherwise
+	 * @param sampled true to inject sampled probes, false to record every call
+	 */
+	public TimingProbeTransformer(final boolean strict, final boolean sampled) {
+		this(strict, sampled, false);
+	}
+
+	/**
+	 * Creates a new TimingProbeTransformer
+	 * @param strict true for a strict transformer, false otherwise
+	 * @param sampled true to inject sampled probes, false to record every call
+	 * @param guarded true to guard the injected probes with a {@link ProbeSwitches} flag, false otherwise
+	 */
+	public TimingProbeTransformer(final boolean strict, final boolean sampled, final boolean guarded) {
+		super(strict);
+		this.sampled = sampled;
+		this.guarded = guarded;
+	}
+
+	/**
+	 * Registers the probe and injects its timing code into the passed behavior
+	 * @param behavior The behavior to probe
+	 * @param probeName The probe name, or empty for the default name
+	 * @throws CannotCompileException thrown if the probe code can't be compiled, or there is no capacity left to register the probe
+	 */
+	@Override
+	protected void transform(final CtBehavior behavior, final String probeName) throws CannotCompileException {
+		final int[] ids = register(behavior, probeName);
+		inject(behavior, ids[0], ids[1]);
+	}
+
+	/**
+	 * Registers the probe and injects its timing code into the passed behavior, splicing it from the {@link MethodBodyCache}
+	 * when the same probe was already injected into the same code. The source map value is only the probe name, so the
+	 * resolved probe and switch ids compiled into the injected code are added to the cache key.
+	 * @param behavior The behavior to probe
+	 * @param body The source map entry holding the probe name
+	 * @param tc The optional transform context
+	 * @throws CannotCompileException thrown if the probe code can't be compiled, or there is no capacity left to register the probe
+	 */
+	@Override
+	protected void compile(final CtBehavior behavior, final SourceMap.Body body, final TransformContext tc) throws CannotCompileException {
+		final int[] ids = register(behavior, body.getSource());
+		final MethodBodyCache bodyCache = MethodBodyCache.getInstance();
+		final MethodBodyCache.Key key = bodyCache.key(classDigest(behavior.getDeclaringClass(), body), behavior, sourceDigest(behavior, body) + ":" + ids[0] + ":" + ids[1]);
+		if(!bodyCache.apply(key, behavior)) {
+			inject(behavior, ids[0], ids[1]);
+			bodyCache.store(key, behavior);
+		}
+	}
+
+	/**
+	 * Registers the probe, and its switch if this transformer is guarded
+	 * @param behavior The behavior to probe
+	 * @param probeName The probe name, or empty for the default name
+	 * @return the probe id and the switch id, which is -1 if this transformer is not guarded
+	 * @throws CannotCompileException thrown if there is no capacity left to register the probe
+	 */
+	private int[] register(final CtBehavior behavior, final String probeName) throws CannotCompileException {
+		final String name = (probeName==null || probeName.trim().isEmpty()) ? TimingProbes.probeName(behavior) : probeName.trim();
+		try {
+			final int probeId = TimingProbes.register(name);
+			final int switchId = guarded ? ProbeSwitches.register(SWITCH_PREFIX + name) : -1;
+			return new int[]{probeId, switchId};
+		} catch (IllegalStateException ise) {
+			// a full registry fails the behavior like a compile error, so a non-strict transform skips it and carries on
+			if(!isStrict()) log.log(Level.WARNING, "Skipped timing probe for [" + behavior.getLongName() + "]: " + ise.getMessage());
+			throw new CannotCompileException(ise);
+		}
+	}
+
+	/**
+	 * Injects the timing code for the passed probe into the passed behavior
+	 * @param behavior The behavior to probe
+	 * @param probeId The probe id
+	 * @param switchId The switch id, or -1 if this transformer is not guarded
+	 * @throws CannotCompileException thrown if the probe code can't be compiled
+	 */
+	private void inject(final CtBehavior behavior, final int probeId, final int switchId) throws CannotCompileException {
+		behavior.addLocalVariable(START_VAR, CtClass.longType);
+		// the finally goes in first so the locals are assigned ahead of its handler range
+		if(sampled || guarded) {
+			String enter = sampled ? String.format(ENTER, String.format(SAMPLE, probeId)) : ENTER_ALL;
+			// a disabled probe assigns the locals in the one branch, so the exit code finds them set
+			if(guarded) enter = String.format(GUARD, ProbeSwitches.guard(switchId), enter);
+			behavior.addLocalVariable(RATE_VAR, CtClass.intType);
+			behavior.insertAfter(String.format(RECORD_SAMPLE, probeId), true);
+			behavior.insertBefore(enter);
+		} else {
+			behavior.insertAfter(String.format(RECORD, probeId), true);
+			behavior.insertBefore(START_VAR + " = System.nanoTime();");
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#getKind()
+	 */
+	@Override
+	public String getKind() {
+		return (guarded ? "guarded" : "") + (sampled ? "sampled" : "probe");
+	}
+
+	/**
+	 * Indicates if the injected probes are sampled
+	 * @return true if the injected probes are sampled, false if every call is recorded
+	 */
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	/**
+	 * Indicates if the injected probes are guarded by a switch
+	 * @return true if the injected probes are guarded by a {@link ProbeSwitches} flag, false otherwise
+	 */
+	public boolean isGuarded() {
+		return guarded;
+	}
+
+}
@@ -0,0 +1,198 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javassist.CtBehavior;
+
+/**
+ * <p>Title: TimingProbes</p>
+ * <p>Description: The registry and counters of the method timing probes injected by the {@link TimingProbeTransformer}.
+ * Each probe name is assigned a fixed integer id at transform time, and the injected code calls {@link #record(int, long)}
+ * with that id, which only updates the preallocated {@link ProbeCounters}. Ids are assigned by a {@link ProbeRegistry}.
+ * Sampled probes call {@link #sample(int)} on entry and only read the clock and record when it selects the call.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.TimingProbes</code></p>
+ */
+
+public class TimingProbes {
+	/** The probe counters */
+	private static final ProbeCounters counters = new ProbeCounters();
+	/** The probe ids */
+	private static final ProbeRegistry registry = new ProbeRegistry(counters.getCapacity(), ProbeCounters.CAPACITY_PROP);
+
+	private TimingProbes() {}
+
+	/**
+	 * Records an elapsed time against the passed probe. Called from injected code.
+	 * @param probeId The probe id
+	 * @param elapsed The elapsed time in ns.
+	 */
+	public static void record(final int probeId, final long elapsed) {
+		counters.record(probeId, elapsed);
+	}
+
+	/**
+	 * Determines if the current call of the passed probe is sampled. Called from injected code.
+	 * @param probeId The probe id
+	 * @return the number of calls to weight the sample by, or 0 if this call is not sampled
+	 */
+	public static int sample(final int probeId) {
+		return counters.sample(probeId);
+	}
+
+	/**
+	 * Records a sampled elapsed time against the passed probe. Called from injected code.
+	 * @param probeId The probe id
+	 * @param elapsed The elapsed time in ns.
+	 * @param rate The sample weight returned by {@link #sample(int)}
+	 */
+	public static void record(final int probeId, final long elapsed, final int rate) {
+		counters.record(probeId, elapsed, rate);
+	}
+
+	/**
+	 * Sets the sample rate of the passed probe. Takes effect without retransforming the probed classes.
+	 * @param probeId The probe id
+	 * @param rate The sample rate, being 1 in how many calls are recorded
+	 */
+	public static void setSampleRate(final int probeId, final int rate) {
+		counters.setSampleRate(probeId, rate);
+	}
+
+	/**
+	 * Sets the sample rate of the named probe, registering the probe if it has not been registered, so a rate can be set before the probe is injected
+	 * @param name The probe name
+	 * @param rate The sample rate, being 1 in how many calls are recorded
+	 * @return the probe id
+	 */
+	public static int setSampleRate(final String name, final int rate) {
+		final int probeId = registry.register(name);
+		counters.setSampleRate(probeId, rate);
+		return probeId;
+	}
+
+	/**
+	 * Returns the sample rate of the passed probe
+	 * @param probeId The probe id
+	 * @return the sample rate, being 1 in how many calls are recorded
+	 */
+	public static int getSampleRate(final int probeId) {
+		return counters.getSampleRate(probeId);
+	}
+
+	/**
+	 * Registers a probe, returning the id already assigned to the name if it was registered before
+	 * @param name The probe name
+	 * @return the probe id
+	 */
+	public static int register(final String name) {
+		return registry.register(name);
+	}
+
+	/**
+	 * Returns the default probe name for the passed behavior, being the class name, behavior name and descriptor
+	 * @param behavior The behavior to name the probe for
+	 * @return the probe name
+	 */
+	public static String probeName(final CtBehavior behavior) {
+		return ProbeRegistry.probeName(behavior);
+	}
+
+	/**
+	 * Returns the id of the named probe
+	 * @param name The probe name
+	 * @return the probe id, or -1 if no probe is registered with the name
+	 */
+	public static int getProbeId(final String name) {
+		return registry.getProbeId(name);
+	}
+
+	/**
+	 * Returns the name of the passed probe
+	 * @param probeId The probe id
+	 * @return the probe name, or null if no probe is registered with the id
+	 */
+	public static String getProbeName(final int probeId) {
+		return registry.getProbeName(probeId);
+	}
+
+	/**
+	 * Returns the number of registered probes
+	 * @return the probe count
+	 */
+	public static int getProbeCount() {
+		return registry.getProbeCount();
+	}
+
+	/**
+	 * Aggregates the counters of the passed probe
+	 * @param probeId The probe id
+	 * @return the probe snapshot
+	 */
+	public static ProbeSnapshot snapshot(final int probeId) {
+		final String name = getProbeName(probeId);
+		if(name==null) throw new IllegalArgumentException("No probe registered with id [" + probeId + "]");
+		return counters.snapshot(probeId, name);
+	}
+
+	/**
+	 * Aggregates the counters of the named probe
+	 * @param name The probe name
+	 * @return the probe snapshot, or null if no probe is registered with the name
+	 */
+	public static ProbeSnapshot snapshot(final String name) {
+		final int probeId = getProbeId(name);
+		return probeId==-1 ? null : counters.snapshot(probeId, name);
+	}
+
+	/**
+	 * Aggregates the counters of all the registered probes
+	 * @return the probe snapshots keyed by probe name, in probe id order
+	 */
+	public static Map<String, ProbeSnapshot> snapshot() {
+		final int count = registry.getProbeCount();
+		final Map<String, ProbeSnapshot> map = new LinkedHashMap<String, ProbeSnapshot>(count);
+		for(int i = 0; i < count; i++) {
+			final String name = registry.getProbeName(i);
+			map.put(name, counters.snapshot(i, name));
+		}
+		return map;
+	}
+
+	/**
+	 * Resets the counters of the passed probe
+	 * @param probeId The probe id
+	 */
+	public static void reset(final int probeId) {
+		counters.reset(probeId);
+	}
+
+	/**
+	 * Returns the probe counters
+	 * @return the probe counters
+	 */
+	public static ProbeCounters getCounters() {
+		return counters;
+	}
+
+}
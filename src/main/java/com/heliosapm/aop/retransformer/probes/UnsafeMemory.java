@@ -0,0 +1,124 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.probes;
+
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import sun.misc.Unsafe;
+
+/**
+ * <p>Title: UnsafeMemory</p>
+ * <p>Description: The only user of {@link Unsafe} in the probe runtime, wrapping the few raw memory operations the
+ * {@link OffHeapCounters} need, so the proprietary API is confined to this class. All the operations are no-ops or
+ * return zero when {@link Unsafe} is not available, and callers are expected to check {@link #isAvailable()} first.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.probes.UnsafeMemory</code></p>
+ */
+
+final class UnsafeMemory {
+	/** Static class logger */
+	private static final Logger LOG = Logger.getLogger(UnsafeMemory.class.getName());
+	/** The unsafe instance, or null if it is not available */
+	private static final Unsafe UNSAFE = load();
+
+	private UnsafeMemory() {}
+
+	/**
+	 * Acquires the unsafe instance
+	 * @return the unsafe instance, or null if it is not available
+	 */
+	private static Unsafe load() {
+		try {
+			final Field f = Unsafe.class.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			return (Unsafe)f.get(null);
+		} catch (Throwable t) {
+			LOG.log(Level.INFO, "Unsafe not available. Counters will be held in direct buffers: " + t);
+			return null;
+		}
+	}
+
+	/**
+	 * Indicates if raw memory can be allocated
+	 * @return true if unsafe is available, false otherwise
+	 */
+	static boolean isAvailable() {
+		return UNSAFE!=null;
+	}
+
+	/**
+	 * Allocates a zeroed region of raw memory
+	 * @param bytes The number of bytes to allocate
+	 * @return the base address of the region
+	 */
+	static long allocate(final long bytes) {
+		final long address = UNSAFE.allocateMemory(bytes);
+		UNSAFE.setMemory(address, bytes, (byte)0);
+		return address;
+	}
+
+	/**
+	 * Frees a region allocated by {@link #allocate(long)}
+	 * @param address The base address of the region
+	 */
+	static void free(final long address) {
+		UNSAFE.freeMemory(address);
+	}
+
+	/**
+	 * Reads the long at the passed address with volatile semantics
+	 * @param address The address to read
+	 * @return the long value
+	 */
+	static long getVolatile(final long address) {
+		return UNSAFE.getLongVolatile(null, address);
+	}
+
+	/**
+	 * Writes a long to the passed address with volatile semantics
+	 * @param address The address to write
+	 * @param value The value to write
+	 */
+	static void putVolatile(final long address, final long value) {
+		UNSAFE.putLongVolatile(null, address, value);
+	}
+
+	/**
+	 * Atomically increments the long at the passed address
+	 * @param address The address to increment
+	 */
+	static void incrementAtomic(final long address) {
+		long v;
+		do {
+			v = UNSAFE.getLongVolatile(null, address);
+		} while(!UNSAFE.compareAndSwapLong(null, address, v, v + 1L));
+	}
+
+	/**
+	 * Increments the long at the passed address with a plain read-modify-write, which may lose updates under contention
+	 * @param address The address to increment
+	 */
+	static void incrementRelaxed(final long address) {
+		UNSAFE.putLong(address, UNSAFE.getLong(address) + 1L);
+	}
+
+}
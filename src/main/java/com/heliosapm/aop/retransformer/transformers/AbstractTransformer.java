@@ -18,14 +18,15 @@ under the License.
  */
 package com.heliosapm.aop.retransformer.transformers;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import com.heliosapm.aop.retransformer.BehaviorIndex;
+import com.heliosapm.aop.retransformer.ClassPoolCache;
 import com.heliosapm.aop.retransformer.Instrumented;
+import com.heliosapm.aop.retransformer.SourceMap;
 
 import javassist.CtBehavior;
 import javassist.CtClass;
@@ -75,26 +76,15 @@ public abstract class AbstractTransformer<T> implements ITransformer<T> {
 		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
 		final String ctName = ct.getSimpleName();
 		final Map<CtBehavior, String> index = new HashMap<CtBehavior, String>(sourceMap.size());
-		for(Map.Entry<String, String> entry: sourceMap.entrySet()) {
+		for(SourceMap.Body body: SourceMap.of(sourceMap).bodies()) {
 			try {
-				String key = entry.getKey();								
-				String behName = null;
-				String descriptor = null;
-				int ind = key.indexOf(':');
-				if(ind==-1) {
-					behName = key.trim();
-					descriptor = null;
-				} else {
-					behName = key.substring(0, ind).trim();
-					descriptor = key.substring(ind+1).trim();									
-				}								
 				final CtBehavior ctBehavior;
-				if(ctName.equals(behName)) {
-					ctBehavior = findCtor(ct, descriptor);
+				if(ctName.equals(body.getName())) {
+					ctBehavior = findCtor(ct, body.getDescriptor());
 				} else {
-					ctBehavior = findMethod(ct, behName, descriptor);
+					ctBehavior = findMethod(ct, body.getName(), body.getDescriptor());
 				}
-				index.put(ctBehavior, entry.getValue());
+				index.put(ctBehavior, body.getSource());
 			} catch (Exception ex) {
 				if(!ignoreNotFounds) throw new RuntimeException("Failed to process source map for CtClass [" + ct.getName() + "]", ex);
 			}
@@ -103,7 +93,7 @@ public abstract class AbstractTransformer<T> implements ITransformer<T> {
 	}
 	
 	/**
-	 * Finds a constructor in the passed ctclass
+	 * Finds a constructor in the passed ctclass using its cached behavior index
 	 * @param ct The ctclass to get the constructor for
 	 * @param descriptor The optional descriptor. If not supplied, the first located constructor will be returned.
 	 * @return the located constructor
@@ -111,32 +101,37 @@ public abstract class AbstractTransformer<T> implements ITransformer<T> {
 	public CtConstructor findCtor(final CtClass ct, final String descriptor) {
 		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
 		try {
-			if(descriptor!=null) return ct.getConstructor(descriptor);
-			final LinkedHashSet<CtConstructor> ctors = new LinkedHashSet<CtConstructor>(Arrays.asList(ct.getDeclaredConstructors()));
-			Collections.addAll(ctors, ct.getConstructors());
-			return ctors.iterator().next();
+			final BehaviorIndex index = ClassPoolCache.getInstance().getBehaviorIndex(ct);
+			final CtConstructor ctor;
+			if(descriptor!=null) {
+				ctor = index.getConstructor(descriptor);
+			} else {
+				final CtConstructor[] ctors = index.getDeclaredConstructors();
+				ctor = ctors.length==0 ? null : ctors[0];
+			}
+			if(ctor==null) throw new Exception("No ctor found");
+			return ctor;
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to find ctor for [" + ct.getName() + "]", ex);
 		}
 	}
 
 	/**
-	 * Finds a method in the passed ctclass
+	 * Finds a method in the passed ctclass using its cached behavior index
 	 * @param ct The ctclass to get the method for
 	 * @param methodName The name of the method to find
-	 * @param descriptor The optional descriptor. If not supplied, the first located constructor will be returned.
-	 * @return the located constructor
+	 * @param descriptor The optional descriptor. If not supplied, the nearest visible method with the name will be returned.
+	 * @return the located method
 	 */
 	public CtMethod findMethod(final CtClass ct, final String methodName, final String descriptor) {
 		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
 		if(methodName==null || methodName.trim().isEmpty()) throw new IllegalArgumentException("The passed methodName was null or empty");
 		final String _name = methodName.trim();
 		try {
-			if(descriptor!=null) return ct.getMethod(_name, descriptor);
-			for(CtMethod m: ct.getMethods()) {
-				if(_name.equals(m.getName())) return m;
-			}
-			throw new Exception("No method found");
+			final BehaviorIndex index = ClassPoolCache.getInstance().getBehaviorIndex(ct);
+			final CtMethod method = descriptor!=null ? index.getMethod(_name, descriptor) : index.getVisibleMethod(_name);
+			if(method==null) throw new Exception("No method found");
+			return method;
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to find method [" + _name + "] for [" + ct.getName() + "]", ex);
 		}
@@ -0,0 +1,61 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.transformers;
+
+import javassist.CtClass;
+
+import com.heliosapm.aop.retransformer.AnnotationBuilder;
+
+/**
+ * <p>Title: AnnotationTransformer</p>
+ * <p>Description: A transformer that applies the annotation built by an {@link AnnotationBuilder} to the transformed class</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.transformers.AnnotationTransformer</code></p>
+ */
+
+public class AnnotationTransformer extends AbstractTransformer<AnnotationBuilder> {
+	/** Public shareable instance */
+	public static final AnnotationTransformer INSTANCE = new AnnotationTransformer();
+
+	/**
+	 * Applies the built annotation to the passed CtClass
+	 * @param ct The CtClass to transform
+	 * @param tc The transform context
+	 * @param annotationBuilder The builder of the annotation to apply
+	 * @return the transformed CtClass
+	 */
+	@Override
+	public CtClass transform(final CtClass ct, final TransformContext tc, final AnnotationBuilder annotationBuilder) {
+		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
+		if(annotationBuilder==null) throw new IllegalArgumentException("The passed annotation builder was null");
+		annotationBuilder.applyTo(ct);
+		if(tc!=null) tc.matched("@" + annotationBuilder.getAnnotationClass().getName());
+		return ct;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.AbstractTransformer#isStrict()
+	 */
+	@Override
+	public boolean isStrict() {
+		return true;
+	}
+}
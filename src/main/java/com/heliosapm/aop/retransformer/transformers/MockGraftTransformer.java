@@ -0,0 +1,84 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.transformers;
+
+import javassist.CtClass;
+
+import com.heliosapm.aop.retransformer.ClassPoolCache;
+import com.heliosapm.aop.retransformer.MethodGrafter;
+
+/**
+ * <p>Title: MockGraftTransformer</p>
+ * <p>Description: A transformer that grafts the method bodies of a mock class onto the matching methods of the transformed class
+ * using the {@link MethodGrafter}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.transformers.MockGraftTransformer</code></p>
+ */
+
+public class MockGraftTransformer extends AbstractTransformer<Class<?>> {
+	/** Public shareable strict instance */
+	public static final MockGraftTransformer STRICT_INSTANCE = new MockGraftTransformer(true);
+	/** Public shareable non-strict instance */
+	public static final MockGraftTransformer INSTANCE = new MockGraftTransformer(false);
+
+	/** Indicates if this transformer is strict */
+	private final boolean strict;
+
+	/**
+	 * Creates a new MockGraftTransformer
+	 * @param strict true for a strict transformer that fails if no methods are grafted, false otherwise
+	 */
+	public MockGraftTransformer(final boolean strict) {
+		this.strict = strict;
+	}
+
+	/**
+	 * Grafts the bodies of the mock class's declared methods onto the methods of the passed CtClass with the same name and parameter types
+	 * @param ct The CtClass to transform
+	 * @param tc The transform context
+	 * @param mockedClass The source of the mocked methods
+	 * @return the transformed CtClass
+	 */
+	@Override
+	public CtClass transform(final CtClass ct, final TransformContext tc, final Class<?> mockedClass) {
+		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
+		if(mockedClass==null) throw new IllegalArgumentException("The passed mocked class was null");
+		try {
+			final CtClass mockClazz = ClassPoolCache.getInstance().getClassPool(mockedClass).get(mockedClass.getName());
+			final int grafted = MethodGrafter.graft(mockClazz.getClassFile2(), ct.getClassFile(), tc);
+			if(grafted==0 && strict) throw new RuntimeException("<STRICT MODE> Failed to replace any methods in [" + ct.getName() + "] from [" + mockedClass.getName() + "]");
+			if(grafted > 0 && tc!=null) tc.matched(mockedClass.getName());
+			return ct;
+		} catch (RuntimeException rex) {
+			throw rex;
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to graft [" + mockedClass.getName() + "] onto [" + ct.getName() + "]", ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.AbstractTransformer#isStrict()
+	 */
+	@Override
+	public boolean isStrict() {
+		return strict;
+	}
+}
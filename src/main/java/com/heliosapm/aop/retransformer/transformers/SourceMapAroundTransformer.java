@@ -0,0 +1,123 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.transformers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+/**
+ * <p>Title: SourceMapAroundTransformer</p>
+ * <p>Description: A {@link SourceMapTransformer} that wraps transformed methods in the text of the source map, leaving the original body in place.
+ * The source is split at the {@link #PROCEED} marker into the code inserted before the body and the code inserted after it as a finally block.
+ * Local variables shared by the two halves are declared without initializers at the start of the source, and must be assigned before the marker.
+ * For example, to time a method:<pre>
+ * long start; start = System.nanoTime(); ${proceed} System.out.println(System.nanoTime() - start);
+ * </pre></p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.transformers.SourceMapAroundTransformer</code></p>
+ */
+
+public class SourceMapAroundTransformer extends SourceMapTransformer {
+	/** Public shareable strict instance */
+	public static final SourceMapAroundTransformer STRICT_INSTANCE = new SourceMapAroundTransformer(true);
+	/** Public shareable non-strict instance */
+	public static final SourceMapAroundTransformer INSTANCE = new SourceMapAroundTransformer(false);
+	/** The marker separating the code before the original body from the code after it */
+	public static final String PROCEED = "${proceed}";
+
+	/** Matches a leading local variable declaration, capturing the type and the name */
+	private static final Pattern LOCAL_DECL = Pattern.compile("^\\s*([A-Za-z_$][\\w$.]*(?:\\[\\])*)\\s+([A-Za-z_$][\\w$]*)\\s*;");
+	/** Keywords that look like a declaration type in a statement such as <b><code>return x;</code></b> */
+	private static final Set<String> NOT_TYPES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"return", "throw", "break", "continue", "assert"
+	)));
+
+	/**
+	 * Creates a new SourceMapAroundTransformer
+	 * @param strict true for a strict transformer, false otherwise
+	 */
+	public SourceMapAroundTransformer(final boolean strict) {
+		super(strict);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#transform(javassist.CtBehavior, java.lang.String)
+	 */
+	@Override
+	protected void transform(final CtBehavior behavior, final String source) throws CannotCompileException {
+		final int index = source.indexOf(PROCEED);
+		if(index==-1) throw new CannotCompileException("Around source for [" + behavior.getLongName() + "] has no " + PROCEED + " marker");
+		String before = source.substring(0, index);
+		final String after = source.substring(index + PROCEED.length());
+		final ClassPool pool = behavior.getDeclaringClass().getClassPool();
+		Matcher m = LOCAL_DECL.matcher(before);
+		while(m.find() && !NOT_TYPES.contains(m.group(1))) {
+			behavior.addLocalVariable(m.group(2), type(pool, m.group(1)));
+			before = before.substring(m.end());
+			m = LOCAL_DECL.matcher(before);
+		}
+		// the finally goes in first so the before code is inserted ahead of its handler range and the locals are assigned on entry to it
+		if(!after.trim().isEmpty()) behavior.insertAfter("{" + after + "}", true);
+		if(!before.trim().isEmpty()) behavior.insertBefore("{" + before + "}");
+	}
+	
+	/**
+	 * Resolves a declared local variable type, trying <b><code>java.lang</code></b> for unqualified names
+	 * @param pool The class pool to resolve from
+	 * @param typeName The declared type name
+	 * @return the resolved type
+	 * @throws CannotCompileException thrown if the type cannot be resolved
+	 */
+	private static CtClass type(final ClassPool pool, final String typeName) throws CannotCompileException {
+		try {
+			return pool.get(typeName);
+		} catch (NotFoundException nfe) {
+			if(typeName.indexOf('.')==-1) {
+				try {
+					return pool.get("java.lang." + typeName);
+				} catch (NotFoundException nfe2) {
+					/* No Op */
+				}
+			}
+			throw new CannotCompileException(nfe);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#getKind()
+	 */
+	@Override
+	public String getKind() {
+		return "around";
+	}
+
+}
@@ -21,6 +21,8 @@ package com.heliosapm.aop.retransformer.transformers;
 import javassist.CannotCompileException;
 import javassist.CtBehavior;
 
+import com.heliosapm.aop.retransformer.SourceMap;
+
 /**
  * <p>Title: SourceMapBodyReplaceTransformer</p>
  * <p>Description: A {@link SourceMapTransformer} that replaces the body of tranformed methods with the text of the source map</p> 
@@ -51,6 +53,25 @@ public class SourceMapBodyReplaceTransformer extends SourceMapTransformer {
 	protected void transform(final CtBehavior behavior, final String source) throws CannotCompileException {
 		behavior.setBody(source);
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>A replaced body does not depend on the behavior's current code, so it is not part of the digest.</p>
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#sourceDigest(javassist.CtBehavior, com.heliosapm.aop.retransformer.SourceMap.Body)
+	 */
+	@Override
+	protected String sourceDigest(final CtBehavior behavior, final SourceMap.Body body) {
+		return getKind() + ":" + body.getSourceDigest();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#getKind()
+	 */
+	@Override
+	public String getKind() {
+		return "replace";
+	}
 
 	
 
@@ -0,0 +1,82 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.aop.retransformer.transformers;
+
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+
+/**
+ * <p>Title: SourceMapInsertAfterTransformer</p>
+ * <p>Description: A {@link SourceMapTransformer} that inserts the text of the source map at the end of transformed methods,
+ * either on normal return only, where <b><code>$_</code></b> holds the return value, or as a finally block executed on every exit.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.aop.retransformer.transformers.SourceMapInsertAfterTransformer</code></p>
+ */
+
+public class SourceMapInsertAfterTransformer extends SourceMapTransformer {
+	/** Public shareable strict instance inserting on normal return */
+	public static final SourceMapInsertAfterTransformer STRICT_INSTANCE = new SourceMapInsertAfterTransformer(true, false);
+	/** Public shareable non-strict instance inserting on normal return */
+	public static final SourceMapInsertAfterTransformer INSTANCE = new SourceMapInsertAfterTransformer(false, false);
+	/** Public shareable strict instance inserting as a finally block */
+	public static final SourceMapInsertAfterTransformer STRICT_FINALLY_INSTANCE = new SourceMapInsertAfterTransformer(true, true);
+	/** Public shareable non-strict instance inserting as a finally block */
+	public static final SourceMapInsertAfterTransformer FINALLY_INSTANCE = new SourceMapInsertAfterTransformer(false, true);
+
+	/** Indicates if the source is inserted as a finally block */
+	private final boolean asFinally;
+
+	/**
+	 * Creates a new SourceMapInsertAfterTransformer
+	 * @param strict true for a strict transformer, false otherwise
+	 * @param asFinally true to insert the source as a finally block, false to insert it on normal return only
+	 */
+	public SourceMapInsertAfterTransformer(final boolean strict, final boolean asFinally) {
+		super(strict);
+		this.asFinally = asFinally;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#transform(javassist.CtBehavior, java.lang.String)
+	 */
+	@Override
+	protected void transform(final CtBehavior behavior, final String source) throws CannotCompileException {
+		behavior.insertAfter(source, asFinally);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.aop.retransformer.transformers.SourceMapTransformer#getKind()
+	 */
+	@Override
+	public String getKind() {
+		return asFinally ? "finally" : "after";
+	}
+
+	/**
+	 * Indicates if the source is inserted as a finally block
+	 * @return true if the source is inserted as a finally block, false if it is inserted on normal return only
+	 */
+	public boolean isFinally() {
+		return asFinally;
+	}
+
+}
@@ -24,9 +24,13 @@ import javassist.CtClass;
 import javassist.CtConstructor;
 import javassist.CtMethod;
 
+import com.heliosapm.aop.retransformer.MethodBodyCache;
+import com.heliosapm.aop.retransformer.SourceMap;
+
 /**
  * <p>Title: SourceMapTransformer</p>
- * <p>Description: </p> 
+ * <p>Description: Base class for transformers applying the source code in a source map to the behaviors identified by its keys,
+ * either replacing their bodies or weaving advice into them. Compiled results are reused through the {@link MethodBodyCache}.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.aop.retransformer.transformers.SourceMapTransformer</code></p>
@@ -53,6 +57,7 @@ public abstract class SourceMapTransformer extends AbstractTransformer<Map<Strin
 	 * 	<li>Methods:<b><code>&lt;Method Name&gt;[:&lt;Method Descriptor&gt;]</code></b>. If the descriptor is absent, we will match the parameterless method of the given name.</li>
 	 *  <li>Constructors:<b><code>[:&lt;Method Descriptor&gt;]</code></b>. If the descriptor is absent, we will match the parameterless constructor of the given class.</li>
 	 * </ul>
+	 * Behaviors inherited from a superclass are not transformed in the passed CtClass. A non-strict transformer ignores keys it cannot resolve.
 	 * @param ct The CtClass to transform
 	 * @param sourceMap The source map
 	 * @return the [possibly] transformed CtClass
@@ -61,10 +66,23 @@ public abstract class SourceMapTransformer extends AbstractTransformer<Map<Strin
 	public CtClass transform(final CtClass ct, final TransformContext tc, final Map<String, String> sourceMap) {
 		if(ct==null) throw new IllegalArgumentException("The passed CtClass was null");
 		if(sourceMap!=null && !sourceMap.isEmpty()) {
-			final Map<CtBehavior, String> indexed = indexSourceMap(ct, sourceMap);
+			final SourceMap parsed = SourceMap.of(sourceMap);
+			final Map<CtBehavior, String> indexed = indexSourceMap(!strict, ct, parsed);
 			for(Map.Entry<CtBehavior, String> entry: indexed.entrySet()) {
+				final CtBehavior behavior = entry.getKey();
+				// inherited behaviors belong to their declaring class's CtClass and are transformed there
+				if(behavior.getDeclaringClass()!=ct) continue;
 				try {
-					transform(entry.getKey(), entry.getValue());
+					final SourceMap.Body body = parsed.lookup(behavior.getName(), behavior.getSignature());
+					if(body==null) {
+						transform(behavior, entry.getValue());
+					} else {
+						compile(behavior, body, tc);
+					}
+					if(tc!=null) {
+						if(body!=null) tc.matched(body.getKey());
+						tc.changed(behavior.getName(), behavior.getSignature());
+					}
 				} catch (CannotCompileException ex) {
 					if(strict) throw new RuntimeException("<STRICT MODE> Failed to transform [" + entry.getKey().getGenericSignature() + "] with source [" + entry.getValue() + "]", ex);
 					if(log.isLoggable(Level.FINER)) {
@@ -80,6 +98,54 @@ public abstract class SourceMapTransformer extends AbstractTransformer<Map<Strin
 	
 	
 	
+	/**
+	 * Applies the passed source to the passed behavior, splicing the compiled result from the {@link MethodBodyCache}
+	 * when the same source was already applied to the same code of a behavior with the same name and descriptor in a class of the same shape.
+	 * @param behavior The behavior to transform
+	 * @param body The source map entry to apply
+	 * @param tc The optional transform context
+	 * @throws CannotCompileException thrown if the source can't be compiled
+	 */
+	protected void compile(final CtBehavior behavior, final SourceMap.Body body, final TransformContext tc) throws CannotCompileException {
+		final MethodBodyCache bodyCache = MethodBodyCache.getInstance();
+		final MethodBodyCache.Key key = bodyCache.key(classDigest(behavior.getDeclaringClass(), body), behavior, sourceDigest(behavior, body));
+		if(!bodyCache.apply(key, behavior)) {
+			transform(behavior, body.getSource());
+			bodyCache.store(key, behavior);
+		}
+	}
+	
+	/**
+	 * Returns the shape digest of the passed class for the body cache key. Source that names the class itself compiles
+	 * to references that cannot be told apart from implicit ones, so it is only shared between classes of the same name.
+	 * @param ct The declaring class of the behavior to transform
+	 * @param body The source map entry to apply
+	 * @return the class digest for the body cache key
+	 */
+	protected String classDigest(final CtClass ct, final SourceMap.Body body) {
+		final String name = ct.getName();
+		final String simpleName = name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('$')) + 1);
+		return MethodBodyCache.shapeDigest(ct, body.getSource().contains(simpleName));
+	}
+	
+	/**
+	 * Returns the digest identifying the compiled result of applying the passed source to the passed behavior.
+	 * Advice is woven into the behavior's current body, which an earlier stage may have changed, so the digest
+	 * covers the kind of transform, the source and the behavior's current code with its constants resolved.
+	 * @param behavior The behavior to transform
+	 * @param body The source map entry to apply
+	 * @return the source digest for the body cache key
+	 */
+	protected String sourceDigest(final CtBehavior behavior, final SourceMap.Body body) {
+		return getKind() + ":" + body.getSourceDigest() + ":" + MethodBodyCache.codeDigest(behavior);
+	}
+	
+	/**
+	 * Returns the kind of transform this transformer applies, such as <b><code>replace</code></b> or <b><code>before</code></b>
+	 * @return the transform kind
+	 */
+	public abstract String getKind();
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.aop.retransformer.transformers.AbstractTransformer#isStrict()
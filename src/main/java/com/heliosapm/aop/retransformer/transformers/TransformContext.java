@@ -18,21 +18,299 @@ under the License.
  */
 package com.heliosapm.aop.retransformer.transformers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.heliosapm.aop.retransformer.MethodBodyCache;
+
 /**
  * <p>Title: TransformContext</p>
- * <p>Description: Simple state context passed down the retransform chain so each transformer can record their actions.</p> 
+ * <p>Description: Per-transform state passed down the retransform chain so each transformer can record their actions.
+ * Records the matched directives, the changed behaviors, the class size delta and the elapsed time of each transformer stage.
+ * Instances are pooled per thread through {@link #acquire(String, byte[])} and {@link #release()}, and keep their
+ * backing arrays across resets, so a transform allocates no context state once the pooled instance has grown to size.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.aop.retransformer.transformers.TransformContext</code></p>
  */
 
 public class TransformContext {
+	/** The pooled context for each thread */
+	private static final ThreadLocal<TransformContext> pooled = new ThreadLocal<TransformContext>() {
+		@Override
+		protected TransformContext initialValue() {
+			return new TransformContext();
+		}
+	};
+
+	/** The binary name of the transformed class */
+	private String className = null;
+	/** The original class bytes, held until the digest is computed or the context is reset */
+	private byte[] originalBytes = null;
+	/** The digest of the original class bytes, computed on first request */
+	private String originalDigest = null;
+	/** The size of the original class bytes */
+	private int originalSize = -1;
+	/** The size of the transformed class bytes */
+	private int transformedSize = -1;
+	/** The matched directives */
+	private final ArrayList<String> matched = new ArrayList<String>();
+	/** The names of the changed behaviors */
+	private final ArrayList<String> changedNames = new ArrayList<String>();
+	/** The descriptors of the changed behaviors */
+	private final ArrayList<String> changedDescriptors = new ArrayList<String>();
+	/** The stage names */
+	private String[] stageNames = new String[4];
+	/** The elapsed stage times in ns. */
+	private long[] stageNanos = new long[4];
+	/** The number of recorded stages */
+	private int stageCount = 0;
+	/** The start time of the current stage in ns., or -1 if no stage is running */
+	private long stageStart = -1L;
+	/** Indicates if this context is acquired from the pool */
+	private boolean inUse = false;
+
+	/**
+	 * Acquires the calling thread's pooled context, reset for the passed class.
+	 * A new context is returned if the pooled one is already in use, such as for a transform triggered within a transform.
+	 * @param className The binary name of the class being transformed
+	 * @param classfileBuffer The original class bytes. Not copied and must not be modified while the context is in use.
+	 * @return the transform context, which should be {@link #release() released} in a finally block
+	 */
+	public static TransformContext acquire(final String className, final byte[] classfileBuffer) {
+		TransformContext tc = pooled.get();
+		if(tc.inUse) tc = new TransformContext();
+		tc.reset();
+		tc.inUse = true;
+		tc.className = className;
+		tc.originalBytes = classfileBuffer;
+		tc.originalSize = classfileBuffer==null ? -1 : classfileBuffer.length;
+		return tc;
+	}
 
 	/**
-	 * Creates a new TransformContext
+	 * Creates a new unpooled TransformContext
 	 */
 	public TransformContext() {
-		// TODO Auto-generated constructor stub
+	}
+
+	/**
+	 * Returns this context to the pool, dropping its reference to the original class bytes. Recorded state remains readable until the next acquire.
+	 */
+	public void release() {
+		originalBytes = null;
+		inUse = false;
+	}
+
+	/**
+	 * Clears all the recorded state, keeping the backing arrays for reuse
+	 */
+	public void reset() {
+		className = null;
+		originalBytes = null;
+		originalDigest = null;
+		originalSize = -1;
+		transformedSize = -1;
+		matched.clear();
+		changedNames.clear();
+		changedDescriptors.clear();
+		Arrays.fill(stageNames, 0, stageCount, null);
+		stageCount = 0;
+		stageStart = -1L;
+	}
+
+	/**
+	 * Records a matched directive
+	 * @param directive The directive key, such as a source map key, mock class name or annotation name
+	 */
+	public void matched(final String directive) {
+		matched.add(directive);
+	}
+
+	/**
+	 * Records a changed behavior
+	 * @param name The behavior name
+	 * @param descriptor The behavior descriptor
+	 */
+	public void changed(final String name, final String descriptor) {
+		changedNames.add(name);
+		changedDescriptors.add(descriptor);
+	}
+
+	/**
+	 * Records the size of the transformed class bytes
+	 * @param size The size of the transformed class bytes
+	 */
+	public void transformed(final int size) {
+		transformedSize = size;
+	}
+
+	/**
+	 * Starts timing a transformer stage
+	 * @param name The stage name
+	 */
+	public void startStage(final String name) {
+		if(stageStart!=-1L) throw new IllegalStateException("Stage [" + stageNames[stageCount] + "] is already running");
+		if(stageCount==stageNames.length) {
+			stageNames = Arrays.copyOf(stageNames, stageCount * 2);
+			stageNanos = Arrays.copyOf(stageNanos, stageCount * 2);
+		}
+		stageNames[stageCount] = name;
+		stageStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends timing the running transformer stage
+	 * @return the elapsed time of the stage in ns.
+	 */
+	public long endStage() {
+		if(stageStart==-1L) throw new IllegalStateException("No stage is running");
+		final long elapsed = System.nanoTime() - stageStart;
+		stageNanos[stageCount++] = elapsed;
+		stageStart = -1L;
+		return elapsed;
+	}
+
+	/**
+	 * Returns the binary name of the transformed class
+	 * @return the class name
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Returns the digest of the original class bytes
+	 * @return the original class digest, or null if the original bytes were not supplied or have been released
+	 */
+	public String getOriginalDigest() {
+		if(originalDigest==null && originalBytes!=null) {
+			originalDigest = MethodBodyCache.digest(originalBytes);
+		}
+		return originalDigest;
+	}
+
+	/**
+	 * Returns the size of the original class bytes
+	 * @return the original size, or -1 if unknown
+	 */
+	public int getOriginalSize() {
+		return originalSize;
+	}
+
+	/**
+	 * Returns the size of the transformed class bytes
+	 * @return the transformed size, or -1 if the transform has not completed
+	 */
+	public int getTransformedSize() {
+		return transformedSize;
+	}
+
+	/**
+	 * Returns the difference between the transformed and original class sizes
+	 * @return the size delta in bytes, or 0 if either size is unknown
+	 */
+	public int getSizeDelta() {
+		return (originalSize==-1 || transformedSize==-1) ? 0 : transformedSize - originalSize;
+	}
+
+	/**
+	 * Returns the number of matched directives
+	 * @return the matched directive count
+	 */
+	public int getMatchedCount() {
+		return matched.size();
+	}
+
+	/**
+	 * Returns the matched directive at the passed index
+	 * @param index The index
+	 * @return the matched directive
+	 */
+	public String getMatched(final int index) {
+		return matched.get(index);
+	}
+
+	/**
+	 * Returns the number of changed behaviors
+	 * @return the changed behavior count
+	 */
+	public int getChangedCount() {
+		return changedNames.size();
+	}
+
+	/**
+	 * Returns the name of the changed behavior at the passed index
+	 * @param index The index
+	 * @return the behavior name
+	 */
+	public String getChangedName(final int index) {
+		return changedNames.get(index);
+	}
+
+	/**
+	 * Returns the descriptor of the changed behavior at the passed index
+	 * @param index The index
+	 * @return the behavior descriptor
+	 */
+	public String getChangedDescriptor(final int index) {
+		return changedDescriptors.get(index);
+	}
+
+	/**
+	 * Returns the number of completed stages
+	 * @return the stage count
+	 */
+	public int getStageCount() {
+		return stageCount;
+	}
+
+	/**
+	 * Returns the name of the stage at the passed index
+	 * @param index The index
+	 * @return the stage name
+	 */
+	public String getStageName(final int index) {
+		if(index < 0 || index >= stageCount) throw new IndexOutOfBoundsException("Invalid stage index [" + index + "]");
+		return stageNames[index];
+	}
+
+	/**
+	 * Returns the elapsed time of the stage at the passed index in ns.
+	 * @param index The index
+	 * @return the elapsed stage time
+	 */
+	public long getStageNanos(final int index) {
+		if(index < 0 || index >= stageCount) throw new IndexOutOfBoundsException("Invalid stage index [" + index + "]");
+		return stageNanos[index];
+	}
+
+	/**
+	 * Returns the total elapsed time of the completed stages in ns.
+	 * @return the total stage time
+	 */
+	public long getTotalStageNanos() {
+		long total = 0L;
+		for(int i = 0; i < stageCount; i++) total += stageNanos[i];
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder("TransformContext [class:").append(className)
+			.append(", matched:").append(matched)
+			.append(", changed:").append(changedNames.size())
+			.append(", sizeDelta:").append(getSizeDelta())
+			.append(", stages:{");
+		for(int i = 0; i < stageCount; i++) {
+			if(i > 0) b.append(", ");
+			b.append(stageNames[i]).append(":").append(stageNanos[i]);
+		}
+		return b.append("}]").toString();
 	}
 
 }
@@ -8,8 +8,10 @@ import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
 
+import com.heliosapm.aop.retransformer.Descriptors;
+import com.heliosapm.aop.retransformer.InstrumentedRegistry;
+import com.heliosapm.aop.retransformer.SourceMap;
 import com.heliosapm.shorthand.attach.vm.agent.LocalAgentInstaller;
 
 import javassist.ClassClassPath;
@@ -110,7 +112,6 @@ public class OracleXADebugTransformer {
 	protected final Instrumentation instr;
 	protected final Set<ClassPath> addedClassPaths = new HashSet<ClassPath>();
 	
-	private static final AtomicLong tempClassSerial = new AtomicLong(0L);
 
 	/**
 	 * Acquires and returns the OracleXADebugTransformer singleton instance
@@ -163,18 +164,14 @@ public class OracleXADebugTransformer {
 	}
 	
 	/**
-	 * Indicates if the class with the passed class name is instrumented
+	 * Indicates if the class with the passed class name is instrumented, in any class loader.
+	 * Answered from the {@link InstrumentedRegistry} without loading the class.
 	 * @param className The name of the class to test
 	 * @return true if instrumented, false otherwise
 	 */
 	public boolean isInstrumented(final String className) {
 		if(className==null || className.trim().isEmpty()) throw new IllegalArgumentException("The passed class name was null or empty");
-		try {
-			final Class<?> clazz = Class.forName(className);
-			return clazz.getAnnotation(Instrumented.class)!=null;
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to load class [" + className + "]", ex);
-		}
+		return InstrumentedRegistry.getInstance().isInstrumented(className.trim());
 	}
 	
 	
@@ -213,15 +210,7 @@ public class OracleXADebugTransformer {
 	public static String getBehaviorDescriptor(final String name, final Class<?> returnType, final Class<?>...typeArgs) {
 		if(name==null) throw new IllegalArgumentException("Passed method name was null");
 		try {
-			final ClassPool cp = new ClassPool();
-			cp.appendSystemPath();
-			final CtClass tmpClazz = cp.makeInterface("TempX" + tempClassSerial.incrementAndGet());
-			final CtClass[] params = new CtClass[typeArgs.length];
-			for(int i = 0; i < typeArgs.length; i++) {
-				params[i] = lookup(typeArgs[i], cp);
-			}
-			final CtMethod ctm = new CtMethod(returnType==null ? CtClass.voidType : lookup(returnType, cp), name, params, tmpClazz);
-			return ctm.getSignature();
+			return Descriptors.getMethodDescriptor(returnType, typeArgs);
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to get descriptor for method [" + name + Arrays.deepToString(typeArgs) + "]", ex);
 		}		
@@ -337,25 +326,15 @@ public class OracleXADebugTransformer {
 			classPool.appendSystemPath();
 			classPool.appendClassPath(new ClassClassPath(targetClass));
 			final CtClass targetCtClass = classPool.get(targetClass.getName());
-			for(Map.Entry<String, String> entry: sourceMap.entrySet()) {
-				String key = entry.getKey();								
-				String bname = null;
-				String descriptor = null;
-				int index = key.indexOf(':');
-				if(index==-1) {
-					bname = key.trim();
-					descriptor = null;
-				} else {
-					bname = key.substring(0, index).trim();
-					descriptor = key.substring(index+1).trim();									
-				}								
-				final boolean ctor = targetClass.getSimpleName().equals(bname); 
+			final String simpleName = targetClass.getSimpleName();
+			for(SourceMap.Body body: SourceMap.of(sourceMap).bodies()) {
+				final boolean ctor = simpleName.equals(body.getName()); 
 				CtBehavior matched = null;
 				try {
 					if(ctor) {
-						matched = matchCtor(descriptor, targetCtClass);
+						matched = matchCtor(body.getDescriptor(), targetCtClass);
 					} else {
-						matched = matchMethod(bname, descriptor, targetCtClass);
+						matched = matchMethod(body.getName(), body.getDescriptor(), targetCtClass);
 					}
 				} catch (Exception ex) {
 					if(failOnNotFound) throw ex;
@@ -24,18 +24,72 @@
  */
 package test.com.heliosapm.aop.retransformer;
 
+import java.io.ByteArrayInputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.ClassFile;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.reflections.Reflections;
+
+import com.google.common.io.ByteStreams;
 
 import test.com.heliosapm.aop.retransformer.testclasses.Child;
 import test.com.heliosapm.aop.retransformer.testclasses.English;
+import test.com.heliosapm.aop.retransformer.testclasses.Parent;
 import test.com.heliosapm.aop.retransformer.testclasses.Spanish;
+import test.com.heliosapm.aop.retransformer.testclasses.TestAnnotation;
 
+import com.heliosapm.aop.retransformer.AnnotationBuilder;
+import com.heliosapm.aop.retransformer.BehaviorIndex;
+import com.heliosapm.aop.retransformer.ClassPoolCache;
+import com.heliosapm.aop.retransformer.ClassSnapshotStore;
+import com.heliosapm.aop.retransformer.Descriptors;
+import com.heliosapm.aop.retransformer.Instrumented;
+import com.heliosapm.aop.retransformer.InstrumentedRegistry;
+import com.heliosapm.aop.retransformer.MethodBodyCache;
+import com.heliosapm.aop.retransformer.MethodGrafter;
+import com.heliosapm.aop.retransformer.MethodIgnore;
+import com.heliosapm.aop.retransformer.ReflectionCommand;
+import com.heliosapm.aop.retransformer.ReflectionCommands;
+import com.heliosapm.aop.retransformer.RetransformChain;
 import com.heliosapm.aop.retransformer.Retransformer;
+import com.heliosapm.aop.retransformer.RetransformerAgent;
+import com.heliosapm.aop.retransformer.RetransformerMXBean;
+import com.heliosapm.aop.retransformer.SourceMap;
+import com.heliosapm.aop.retransformer.TransformExecutor;
+import com.heliosapm.aop.retransformer.TransformMetrics;
+import com.heliosapm.aop.retransformer.probes.CountingTransformer;
+import com.heliosapm.aop.retransformer.probes.InvocationProbes;
+import com.heliosapm.aop.retransformer.probes.OffHeapCounters;
+import com.heliosapm.aop.retransformer.probes.ProbeCounters;
+import com.heliosapm.aop.retransformer.probes.ProbeSnapshot;
+import com.heliosapm.aop.retransformer.probes.ProbeSwitches;
+import com.heliosapm.aop.retransformer.probes.TimingProbeTransformer;
+import com.heliosapm.aop.retransformer.probes.TimingProbes;
+import com.heliosapm.aop.retransformer.transformers.MockGraftTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapAroundTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapBodyReplaceTransformer;
+import com.heliosapm.aop.retransformer.transformers.SourceMapInsertAfterTransformer;
+import com.heliosapm.aop.retransformer.transformers.TransformContext;
 
 /**
  * <p>Title: RetransformerTestCase</p>
@@ -295,8 +349,1117 @@ public class RetransformerTestCase extends BaseTest {
 		retran.transform(Child.class, "op", "{long t = 1; for(int i = 0; i < $1.length; i++) { t *= $1[i]; } return t;}");
 		Assert.assertEquals(8589934592L, child.doOp(1024, 2048, 4096));
 	}
-	
-	
+
+	/**
+	 * Tests a batched mock class method replacement across multiple target classes
+	 */
+	@Test
+	public void testBatchMockedTransform() {
+		class EnglishInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		final English english = new English();
+		final EnglishInner englishInner = new EnglishInner();
+		final Map<Class<?>, Class<?>> mocks = new HashMap<Class<?>, Class<?>>();
+		mocks.put(English.class, Spanish.class);
+		mocks.put(EnglishInner.class, Spanish.class);
+		retran.transformAll(mocks);
+		Assert.assertEquals("Hola", english.getHello());
+		Assert.assertEquals("Hola", englishInner.getHello());
+		retran.restore(EnglishInner.class);
+		Assert.assertEquals("Hello", englishInner.getHello());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests a batched source method replacement across multiple target classes
+	 */
+	@Test
+	public void testBatchSourceTransform() {
+		class EnglishInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		final English english = new English();
+		final EnglishInner englishInner = new EnglishInner();
+		final Map<Class<?>, Map<String, String>> sourceMaps = new HashMap<Class<?>, Map<String, String>>();
+		sourceMaps.put(English.class, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }"));
+		sourceMaps.put(EnglishInner.class, Collections.singletonMap("getHello", "{ return \"Hallo\"; }"));
+		retran.transformAll(sourceMaps, true);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hallo", englishInner.getHello());
+		retran.restore(EnglishInner.class);
+		resetAndValidate();
+		Assert.assertEquals("Hello", englishInner.getHello());
+		// both classes now have a snapshot from the first retransform, so both are compiled ahead of the second
+		final long compiled = retran.getCompileExecutor().getCompleted();
+		retran.transformAll(sourceMaps, true);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hallo", englishInner.getHello());
+		Assert.assertEquals(compiled + 2, retran.getCompileExecutor().getCompleted());
+		retran.restore(EnglishInner.class);
+		Assert.assertEquals("Hello", englishInner.getHello());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that a source compile error reaches the caller of a strict batch, both when the class is compiled ahead of the retransform
+	 * and when it is compiled in the transform callback, and that a non-strict batch skips only the failing class
+	 */
+	@Test
+	public void testBatchCompileFailure() {
+		class FrenchInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		class GermanInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		final English english = new English();
+		final FrenchInner frenchInner = new FrenchInner();
+		final GermanInner germanInner = new GermanInner();
+		// give the French class a snapshot so it is compiled ahead of the retransform
+		retran.transformAll(Collections.<Class<?>, Map<String, String>>singletonMap(FrenchInner.class, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }")), true);
+		retran.restore(FrenchInner.class);
+		Assert.assertEquals("Hello", frenchInner.getHello());
+		final Map<Class<?>, Map<String, String>> sourceMaps = new HashMap<Class<?>, Map<String, String>>();
+		sourceMaps.put(English.class, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }"));
+		sourceMaps.put(FrenchInner.class, Collections.singletonMap("getHello", "{ return no_such_var; }"));
+		final long compiled = retran.getCompileExecutor().getCompleted();
+		try {
+			retran.transformAll(sourceMaps, true);
+			Assert.fail("Expected the precompile failure to be thrown");
+		} catch (RuntimeException rex) {
+			/* expected */
+		}
+		Assert.assertTrue("Expected the failing class to be compiled ahead of the retransform", retran.getCompileExecutor().getCompleted() > compiled);
+		Assert.assertEquals("Hello", english.getHello());
+		Assert.assertEquals("Hello", frenchInner.getHello());
+		retran.transformAll(sourceMaps, false);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hello", frenchInner.getHello());
+		resetAndValidate();
+		// the German class was never retransformed, so it can only be compiled in the callback
+		sourceMaps.remove(FrenchInner.class);
+		sourceMaps.put(GermanInner.class, Collections.singletonMap("getHello", "{ return no_such_var; }"));
+		try {
+			retran.transformAll(sourceMaps, true);
+			Assert.fail("Expected the callback failure to be thrown");
+		} catch (RuntimeException rex) {
+			/* expected */
+		}
+		Assert.assertEquals("Hello", english.getHello());
+		Assert.assertEquals("Hello", germanInner.getHello());
+		Assert.assertFalse(retran.isClassInstrumented(English.class));
+		retran.transformAll(sourceMaps, false);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hello", germanInner.getHello());
+		Assert.assertFalse(retran.isClassInstrumented(GermanInner.class));
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that class pools are shared per class loader, that repeated transforms are served from the cache,
+	 * and that only lookups missing the cache are counted as misses
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSharedClassPool() throws Exception {
+		final ClassPoolCache poolCache = ClassPoolCache.getInstance();
+		Assert.assertSame(poolCache.getClassPool(English.class), poolCache.getClassPool(English.class.getClassLoader()));
+		final English english = new English();
+		retran.transform(English.class, Spanish.class);
+		Assert.assertEquals("Hola", english.getHello());
+		resetAndValidate();
+		final long hits = poolCache.getHits();
+		retran.transform(English.class, Spanish.class);
+		Assert.assertEquals("Hola", english.getHello());
+		Assert.assertTrue("Expected cache hits on second transform", poolCache.getHits() > hits);
+		resetAndValidate();
+		class NeverPooled {
+		}
+		final ClassPool pool = poolCache.getClassPool(English.class);
+		final long misses = poolCache.getMisses();
+		pool.makeClass(new ByteArrayInputStream(ByteStreams.toByteArray(English.class.getResourceAsStream(English.class.getSimpleName() + ".class"))), false);
+		Assert.assertEquals("Making a class from bytes is not a miss", misses, poolCache.getMisses());
+		pool.get(NeverPooled.class.getName());
+		Assert.assertEquals(misses + 1, poolCache.getMisses());
+		pool.get(NeverPooled.class.getName());
+		Assert.assertEquals(misses + 1, poolCache.getMisses());
+		poolCache.detach(NeverPooled.class.getClassLoader(), NeverPooled.class.getName());
+	}
+
+	/**
+	 * Tests that a transformed class is restored from its captured snapshot
+	 */
+	@Test
+	public void testSnapshotRestore() {
+		final ClassSnapshotStore store = retran.getSnapshotStore();
+		final English english = new English();
+		retran.transform(English.class, Spanish.class);
+		Assert.assertEquals("Hola", english.getHello());
+		Assert.assertTrue(store.contains(English.class));
+		final long restores = store.getRestoreCount();
+		resetAndValidate();
+		Assert.assertEquals(restores + 1, store.getRestoreCount());
+		Assert.assertTrue(store.getLastRestoreTime() >= 0L);
+	}
+
+	/**
+	 * Tests that re-applying the same source to the same class splices the cached compiled body
+	 */
+	@Test
+	public void testMethodBodyCache() {
+		final MethodBodyCache bodyCache = MethodBodyCache.getInstance();
+		final English english = new English();
+		retran.transform(English.class, "getHello", "{ return \"Ciao\"; }");
+		Assert.assertEquals("Ciao", english.getHello());
+		resetAndValidate();
+		final long hits = bodyCache.getHits();
+		retran.transform(English.class, "getHello", "{ return \"Ciao\"; }");
+		Assert.assertEquals("Ciao", english.getHello());
+		Assert.assertEquals(hits + 1, bodyCache.getHits());
+		Assert.assertTrue(bodyCache.getBytesHeld() > 0L);
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests descriptor computation from classes and methods
+	 * @throws Exception Thrown on reflection failure
+	 */
+	@Test
+	public void testDescriptors() throws Exception {
+		Assert.assertEquals("(II)Ljava/lang/String;", Retransformer.getMethodDescriptor(String.class.getMethod("substring", int.class, int.class)));
+		Assert.assertEquals("(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/String;", Descriptors.getMethodDescriptor(String.class.getMethod("format", String.class, Object[].class)));
+		Assert.assertEquals("([[JZ)V", Retransformer.getMethodDescriptor("foo", null, long[][].class, boolean.class));
+		Assert.assertEquals("()Ljava/lang/String;", Retransformer.getMethodDescriptorFromValues("foo", String.class));
+		Assert.assertEquals("(Ljava/lang/String;)V", Descriptors.getConstructorDescriptor(StringBuilder.class.getConstructor(String.class)));
+		Assert.assertEquals("[Ljava/lang/String;", Descriptors.getTypeDescriptor(String[].class));
+	}
+
+	/**
+	 * Tests that each snapshot backing returns the captured bytes intact
+	 */
+	@Test
+	public void testSnapshotBackings() {
+		final byte[] bytes = new byte[8192];
+		new Random(7).nextBytes(bytes);
+		for(int i = 0; i < bytes.length; i += 4) bytes[i] = 0x0F;
+		for(ClassSnapshotStore.Backing backing: ClassSnapshotStore.Backing.values()) {
+			final ClassSnapshotStore store = new ClassSnapshotStore(backing);
+			Assert.assertTrue(store.capture(English.class, bytes));
+			Assert.assertFalse(store.capture(English.class, new byte[0]));
+			Assert.assertArrayEquals("Backing: " + backing, bytes, store.get(English.class));
+			Assert.assertEquals(bytes.length, store.getOriginalBytes());
+			Assert.assertTrue(store.remove(English.class));
+			Assert.assertNull(store.get(English.class));
+		}
+	}
+
+
+	/**
+	 * Tests concurrent transforms of unrelated classes under the per-class lock stripes
+	 * @throws Exception Thrown on thread join failure
+	 */
+	@Test
+	public void testConcurrentTransforms() throws Exception {
+		class EnglishInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		final English english = new English();
+		final EnglishInner englishInner = new EnglishInner();
+		final long acquisitions = retran.getClassLocks().getAcquisitions();
+		final Throwable[] errors = new Throwable[2];
+		final Thread t1 = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < 10; i++) retran.transform(English.class, "getHello", "{ return \"Bonjour\"; }");
+				} catch (Throwable t) {
+					errors[0] = t;
+				}
+			}
+		};
+		final Thread t2 = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < 10; i++) retran.transform(EnglishInner.class, Spanish.class);
+				} catch (Throwable t) {
+					errors[1] = t;
+				}
+			}
+		};
+		t1.start(); t2.start();
+		t1.join(); t2.join();
+		Assert.assertNull(errors[0]);
+		Assert.assertNull(errors[1]);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hola", englishInner.getHello());
+		Assert.assertTrue(retran.getClassLocks().getAcquisitions() >= acquisitions + 20);
+		retran.restore(EnglishInner.class);
+		Assert.assertEquals("Hello", englishInner.getHello());
+		resetAndValidate();
+	}
+
+
+	/**
+	 * Tests asynchronous transforms and restores on the transform executor
+	 * @throws Exception Thrown on future failure
+	 */
+	@Test
+	public void testAsyncTransform() throws Exception {
+		final TransformExecutor executor = retran.getTransformExecutor();
+		final long completed = executor.getCompleted();
+		final English english = new English();
+		retran.transformAsync(English.class, Spanish.class).get(30, TimeUnit.SECONDS);
+		Assert.assertEquals("Hola", english.getHello());
+		retran.restoreAsync(English.class).get(30, TimeUnit.SECONDS);
+		Assert.assertEquals("Hello", english.getHello());
+		retran.transformAsync(English.class, true, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }")).get(30, TimeUnit.SECONDS);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals(completed + 3, executor.getCompleted());
+		Assert.assertTrue(executor.getMaxLatency() > 0L);
+		try {
+			retran.transformAsync(English.class, true, Collections.singletonMap("noSuchMethod", "{ return null; }")).get(30, TimeUnit.SECONDS);
+			Assert.fail("Expected ExecutionException");
+		} catch (ExecutionException eex) {
+			Assert.assertTrue(executor.getFailed() > 0L);
+		}
+		resetAndValidate();
+	}
+
+
+	/**
+	 * Tests that transform phases are timed and exposed through the Retransformer MXBean
+	 * @throws Exception Thrown on JMX failure
+	 */
+	@Test
+	public void testTransformMetrics() throws Exception {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName on = new ObjectName(RetransformerMXBean.OBJECT_NAME);
+		Assert.assertTrue(server.isRegistered(on));
+		final long transforms = retran.getTransformCount();
+		final long bytes = retran.getBytesProduced();
+		final English english = new English();
+		retran.transform(English.class, "getHello", "{ return \"Bonjour\"; }");
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals(transforms + 1, ((Long)server.getAttribute(on, "TransformCount")).longValue());
+		Assert.assertTrue(retran.getBytesProduced() > bytes);
+		Assert.assertTrue(retran.getRetransformMax() > 0L);
+		Assert.assertTrue(retran.getCompileP99() <= retran.getCompileMax());
+		final Map<String, Long> classTimes = retran.getClassPhaseTimes(English.class.getName());
+		for(String phase: new String[]{"match", "compile", "bytecode", "retransform"}) {
+			Assert.assertTrue("No " + phase + " times", classTimes.get(phase + ".count") > 0L);
+		}
+		resetAndValidate();
+		// a batch retransform is one pause overall, and one pause for each class in it
+		class EnglishInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		final TransformMetrics metrics = retran.getMetrics();
+		final long batches = metrics.get(TransformMetrics.Phase.RETRANSFORM).getCount();
+		final long englishPauses = metrics.get(TransformMetrics.Phase.RETRANSFORM, English.class.getName()).getCount();
+		final Map<Class<?>, Map<String, String>> sourceMaps = new HashMap<Class<?>, Map<String, String>>();
+		sourceMaps.put(English.class, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }"));
+		sourceMaps.put(EnglishInner.class, Collections.singletonMap("getHello", "{ return \"Hallo\"; }"));
+		retran.transformAll(sourceMaps, true);
+		Assert.assertEquals(batches + 1, metrics.get(TransformMetrics.Phase.RETRANSFORM).getCount());
+		Assert.assertEquals(englishPauses + 1, metrics.get(TransformMetrics.Phase.RETRANSFORM, English.class.getName()).getCount());
+		Assert.assertEquals(1L, metrics.get(TransformMetrics.Phase.RETRANSFORM, EnglishInner.class.getName()).getCount());
+		retran.restore(EnglishInner.class);
+		resetAndValidate();
+	}
+
+
+	/**
+	 * Tests bulk transforms of the classes resolved from a Reflections query
+	 * @throws Exception Thrown on reflection failure
+	 */
+	@Test
+	public void testReflectionsBulkTransform() throws Exception {
+		final Reflections reflections = new Reflections(Parent.class.getPackage().getName());
+		retran.restore(Parent.class);
+		final Child child = new Child();
+		Assert.assertEquals(7168, child.doOp(1024, 2048, 4096));
+		// op is declared in Parent, so the query for Child resolves to a transform of Parent
+		final Set<Class<?>> transformed = retran.transformAll(reflections, ReflectionCommands.subTypes(Parent.class), false, 
+				Collections.singletonMap("op", "{long t = 1; for(int i = 0; i < $1.length; i++) { t *= $1[i]; } return t;}"));
+		Assert.assertTrue(transformed.contains(Parent.class));
+		Assert.assertEquals(8589934592L, child.doOp(1024, 2048, 4096));
+		retran.restore(Parent.class);
+		Assert.assertEquals(7168, child.doOp(1024, 2048, 4096));
+		// members resolve to their declaring class
+		final English english = new English();
+		final Method getHello = English.class.getDeclaredMethod("getHello");
+		final Set<Class<?>> chained = RetransformChain.chain().transform(Spanish.class).retransform(reflections, new ReflectionCommand<Method>() {
+			@Override
+			public Set<Method> invoke(final Reflections r) {
+				return Collections.singleton(getHello);
+			}
+		});
+		Assert.assertEquals(Collections.singleton(English.class), chained);
+		Assert.assertEquals("Hola", english.getHello());
+		resetAndValidate();
+	}
+
+
+	/**
+	 * Tests that the instrumentation source and acquisition time are exposed, and that a loaded agent is used in preference to self-attaching
+	 */
+	@Test
+	public void testInstrumentationAcquisition() {
+		Assert.assertNotNull(retran.getInstrumentationSource());
+		Assert.assertTrue(retran.getInstrumentationAcquisitionTime() >= 0L);
+		if(RetransformerAgent.isInstalled()) {
+			Assert.assertSame(RetransformerAgent.getInstrumentation(), retran.getInstrumentation());
+			Assert.assertTrue(retran.getInstrumentationSource().startsWith("RetransformerAgent"));
+		}
+	}
+
+
+	/**
+	 * Tests that the instrumented state, provider, sizes and version of transformed classes are tracked by the registry
+	 * without marking the classes with an annotation, and cleared on restore
+	 */
+	@Test
+	public void testInstrumentedRegistry() {
+		final InstrumentedRegistry registry = retran.getRegistry();
+		Assert.assertFalse(retran.isClassInstrumented(English.class));
+		Assert.assertNull(registry.get(English.class));
+		retran.transform(English.class, Spanish.class);
+		Assert.assertTrue(retran.isClassInstrumented(English.class));
+		Assert.assertTrue(registry.isInstrumented(English.class.getName()));
+		final InstrumentedRegistry.Record first = registry.get(English.class);
+		Assert.assertEquals(Spanish.class.getName(), first.getProvider());
+		Assert.assertTrue(first.getOriginalSize() > 0);
+		Assert.assertTrue(first.getTransformedSize() > 0);
+		Assert.assertNull(English.class.getAnnotation(Instrumented.class));
+		retran.transform(English.class, "getHello", "{ return \"Bonjour\"; }");
+		final InstrumentedRegistry.Record second = registry.get(English.class);
+		Assert.assertEquals("Source", second.getProvider());
+		Assert.assertEquals(first.getVersion() + 1, second.getVersion());
+		Assert.assertEquals("Source", new Retransformer.InstrumentedImpl(English.class).getMockProvider());
+		retran.restore(English.class);
+		Assert.assertFalse(retran.isClassInstrumented(English.class));
+		Assert.assertFalse(registry.isInstrumented(English.class.getName()));
+		try {
+			retran.transform(English.class, true, Collections.singletonMap("noSuchMethod", "{ return null; }"));
+			Assert.fail("Expected RuntimeException");
+		} catch (RuntimeException rex) {
+			Assert.assertFalse(retran.isClassInstrumented(English.class));
+		}
+		resetAndValidate();
+	}
+
+	/**
+	 * Mock class grafting a single method onto English, with an ignored method and a method with no target
+	 */
+	public static class HelloOnly {
+		public String getHello() {
+			return "Hi";
+		}
+		@MethodIgnore
+		public String getCandy() {
+			return "licorice";
+		}
+		public String getFarewell() {
+			return "Bye";
+		}
+	}
+
+	/**
+	 * Tests that the method grafter copies only the matched, non-ignored template methods and leaves the other target methods untouched
+	 * @throws Exception Thrown on any error
+	 */
+	@Test
+	public void testMethodGrafter() throws Exception {
+		final byte[] original = ByteStreams.toByteArray(English.class.getResourceAsStream("English.class"));
+		final ClassFile target = MethodGrafter.read(original);
+		final byte[] candyCode = target.getMethod("getCandy").getCodeAttribute().getCode().clone();
+		final ClassFile template = MethodGrafter.read(ByteStreams.toByteArray(HelloOnly.class.getResourceAsStream("RetransformerTestCase$HelloOnly.class")));
+		Assert.assertEquals(1, MethodGrafter.graft(template, target));
+		Assert.assertArrayEquals(candyCode, target.getMethod("getCandy").getCodeAttribute().getCode());
+		Assert.assertNull(target.getMethod("getFarewell"));
+		Assert.assertEquals(English.class.getName(), MethodGrafter.read(MethodGrafter.write(target)).getName());
+		final English english = new English();
+		retran.transform(English.class, HelloOnly.class);
+		Assert.assertEquals("Hi", english.getHello());
+		Assert.assertEquals("butterscotch", english.getCandy());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that re-applying a transform that produces identical bytes skips the retransform
+	 */
+	@Test
+	public void testSkipIdenticalRetransform() {
+		final English english = new English();
+		retran.transform(English.class, Spanish.class);
+		Assert.assertEquals("Hola", english.getHello());
+		final long applied = retran.getAppliedCount();
+		final long skipped = retran.getSkippedCount();
+		final long retransforms = retran.getRetransformCount();
+		final long transforms = retran.getTransformCount();
+		final long bytes = retran.getBytesProduced();
+		final int version = retran.getRegistry().get(English.class).getVersion();
+		retran.transform(English.class, Spanish.class);
+		Assert.assertEquals("Hola", english.getHello());
+		Assert.assertEquals(applied, retran.getAppliedCount());
+		Assert.assertEquals(transforms, retran.getTransformCount());
+		Assert.assertEquals(bytes, retran.getBytesProduced());
+		Assert.assertEquals(skipped + 1, retran.getSkippedCount());
+		Assert.assertEquals(retransforms, retran.getRetransformCount());
+		Assert.assertEquals(version, retran.getRegistry().get(English.class).getVersion());
+		retran.transform(English.class, "getHello", "{ return \"Bonjour\"; }");
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals(applied + 1, retran.getAppliedCount());
+		retran.transform(English.class, "getHello", "{ return \"Bonjour\"; }");
+		Assert.assertEquals(skipped + 2, retran.getSkippedCount());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that the behavior index resolves declared and inherited methods with their declaring class, is cached
+	 * on the pool entry of its class, and is dropped when a class in its hierarchy is detached
+	 * @throws Exception Thrown on any error
+	 */
+	@Test
+	public void testBehaviorIndex() throws Exception {
+		final ClassPoolCache poolCache = ClassPoolCache.getInstance();
+		final CtClass childCt = poolCache.getClassPool(Child.class).get(Child.class.getName());
+		final BehaviorIndex index = poolCache.getBehaviorIndex(childCt);
+		Assert.assertSame(index, poolCache.getBehaviorIndex(childCt));
+		Assert.assertEquals(Child.class.getName(), index.getDeclaredMethod("doOp").getDeclaringClass().getName());
+		Assert.assertNull(index.getDeclaredMethod("op"));
+		final CtMethod op = index.getInheritedMethod("op");
+		Assert.assertEquals(Parent.class.getName(), op.getDeclaringClass().getName());
+		Assert.assertFalse(index.isAmbiguous("op"));
+		Assert.assertSame(op, index.getMethod("op", "([J)J"));
+		Assert.assertNotNull(index.getMethod("hashCode", "()I"));
+		Assert.assertNull(index.getMethod("op", "()J"));
+		Assert.assertEquals(1, index.getConstructors().length);
+		Assert.assertTrue(index.covers(Parent.class.getName()));
+		poolCache.detach(Parent.class.getClassLoader(), Parent.class.getName());
+		Assert.assertNotSame(index, poolCache.getBehaviorIndex(childCt));
+		// the index lives on the pool entry, so it goes when the CtClass is removed from the pool
+		final int indexes = poolCache.getIndexCount();
+		poolCache.detach(Child.class.getClassLoader(), Child.class.getName());
+		Assert.assertEquals(indexes - 1, poolCache.getIndexCount());
+	}
+
+	/**
+	 * Tests that a precompiled source map parses its keys once, prefers descriptor keyed sources, and can be applied as is
+	 */
+	@Test
+	public void testSourceMap() {
+		final Map<String, String> raw = new HashMap<String, String>();
+		raw.put(" getHello ", "{ return \"Bonjour\"; }");
+		raw.put("getCandy:()Ljava/lang/String;", "{ return \"praline\"; }");
+		raw.put("getCandy", "{ return \"caramel\"; }");
+		final SourceMap sourceMap = SourceMap.of(raw);
+		Assert.assertSame(sourceMap, SourceMap.of(sourceMap));
+		Assert.assertEquals(raw, sourceMap);
+		Assert.assertEquals(3, sourceMap.bodies().size());
+		Assert.assertEquals("{ return \"praline\"; }", sourceMap.lookup("getCandy", "()Ljava/lang/String;").getSource());
+		Assert.assertEquals("{ return \"caramel\"; }", sourceMap.lookup("getCandy", "()I").getSource());
+		final SourceMap.Body hello = sourceMap.lookup("getHello", "()Ljava/lang/String;");
+		Assert.assertNull(hello.getDescriptor());
+		Assert.assertSame("getHello", hello.getName());
+		Assert.assertEquals(MethodBodyCache.digest("{ return \"Bonjour\"; }"), hello.getSourceDigest());
+		Assert.assertNull(sourceMap.lookup("getCutlery", "()Ljava/lang/String;"));
+		final English english = new English();
+		retran.transformAll(sourceMap, true, English.class);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("praline", english.getCandy());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that a chain combining a mock, a source map and an annotation is applied in a single retransform,
+	 * that inherited source map methods are replaced in their declaring class, and that each stage is timed
+	 */
+	@Test
+	public void testChainPipeline() {
+		final English english = new English();
+		final long retransforms = retran.getRetransformCount();
+		RetransformChain.chain()
+			.transform(Spanish.class)
+			.transform("getCandy", "()Ljava/lang/String;", "{ return \"caramel\"; }")
+			.transform(AnnotationBuilder.newBuilder(TestAnnotation.class).add("id", 7))
+			.retransform(English.class);
+		Assert.assertEquals(retransforms + 1, retran.getRetransformCount());
+		Assert.assertEquals("Hola", english.getHello());
+		Assert.assertEquals("cuchara", english.getCutlery());
+		Assert.assertEquals("caramel", english.getCandy());
+		Assert.assertEquals(7, English.class.getAnnotation(TestAnnotation.class).id());
+		Assert.assertTrue(retran.getRegistry().get(English.class).getProvider().startsWith("Chain["));
+		final Map<String, Long> stageTimes = retran.getStageTimes();
+		for(String stage: new String[]{"mock", "source", "annotation"}) {
+			Assert.assertTrue("No " + stage + " times", stageTimes.get(stage + ".count") > 0L);
+		}
+		resetAndValidate();
+		Assert.assertNull(English.class.getAnnotation(TestAnnotation.class));
+		// op is declared in Parent, so the chain for Child replaces it in Parent
+		final Child child = new Child();
+		RetransformChain.chain()
+			.transform(false, Collections.singletonMap("op", "{long t = 1; for(int i = 0; i < $1.length; i++) { t *= $1[i]; } return t;}"))
+			.retransform(Child.class);
+		Assert.assertTrue(retran.isClassInstrumented(Parent.class));
+		Assert.assertFalse(retran.isClassInstrumented(Child.class));
+		Assert.assertEquals(8589934592L, child.doOp(1024, 2048, 4096));
+		retran.restore(Parent.class);
+		Assert.assertEquals(7168, child.doOp(1024, 2048, 4096));
+	}
+
+	/**
+	 * Tests that the transform context records the matched directives, changed behaviors, stage times and size delta
+	 * of a pipeline, and that the pooled context is reused once released
+	 * @throws Exception Thrown on any error
+	 */
+	@Test
+	public void testTransformContext() throws Exception {
+		final byte[] original = ByteStreams.toByteArray(English.class.getResourceAsStream("English.class"));
+		final TransformContext tc = TransformContext.acquire(English.class.getName(), original);
+		try {
+			Assert.assertNotSame(tc, TransformContext.acquire(English.class.getName(), original));
+			final CtClass ct = ClassPoolCache.getInstance().getClassPool(English.class).makeClass(new ByteArrayInputStream(original), false);
+			tc.startStage("mock");
+			MockGraftTransformer.STRICT_INSTANCE.transform(ct, tc, HelloOnly.class);
+			tc.endStage();
+			tc.startStage("source");
+			SourceMapBodyReplaceTransformer.STRICT_INSTANCE.transform(ct, tc, Collections.singletonMap("getCandy", "{ return \"caramel\"; }"));
+			tc.endStage();
+			tc.transformed(ct.toBytecode().length);
+			Assert.assertEquals(2, tc.getMatchedCount());
+			Assert.assertEquals(HelloOnly.class.getName(), tc.getMatched(0));
+			Assert.assertEquals("getCandy", tc.getMatched(1));
+			Assert.assertEquals(2, tc.getChangedCount());
+			Assert.assertEquals("getHello", tc.getChangedName(0));
+			Assert.assertEquals("()Ljava/lang/String;", tc.getChangedDescriptor(1));
+			Assert.assertEquals(2, tc.getStageCount());
+			Assert.assertEquals("source", tc.getStageName(1));
+			Assert.assertEquals(tc.getStageNanos(0) + tc.getStageNanos(1), tc.getTotalStageNanos());
+			Assert.assertEquals(tc.getTransformedSize() - original.length, tc.getSizeDelta());
+			Assert.assertEquals(MethodBodyCache.digest(original), tc.getOriginalDigest());
+		} finally {
+			tc.release();
+			ClassPoolCache.getInstance().detach(English.class.getClassLoader(), English.class.getName());
+		}
+		final TransformContext reused = TransformContext.acquire(Child.class.getName(), null);
+		Assert.assertSame(tc, reused);
+		Assert.assertEquals(0, reused.getMatchedCount());
+		Assert.assertEquals(0, reused.getStageCount());
+		reused.release();
+	}
+
+	/**
+	 * Tests before, after and around advice woven into the original method bodies in one chain, and that re-applying
+	 * the advice to the same class bytes splices the cached compiled advice
+	 */
+	@Test
+	public void testAdviceTransformers() {
+		final English english = new English();
+		retran.transformInsert(English.class, true, Collections.singletonMap("getCandy", "candy = \"toffee\";"));
+		Assert.assertEquals("toffee", english.getCandy());
+		Assert.assertEquals("Hello", english.getHello());
+		resetAndValidate();
+		final RetransformChain chain = RetransformChain.chain()
+			.advise(SourceMapInsertAfterTransformer.STRICT_INSTANCE, Collections.singletonMap("getHello", "$_ = $_ + \"!\";"))
+			.advise(SourceMapAroundTransformer.STRICT_INSTANCE, Collections.singletonMap("getCutlery", 
+					"long start; start = System.nanoTime(); ${proceed} System.setProperty(\"english.cutlery.elapsed\", String.valueOf(System.nanoTime() - start));"));
+		System.clearProperty("english.cutlery.elapsed");
+		chain.retransform(English.class);
+		Assert.assertEquals("Hello!", english.getHello());
+		Assert.assertEquals("spoon", english.getCutlery());
+		Assert.assertTrue(Long.parseLong(System.getProperty("english.cutlery.elapsed")) >= 0L);
+		final Map<String, Long> stageTimes = retran.getStageTimes();
+		Assert.assertTrue(stageTimes.get("after.count") > 0L);
+		Assert.assertTrue(stageTimes.get("around.count") > 0L);
+		resetAndValidate();
+		final long hits = MethodBodyCache.getInstance().getHits();
+		chain.retransform(English.class);
+		Assert.assertEquals("Hello!", english.getHello());
+		Assert.assertEquals(hits + 2, MethodBodyCache.getInstance().getHits());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that advice woven after different earlier stages is not spliced from the other chain's cached body,
+	 * even though the earlier stages leave the advised code with the same constant pool indexes
+	 */
+	@Test
+	public void testAdviceAfterDifferentStages() {
+		final English english = new English();
+		final Map<String, String> advice = Collections.singletonMap("getHello", "$_ = $_ + \"!\";");
+		RetransformChain.chain().transform("getHello", "{ return \"a\"; }").advise(SourceMapInsertAfterTransformer.STRICT_INSTANCE, advice).retransform(English.class);
+		Assert.assertEquals("a!", english.getHello());
+		resetAndValidate();
+		RetransformChain.chain().transform("getHello", "{ return \"b\"; }").advise(SourceMapInsertAfterTransformer.STRICT_INSTANCE, advice).retransform(English.class);
+		Assert.assertEquals("b!", english.getHello());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that advice compiled for one class is spliced into another class of the same shape, with the references to its own class renamed
+	 */
+	@Test
+	public void testAdviceSharedAcrossClasses() {
+		class GreeterA {
+			public String getHello() {
+				return "Hi " + getName();
+			}
+			public String getName() {
+				return "A";
+			}
+		}
+		class GreeterB {
+			public String getHello() {
+				return "Hi " + getName();
+			}
+			public String getName() {
+				return "B";
+			}
+		}
+		final Map<String, String> advice = Collections.singletonMap("getHello", "$_ = $_ + \"!\";");
+		final RetransformChain chain = RetransformChain.chain().advise(SourceMapInsertAfterTransformer.STRICT_INSTANCE, advice);
+		chain.retransform(GreeterA.class);
+		Assert.assertEquals("Hi A!", new GreeterA().getHello());
+		final long hits = MethodBodyCache.getInstance().getHits();
+		chain.retransform(GreeterB.class);
+		Assert.assertEquals("Hi B!", new GreeterB().getHello());
+		Assert.assertEquals(hits + 1, MethodBodyCache.getInstance().getHits());
+		retran.restore(GreeterA.class);
+		retran.restore(GreeterB.class);
+		Assert.assertEquals("Hi A", new GreeterA().getHello());
+		Assert.assertEquals("Hi B", new GreeterB().getHello());
+	}
+
+	/**
+	 * Tests the method timing probes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTimingProbes() throws Exception {
+		final English english = new English();
+		final Map<String, String> probes = new HashMap<String, String>();
+		probes.put("getHello", "");
+		probes.put("getCandy", "english.candy");
+		RetransformChain.chain().advise(TimingProbeTransformer.STRICT_INSTANCE, probes).retransform(English.class);
+		final int helloId = TimingProbes.getProbeId(English.class.getName() + ".getHello()Ljava/lang/String;");
+		final int candyId = TimingProbes.getProbeId("english.candy");
+		Assert.assertTrue(helloId >= 0);
+		Assert.assertTrue(candyId >= 0);
+		Assert.assertEquals(candyId, TimingProbes.register("english.candy"));
+		final int calls = 1000;
+		final Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread("TimingProbeTest#" + i) {
+				@Override
+				public void run() {
+					for(int c = 0; c < calls; c++) {
+						english.getHello();
+						english.getCandy();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t: threads) t.join();
+		Assert.assertEquals("Hello", english.getHello());
+		final ProbeSnapshot hello = TimingProbes.snapshot(helloId);
+		Assert.assertEquals(calls * threads.length + 1, hello.getCount());
+		Assert.assertTrue(hello.getTotal() > 0L);
+		Assert.assertTrue(hello.getMax() <= hello.getTotal());
+		Assert.assertEquals(calls * threads.length, TimingProbes.snapshot("english.candy").getCount());
+		Assert.assertTrue(TimingProbes.snapshot().containsKey("english.candy"));
+		TimingProbes.reset(candyId);
+		Assert.assertEquals(0L, TimingProbes.snapshot(candyId).getCount());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that timing probes injected into classes of the same shape each record to their own probe,
+	 * and that re-injecting the same probe splices the cached code
+	 */
+	@Test
+	public void testTimingProbesAcrossClasses() {
+		class TimedA {
+			public String getHello() {
+				return "A";
+			}
+		}
+		class TimedB {
+			public String getHello() {
+				return "B";
+			}
+		}
+		final RetransformChain chain = RetransformChain.chain().advise(TimingProbeTransformer.STRICT_INSTANCE, Collections.singletonMap("getHello", ""));
+		chain.retransform(TimedA.class);
+		chain.retransform(TimedB.class);
+		final int aId = TimingProbes.getProbeId(TimedA.class.getName() + ".getHello()Ljava/lang/String;");
+		final int bId = TimingProbes.getProbeId(TimedB.class.getName() + ".getHello()Ljava/lang/String;");
+		Assert.assertTrue(aId >= 0);
+		Assert.assertTrue(bId >= 0);
+		Assert.assertFalse(aId==bId);
+		final long aCount = TimingProbes.snapshot(aId).getCount();
+		final long bCount = TimingProbes.snapshot(bId).getCount();
+		Assert.assertEquals("A", new TimedA().getHello());
+		Assert.assertEquals("B", new TimedB().getHello());
+		Assert.assertEquals("B", new TimedB().getHello());
+		Assert.assertEquals(aCount + 1, TimingProbes.snapshot(aId).getCount());
+		Assert.assertEquals(bCount + 2, TimingProbes.snapshot(bId).getCount());
+		retran.restore(TimedA.class);
+		final long hits = MethodBodyCache.getInstance().getHits();
+		chain.retransform(TimedA.class);
+		Assert.assertEquals(hits + 1, MethodBodyCache.getInstance().getHits());
+		Assert.assertEquals("A", new TimedA().getHello());
+		Assert.assertEquals(aCount + 2, TimingProbes.snapshot(aId).getCount());
+		retran.restore(TimedA.class);
+		retran.restore(TimedB.class);
+	}
+
+	/**
+	 * Tests the sampled method timing probes
+	 */
+	@Test
+	public void testSampledTimingProbes() {
+		final English english = new English();
+		final int probeId = TimingProbes.setSampleRate("english.cutlery.sampled", 10);
+		RetransformChain.chain().advise(TimingProbeTransformer.STRICT_SAMPLED_INSTANCE, Collections.singletonMap("getCutlery", "english.cutlery.sampled")).retransform(English.class);
+		Assert.assertEquals(probeId, TimingProbes.getProbeId("english.cutlery.sampled"));
+		for(int i = 0; i < 1000; i++) {
+			Assert.assertEquals("spoon", english.getCutlery());
+		}
+		ProbeSnapshot snapshot = TimingProbes.snapshot(probeId);
+		Assert.assertEquals(100L, snapshot.getSamples());
+		Assert.assertEquals(1000L, snapshot.getCount());
+		Assert.assertEquals(10, snapshot.getSampleRate());
+		Assert.assertTrue(snapshot.getMax() <= snapshot.getTotal());
+		TimingProbes.setSampleRate(probeId, 1);
+		for(int i = 0; i < 5; i++) english.getCutlery();
+		snapshot = TimingProbes.snapshot(probeId);
+		Assert.assertEquals(105L, snapshot.getSamples());
+		Assert.assertEquals(1005L, snapshot.getCount());
+		Assert.assertEquals(1, snapshot.getSampleRate());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that changing a sample rate mid-interval cuts long intervals short and weights each sample by the calls it covers
+	 */
+	@Test
+	public void testSampleRateChange() {
+		final ProbeCounters counters = new ProbeCounters(1, 1);
+		counters.setSampleRate(0, 1000);
+		long calls = 0L;
+		for(int i = 0; i < 100; i++, calls++) {
+			Assert.assertEquals(0, counters.sample(0));
+		}
+		// lowering the rate re-arms the 900 remaining calls to 10
+		counters.setSampleRate(0, 10);
+		for(int i = 0; i < 9; i++, calls++) {
+			Assert.assertEquals(0, counters.sample(0));
+		}
+		int weight = counters.sample(0);
+		calls++;
+		Assert.assertEquals(110, weight);
+		counters.record(0, 1L, weight);
+		for(int i = 0; i < 5; i++, calls++) {
+			Assert.assertEquals(0, counters.sample(0));
+		}
+		// raising the rate leaves the 5 remaining calls of the current interval
+		counters.setSampleRate(0, 1000);
+		for(int i = 0; i < 4; i++, calls++) {
+			Assert.assertEquals(0, counters.sample(0));
+		}
+		weight = counters.sample(0);
+		calls++;
+		Assert.assertEquals(10, weight);
+		counters.record(0, 1L, weight);
+		final ProbeSnapshot snapshot = counters.snapshot(0, "rate.change");
+		Assert.assertEquals(2L, snapshot.getSamples());
+		Assert.assertEquals(calls, snapshot.getCount());
+		Assert.assertEquals(1000, snapshot.getSampleRate());
+	}
+
+	/**
+	 * Tests the off heap invocation counters and the counting transformer
+	 */
+	@Test
+	public void testInvocationCounters() {
+		final English english = new English();
+		RetransformChain.chain()
+			.advise(SourceMapInsertAfterTransformer.STRICT_INSTANCE, Collections.singletonMap("getHello", "$_ = $_ + \"!\";"))
+			.count()
+			.retransform(English.class);
+		final int helloId = InvocationProbes.getProbeId(English.class.getName() + ".getHello()Ljava/lang/String;");
+		Assert.assertTrue(helloId >= 0);
+		final long before = InvocationProbes.get(helloId);
+		for(int i = 0; i < 5; i++) {
+			Assert.assertEquals("Hello!", english.getHello());
+		}
+		english.getCandy();
+		Assert.assertEquals(before + 5, InvocationProbes.get(helloId));
+		Assert.assertEquals(before + 5, InvocationProbes.snapshot()[helloId]);
+		Assert.assertEquals(-1, InvocationProbes.getProbeId(English.class.getName() + ".getCandy()Ljava/lang/String;"));
+		Assert.assertEquals(Long.valueOf(before + 5), InvocationProbes.snapshotByName().get(InvocationProbes.getProbeName(helloId)));
+		// the injected code keeps incrementing the shared counters, so they can never be freed
+		Assert.assertTrue(InvocationProbes.getCounters().isShared());
+		try {
+			InvocationProbes.getCounters().close();
+			Assert.fail("The shared counters were closed");
+		} catch (UnsupportedOperationException uex) {
+			/* expected */
+		}
+		Assert.assertEquals("Hello!", english.getHello());
+		Assert.assertEquals(before + 6, InvocationProbes.get(helloId));
+		resetAndValidate();
+		for(OffHeapCounters.Mode mode: OffHeapCounters.Mode.values()) {
+			for(boolean useUnsafe: new boolean[]{true, false}) {
+				final OffHeapCounters counters = new OffHeapCounters(mode, 16, useUnsafe);
+				try {
+					for(int i = 0; i < 3; i++) counters.increment(2);
+					counters.increment(15);
+					counters.increment(16);
+					counters.increment(-1);
+					Assert.assertEquals(3L, counters.get(2));
+					Assert.assertArrayEquals(new long[]{0L, 0L, 3L}, counters.snapshot(3));
+					Assert.assertEquals(1L, counters.snapshot(new long[16])[15]);
+					counters.reset(2);
+					Assert.assertEquals(0L, counters.get(2));
+				} finally {
+					counters.close();
+				}
+				// the freed region is never written
+				counters.increment(2);
+			}
+		}
+	}
+
+	/**
+	 * Tests the guarded timing probes and invocation counters
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testGuardedProbes() throws Exception {
+		final English english = new English();
+		// the timing probe takes the default name, the same name as the counter
+		RetransformChain.chain()
+			.advise(TimingProbeTransformer.STRICT_GUARDED_INSTANCE, Collections.singletonMap("getHello", ""))
+			.count(true)
+			.retransform(English.class);
+		final String countName = English.class.getName() + ".getHello()Ljava/lang/String;";
+		final int timingId = TimingProbes.getProbeId(countName);
+		final int timingSwitch = ProbeSwitches.getSwitchId(TimingProbeTransformer.SWITCH_PREFIX + countName);
+		final int countSwitch = ProbeSwitches.getSwitchId(CountingTransformer.SWITCH_PREFIX + countName);
+		Assert.assertTrue(timingSwitch >= 0);
+		Assert.assertTrue(countSwitch >= 0);
+		Assert.assertFalse(timingSwitch==countSwitch);
+		Assert.assertTrue(ProbeSwitches.isEnabled(timingSwitch));
+		Assert.assertTrue(ProbeSwitches.isEnabled(countSwitch));
+		final long timed = TimingProbes.snapshot(timingId).getCount();
+		final long counted = InvocationProbes.get(countName);
+		for(int i = 0; i < 3; i++) Assert.assertEquals("Hello", english.getHello());
+		Assert.assertEquals(timed + 3, TimingProbes.snapshot(timingId).getCount());
+		Assert.assertEquals(counted + 3, InvocationProbes.get(countName));
+		final long transforms = retran.getTransformCount();
+		// switching off the timing probe leaves the counter running
+		ProbeSwitches.setEnabled(timingSwitch, false);
+		ProbeSwitches.publish();
+		Assert.assertFalse(ProbeSwitches.isEnabled(timingSwitch));
+		Assert.assertTrue(ProbeSwitches.isEnabled(countSwitch));
+		for(int i = 0; i < 3; i++) Assert.assertEquals("Hello", english.getHello());
+		Assert.assertEquals(timed + 3, TimingProbes.snapshot(timingId).getCount());
+		Assert.assertEquals(counted + 6, InvocationProbes.get(countName));
+		ProbeSwitches.setEnabled(countSwitch, false);
+		ProbeSwitches.publish();
+		for(int i = 0; i < 3; i++) Assert.assertEquals("Hello", english.getHello());
+		Assert.assertEquals(timed + 3, TimingProbes.snapshot(timingId).getCount());
+		Assert.assertEquals(counted + 6, InvocationProbes.get(countName));
+		ProbeSwitches.setAllEnabled(true);
+		final long deadline = System.currentTimeMillis() + 5000L;
+		while(ProbeSwitches.isDirty() && System.currentTimeMillis() < deadline) Thread.sleep(10L);
+		Assert.assertTrue(ProbeSwitches.isEnabled(timingSwitch));
+		english.getHello();
+		Assert.assertEquals(timed + 4, TimingProbes.snapshot(timingId).getCount());
+		Assert.assertEquals(counted + 7, InvocationProbes.get(countName));
+		Assert.assertEquals(transforms, retran.getTransformCount());
+		resetAndValidate();
+		final int sampledId = TimingProbes.setSampleRate("english.candy.guardedsampled", 2);
+		RetransformChain.chain().advise(TimingProbeTransformer.STRICT_GUARDED_SAMPLED_INSTANCE, Collections.singletonMap("getCandy", "english.candy.guardedsampled")).retransform(English.class);
+		for(int i = 0; i < 4; i++) Assert.assertEquals("butterscotch", english.getCandy());
+		Assert.assertEquals(2L, TimingProbes.snapshot(sampledId).getSamples());
+		Assert.assertEquals(4L, TimingProbes.snapshot(sampledId).getCount());
+		ProbeSwitches.setEnabled(TimingProbeTransformer.SWITCH_PREFIX + "english.candy.guardedsampled", false);
+		ProbeSwitches.publish();
+		for(int i = 0; i < 4; i++) Assert.assertEquals("butterscotch", english.getCandy());
+		Assert.assertEquals(4L, TimingProbes.snapshot(sampledId).getCount());
+		ProbeSwitches.setAllEnabled(true);
+		ProbeSwitches.publish();
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that a mock is grafted onto the class bytes the JVM supplies to the transform callback, so a change made by an earlier redefinition survives
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testMockKeepsSuppliedClassBytes() throws Exception {
+		class GreeterInner {
+			public String getHello() {
+				return "Hello";
+			}
+			public String getBye() {
+				return "Bye";
+			}
+		}
+		class MockInner {
+			@SuppressWarnings("unused")
+			public String getHello() {
+				return "Hola";
+			}
+		}
+		final GreeterInner greeter = new GreeterInner();
+		final ClassPoolCache poolCache = ClassPoolCache.getInstance();
+		final CtClass ct = poolCache.getClassPool(GreeterInner.class).get(GreeterInner.class.getName());
+		ct.getDeclaredMethod("getBye").setBody("{ return \"Ciao\"; }");
+		final byte[] redefined = ct.toBytecode();
+		poolCache.detach(GreeterInner.class.getClassLoader(), GreeterInner.class.getName());
+		retran.getInstrumentation().redefineClasses(new ClassDefinition(GreeterInner.class, redefined));
+		Assert.assertEquals("Ciao", greeter.getBye());
+		retran.transform(GreeterInner.class, MockInner.class);
+		Assert.assertEquals("Hola", greeter.getHello());
+		// the class resource still says "Bye", so the graft must have been made on the redefined bytes
+		Assert.assertEquals("Ciao", greeter.getBye());
+		retran.restore(GreeterInner.class);
+		Assert.assertEquals("Hello", greeter.getHello());
+		Assert.assertEquals("Ciao", greeter.getBye());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that the dispatching transformer only routes the classes of a transform to their directives,
+	 * and that the directives are unregistered once the transform completes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDispatchingTransformer() throws Exception {
+		class EnglishInner {
+			public String getHello() {
+				return "Hello";
+			}
+		}
+		final English english = new English();
+		final EnglishInner englishInner = new EnglishInner();
+		Assert.assertEquals(0, retran.getActiveDirectiveCount());
+		final long dispatched = retran.getDispatchCount();
+		final Map<Class<?>, Map<String, String>> sourceMaps = new HashMap<Class<?>, Map<String, String>>();
+		sourceMaps.put(English.class, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }"));
+		sourceMaps.put(EnglishInner.class, Collections.singletonMap("getHello", "{ return \"Hallo\"; }"));
+		retran.transformAll(sourceMaps, true);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hallo", englishInner.getHello());
+		// one dispatch for each class in the batch, and nothing left registered
+		Assert.assertEquals(dispatched + 2, retran.getDispatchCount());
+		Assert.assertEquals(0, retran.getActiveDirectiveCount());
+		retran.restore(EnglishInner.class);
+		// a single class transform only routes its own class
+		retran.transform(English.class, "getHello", "{ return \"Hola\"; }");
+		Assert.assertEquals("Hola", english.getHello());
+		Assert.assertEquals("Hello", englishInner.getHello());
+		Assert.assertEquals(dispatched + 3, retran.getDispatchCount());
+		Assert.assertEquals(0, retran.getActiveDirectiveCount());
+		// a retransform from outside is never routed to a stale directive
+		retran.getInstrumentation().retransformClasses(EnglishInner.class);
+		Assert.assertEquals(dispatched + 3, retran.getDispatchCount());
+		Assert.assertEquals("Hello", englishInner.getHello());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that same named classes from two class loaders transformed in one batch are each dispatched to their own directive
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDispatchingSameNamedClasses() throws Exception {
+		class IsolatingClassLoader extends ClassLoader {
+			IsolatingClassLoader(final ClassLoader parent) {
+				super(parent);
+			}
+			Class<?> define(final String name, final byte[] bytes) {
+				return defineClass(name, bytes, 0, bytes.length);
+			}
+		}
+		final byte[] bytes = ByteStreams.toByteArray(English.class.getResourceAsStream(English.class.getSimpleName() + ".class"));
+		final Class<?> isolated = new IsolatingClassLoader(English.class.getClassLoader()).define(English.class.getName(), bytes);
+		Assert.assertNotSame(English.class, isolated);
+		final English english = new English();
+		final Object isolatedEnglish = isolated.newInstance();
+		final Method getHello = isolated.getMethod("getHello");
+		final long dispatched = retran.getDispatchCount();
+		final Map<Class<?>, Map<String, String>> sourceMaps = new HashMap<Class<?>, Map<String, String>>();
+		sourceMaps.put(English.class, Collections.singletonMap("getHello", "{ return \"Bonjour\"; }"));
+		sourceMaps.put(isolated, Collections.singletonMap("getHello", "{ return \"Hallo\"; }"));
+		retran.transformAll(sourceMaps, true);
+		Assert.assertEquals("Bonjour", english.getHello());
+		Assert.assertEquals("Hallo", getHello.invoke(isolatedEnglish));
+		Assert.assertEquals(dispatched + 2, retran.getDispatchCount());
+		Assert.assertEquals(0, retran.getActiveDirectiveCount());
+		Assert.assertTrue(retran.isClassInstrumented(English.class));
+		Assert.assertTrue(retran.isClassInstrumented(isolated));
+		retran.restore(isolated);
+		Assert.assertEquals("Hello", getHello.invoke(isolatedEnglish));
+		Assert.assertEquals("Bonjour", english.getHello());
+		resetAndValidate();
+	}
+
+	/**
+	 * Tests that a chained replacement by parameter count only replaces the overloads with that many parameters
+	 */
+	@Test
+	public void testChainArgCountTransform() {
+		class OverloadInner {
+			public String greet() {
+				return "none";
+			}
+			public String greet(final String name) {
+				return "name";
+			}
+			public String greet(final int times) {
+				return "times";
+			}
+			public String greet(final String name, final int times) {
+				return "both";
+			}
+		}
+		final OverloadInner overloads = new OverloadInner();
+		RetransformChain.chain().transform("greet", 1, "{ return \"one\"; }").retransform(OverloadInner.class);
+		Assert.assertEquals("none", overloads.greet());
+		Assert.assertEquals("one", overloads.greet("x"));
+		Assert.assertEquals("one", overloads.greet(3));
+		Assert.assertEquals("both", overloads.greet("x", 3));
+		try {
+			RetransformChain.chain().transform("greet", 3, "{ return \"three\"; }").retransform(OverloadInner.class);
+			Assert.fail("Transformed a greet overload with 3 parameters");
+		} catch (RuntimeException rex) {
+			/* expected */
+		}
+		Assert.assertEquals("one", overloads.greet("x"));
+		retran.restore(OverloadInner.class);
+		Assert.assertEquals("name", overloads.greet("x"));
+	}
+
 	/*
 	 * By Source
 	 * Ext class
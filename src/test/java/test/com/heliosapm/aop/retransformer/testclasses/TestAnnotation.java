@@ -24,6 +24,9 @@
  */
 package test.com.heliosapm.aop.retransformer.testclasses;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
 /**
  * <p>Title: TestAnnotation</p>
  * <p>Description: </p> 
@@ -32,6 +35,7 @@ package test.com.heliosapm.aop.retransformer.testclasses;
  * <p><code>test.com.heliosapm.aop.retransformer.testclasses.TestAnnotation</code></p>
  */
 
+@Retention(RetentionPolicy.RUNTIME)
 public @interface TestAnnotation {
 	int id();
 }